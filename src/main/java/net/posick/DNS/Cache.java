@@ -4,12 +4,14 @@
 package net.posick.DNS;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import lombok.extern.slf4j.Slf4j;
 import net.posick.DNS.CNAMERecord;
 import net.posick.DNS.Credibility;
@@ -79,6 +81,12 @@ public class Cache {
       this.expire = limitExpire(rrset.getTTL(), maxttl);
     }
 
+    public CacheRRset(CacheRRset rrset) {
+      super(rrset);
+      this.credibility = rrset.credibility;
+      this.expire = rrset.expire;
+    }
+
     @Override
     public final boolean expired() {
       int now = (int) (System.currentTimeMillis() / 1000);
@@ -143,40 +151,41 @@ public class Cache {
     }
   }
 
-  private static class CacheMap extends LinkedHashMap<net.posick.DNS.Name, Object> {
-    private int maxsize;
-
-    CacheMap(int maxsize) {
-      super(16, (float) 0.75, true);
-      this.maxsize = maxsize;
-    }
-
-    int getMaxSize() {
-      return maxsize;
-    }
-
-    void setMaxSize(int maxsize) {
-      /*
-       * Note that this doesn't shrink the size of the map if
-       * the maximum size is lowered, but it should shrink as
-       * entries expire.
-       */
-      this.maxsize = maxsize;
-    }
+  /**
+   * The elements cached for a single name. The element array is never modified once published;
+   * updates replace the whole CacheEntry. The referenced flag is set on every read and cleared by
+   * the eviction clock hand, approximating LRU eviction without reordering the map on reads.
+   */
+  private static final class CacheEntry {
+    final Element[] elements;
+    volatile boolean referenced;
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry eldest) {
-      return maxsize >= 0 && size() > maxsize;
+    CacheEntry(Element[] elements) {
+      this.elements = elements;
+      this.referenced = true;
     }
   }
 
-  private final CacheMap data;
+  private static final Element[] EMPTY_ELEMENTS = new Element[0];
+  private static final int LOCK_STRIPES = 64;
+
+  private final ConcurrentHashMap<net.posick.DNS.Name, CacheEntry> data = new ConcurrentHashMap<>();
+  private final Object[] locks = new Object[LOCK_STRIPES];
+  private final Object clockLock = new Object();
+  private Iterator<Map.Entry<net.posick.DNS.Name, CacheEntry>> clockHand;
+  private volatile int maxsize = defaultMaxEntries;
   private int maxncache = -1;
   private int maxcache = -1;
   private int dclass;
 
   private static final int defaultMaxEntries = 50000;
 
+  {
+    for (int i = 0; i < locks.length; i++) {
+      locks[i] = new Object();
+    }
+  }
+
   /**
    * Creates an empty Cache
    *
@@ -185,7 +194,6 @@ public class Cache {
    */
   public Cache(int dclass) {
     this.dclass = dclass;
-    data = new CacheMap(defaultMaxEntries);
   }
 
   /**
@@ -199,7 +207,6 @@ public class Cache {
 
   /** Creates a Cache which initially contains all records in the specified file. */
   public Cache(String file) throws IOException {
-    data = new CacheMap(defaultMaxEntries);
     try (Master m = new Master(file)) {
       Record record;
       while ((record = m.nextRecord()) != null) {
@@ -208,52 +215,43 @@ public class Cache {
     }
   }
 
-  private synchronized Object exactName(net.posick.DNS.Name name) {
-    return data.get(name);
+  /** Returns the lock guarding updates to the elements of the given name. */
+  private Object lockFor(net.posick.DNS.Name name) {
+    return locks[(name.hashCode() & 0x7FFFFFFF) % locks.length];
   }
 
-  private synchronized void removeName(net.posick.DNS.Name name) {
-    data.remove(name);
+  private Element[] exactName(net.posick.DNS.Name name) {
+    CacheEntry entry = data.get(name);
+    if (entry == null) {
+      return null;
+    }
+    if (!entry.referenced) {
+      entry.referenced = true;
+    }
+    return entry.elements;
   }
 
-  private synchronized Element[] allElements(Object types) {
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<Element> typelist = (List<Element>) types;
-      int size = typelist.size();
-      return typelist.toArray(new Element[size]);
-    } else {
-      Element set = (Element) types;
-      return new Element[] {set};
-    }
+  private void removeName(net.posick.DNS.Name name) {
+    data.remove(name);
   }
 
-  private synchronized Element oneElement(net.posick.DNS.Name name, Object types, int type, int minCred) {
+  private Element oneElement(net.posick.DNS.Name name, Element[] types, int type, int minCred) {
     Element found = null;
 
     if (type == Type.ANY) {
       throw new IllegalArgumentException("oneElement(ANY)");
     }
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<Element> list = (List<Element>) types;
-      for (Element set : list) {
-        if (set.getType() == type) {
-          found = set;
-          break;
-        }
-      }
-    } else {
-      Element set = (Element) types;
+    for (Element set : types) {
       if (set.getType() == type) {
         found = set;
+        break;
       }
     }
     if (found == null) {
       return null;
     }
     if (found.expired()) {
-      removeElement(name, type);
+      removeElement(name, type, found);
       return null;
     }
     if (found.compareCredibility(minCred) < 0) {
@@ -262,74 +260,126 @@ public class Cache {
     return found;
   }
 
-  private synchronized Element findElement(net.posick.DNS.Name name, int type, int minCred) {
-    Object types = exactName(name);
+  private Element findElement(net.posick.DNS.Name name, int type, int minCred) {
+    Element[] types = exactName(name);
     if (types == null) {
       return null;
     }
     return oneElement(name, types, type, minCred);
   }
 
-  private synchronized void addElement(net.posick.DNS.Name name, Element element) {
-    Object types = data.get(name);
-    if (types == null) {
-      data.put(name, element);
-      return;
+  private void addElement(net.posick.DNS.Name name, Element element) {
+    boolean added;
+    synchronized (lockFor(name)) {
+      CacheEntry entry = data.get(name);
+      Element[] types = entry == null ? EMPTY_ELEMENTS : entry.elements;
+      int type = element.getType();
+      int i = 0;
+      while (i < types.length && types[i].getType() != type) {
+        i++;
+      }
+      Element[] elements;
+      if (i < types.length) {
+        elements = types.clone();
+      } else {
+        elements = Arrays.copyOf(types, types.length + 1);
+      }
+      elements[i] = element;
+      added = data.put(name, new CacheEntry(elements)) == null;
+    }
+    if (added) {
+      evict();
     }
-    int type = element.getType();
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<Element> list = (List<Element>) types;
-      for (int i = 0; i < list.size(); i++) {
-        Element elt = list.get(i);
+  }
+
+  void removeElement(net.posick.DNS.Name name, int type) {
+    removeElement(name, type, null);
+  }
+
+  /**
+   * Removes the element of the given type, but only if it is still the expected element when the
+   * expected element is not null.
+   */
+  private void removeElement(net.posick.DNS.Name name, int type, Element expected) {
+    synchronized (lockFor(name)) {
+      CacheEntry entry = data.get(name);
+      if (entry == null) {
+        return;
+      }
+      Element[] types = entry.elements;
+      for (int i = 0; i < types.length; i++) {
+        Element elt = types[i];
         if (elt.getType() == type) {
-          list.set(i, element);
+          if (expected != null && elt != expected) {
+            return;
+          }
+          if (types.length == 1) {
+            data.remove(name);
+          } else {
+            Element[] elements = new Element[types.length - 1];
+            System.arraycopy(types, 0, elements, 0, i);
+            System.arraycopy(types, i + 1, elements, i, types.length - i - 1);
+            CacheEntry replacement = new CacheEntry(elements);
+            replacement.referenced = entry.referenced;
+            data.put(name, replacement);
+          }
           return;
         }
       }
-      list.add(element);
-    } else {
-      Element elt = (Element) types;
-      if (elt.getType() == type) {
-        data.put(name, element);
-      } else {
-        LinkedList<Element> list = new LinkedList<>();
-        list.add(elt);
-        list.add(element);
-        data.put(name, list);
-      }
     }
   }
 
-  synchronized void removeElement(net.posick.DNS.Name name, int type) {
-    Object types = data.get(name);
-    if (types == null) {
+  /**
+   * Evicts entries while the Cache holds more than the maximum number of entries. The clock hand
+   * sweeps the entries, clearing the referenced flag of recently used entries and evicting the
+   * first entry that has not been used since the hand last passed it.
+   */
+  private void evict() {
+    if (maxsize < 0 || data.size() <= maxsize) {
       return;
     }
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<Element> list = (List<Element>) types;
-      for (int i = 0; i < list.size(); i++) {
-        Element elt = list.get(i);
-        if (elt.getType() == type) {
-          list.remove(i);
-          if (list.size() == 0) {
-            data.remove(name);
+    synchronized (clockLock) {
+      int swept = 0;
+      while (maxsize >= 0 && data.size() > maxsize && swept < 2 * data.size() + 1) {
+        if (clockHand == null || !clockHand.hasNext()) {
+          clockHand = data.entrySet().iterator();
+          if (!clockHand.hasNext()) {
+            return;
           }
-          return;
+        }
+        Map.Entry<net.posick.DNS.Name, CacheEntry> entry = clockHand.next();
+        swept++;
+        CacheEntry value = entry.getValue();
+        if (value.referenced) {
+          value.referenced = false;
+        } else {
+          data.remove(entry.getKey(), value);
         }
       }
-    } else {
-      Element elt = (Element) types;
-      if (elt.getType() != type) {
-        return;
+    }
+  }
+
+  /**
+   * Adds all unexpired RRsets held by this Cache to another Cache, preserving their credibility.
+   *
+   * @param target The Cache to copy the RRsets into
+   */
+  public void copyTo(Cache target) {
+    List<CacheRRset> sets = new ArrayList<>();
+    for (CacheEntry entry : data.values()) {
+      for (Element element : entry.elements) {
+        if (element instanceof CacheRRset && !element.expired()) {
+          sets.add((CacheRRset) element);
+        }
       }
-      data.remove(name);
+    }
+    for (CacheRRset set : sets) {
+      target.addRRset(new net.posick.DNS.RRset(set), set.credibility);
     }
   }
 
   /** Empties the Cache. */
-  public synchronized void clearCache() {
+  public void clearCache() {
     data.clear();
   }
   /**
@@ -341,7 +391,7 @@ public class Cache {
    * @deprecated use {@link #addRecord(Record, int)}
    */
   @Deprecated
-  public synchronized void addRecord(Record r, int cred, Object o) {
+  public void addRecord(Record r, int cred, Object o) {
     addRecord(r, cred);
   }
 
@@ -352,20 +402,24 @@ public class Cache {
    * @param cred The credibility of the record
    * @see Record
    */
-  public synchronized void addRecord(Record r, int cred) {
+  public void addRecord(Record r, int cred) {
     net.posick.DNS.Name name = r.getName();
     int type = r.getRRsetType();
     if (!Type.isRR(type)) {
       return;
     }
-    Element element = findElement(name, type, cred);
-    if (element == null) {
-      CacheRRset crrset = new CacheRRset(r, cred, maxcache);
-      addRRset(crrset, cred);
-    } else if (element.compareCredibility(cred) == 0) {
-      if (element instanceof CacheRRset) {
-        CacheRRset crrset = (CacheRRset) element;
-        crrset.addRR(r);
+    synchronized (lockFor(name)) {
+      Element element = findElement(name, type, cred);
+      if (element == null) {
+        CacheRRset crrset = new CacheRRset(r, cred, maxcache);
+        addRRset(crrset, cred);
+      } else if (element.compareCredibility(cred) == 0) {
+        if (element instanceof CacheRRset) {
+          // Published sets are never modified, readers may be iterating over them
+          CacheRRset crrset = new CacheRRset((CacheRRset) element);
+          crrset.addRR(r);
+          addElement(name, crrset);
+        }
       }
     }
   }
@@ -377,7 +431,13 @@ public class Cache {
    * @param cred The credibility of these records
    * @see net.posick.DNS.RRset
    */
-  public synchronized <T extends Record> void addRRset(net.posick.DNS.RRset rrset, int cred) {
+  public <T extends Record> void addRRset(net.posick.DNS.RRset rrset, int cred) {
+    synchronized (lockFor(rrset.getName())) {
+      addRRsetLocked(rrset, cred);
+    }
+  }
+
+  private void addRRsetLocked(net.posick.DNS.RRset rrset, int cred) {
     long ttl = rrset.getTTL();
     net.posick.DNS.Name name = rrset.getName();
     int type = rrset.getType();
@@ -411,7 +471,13 @@ public class Cache {
    *     is derived from the SOA.
    * @param cred The credibility of the negative entry
    */
-  public synchronized void addNegative(net.posick.DNS.Name name, int type, SOARecord soa, int cred) {
+  public void addNegative(net.posick.DNS.Name name, int type, SOARecord soa, int cred) {
+    synchronized (lockFor(name)) {
+      addNegativeLocked(name, type, soa, cred);
+    }
+  }
+
+  private void addNegativeLocked(net.posick.DNS.Name name, int type, SOARecord soa, int cred) {
     long ttl = 0;
     if (soa != null) {
       ttl = Math.min(soa.getMinimum(), soa.getTTL());
@@ -432,12 +498,12 @@ public class Cache {
   }
 
   /** Finds all matching sets or something that causes the lookup to stop. */
-  protected synchronized net.posick.DNS.SetResponse lookup(net.posick.DNS.Name name, int type, int minCred) {
+  protected net.posick.DNS.SetResponse lookup(net.posick.DNS.Name name, int type, int minCred) {
     int labels;
     int tlabels;
     Element element;
     net.posick.DNS.Name tname;
-    Object types;
+    Element[] types;
     net.posick.DNS.SetResponse sr;
 
     labels = name.labels();
@@ -454,7 +520,7 @@ public class Cache {
         tname = new net.posick.DNS.Name(name, labels - tlabels);
       }
 
-      types = data.get(tname);
+      types = exactName(tname);
       if (types == null) {
         continue;
       }
@@ -466,12 +532,11 @@ public class Cache {
        */
       if (isExact && type == Type.ANY) {
         sr = new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.SUCCESSFUL);
-        Element[] elements = allElements(types);
         int added = 0;
-        for (Element value : elements) {
+        for (Element value : types) {
           element = value;
           if (element.expired()) {
-            removeElement(tname, element.getType());
+            removeElement(tname, element.getType(), element);
             continue;
           }
           if (!(element instanceof CacheRRset)) {
@@ -820,7 +885,7 @@ public class Cache {
    * specific Name. A negative value is treated as an infinite limit.
    */
   public int getMaxEntries() {
-    return data.getMaxSize();
+    return maxsize;
   }
 
   /**
@@ -835,7 +900,7 @@ public class Cache {
    * @param entries The maximum number of entries in the Cache.
    */
   public void setMaxEntries(int entries) {
-    data.setMaxSize(entries);
+    maxsize = entries;
   }
 
   /** Returns the DNS class of this cache. */
@@ -847,13 +912,10 @@ public class Cache {
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
-    synchronized (this) {
-      for (Object o : data.values()) {
-        Element[] elements = allElements(o);
-        for (Element element : elements) {
-          sb.append(element);
-          sb.append("\n");
-        }
+    for (CacheEntry entry : data.values()) {
+      for (Element element : entry.elements) {
+        sb.append(element);
+        sb.append("\n");
       }
     }
     return sb.toString();
@@ -8,7 +8,9 @@ import net.posick.DNS.Message;
 import net.posick.DNS.Name;
 
 /**
- * DNS Name Compression object.
+ * DNS Name Compression object. Names are stored as suffixes of the names written to the message,
+ * identified by the name and the index of its first label, in an open addressed table that grows
+ * with the message, so that neither adding nor finding a name allocates.
  *
  * @see Message
  * @see net.posick.DNS.Name
@@ -17,19 +19,53 @@ import net.posick.DNS.Name;
 @Slf4j
 public class Compression {
 
-  private static class Entry {
-    net.posick.DNS.Name name;
-    int pos;
-    Entry next;
-  }
-
-  private static final int TABLE_SIZE = 17;
+  private static final int MIN_CAPACITY = 16;
   private static final int MAX_POINTER = 0x3FFF;
-  private final Entry[] table;
+
+  /* The names, the hashes of their suffixes, and the positions and first labels of the suffixes */
+  private Name[] names;
+  private int[] hashes;
+  private int[] entries;
+  private int size;
 
   /** Creates a new Compression object. */
   public Compression() {
-    table = new Entry[TABLE_SIZE];
+    this(0);
+  }
+
+  /**
+   * Creates a new Compression object, sized for a number of names.
+   *
+   * @param expected The number of names expected to be added.
+   */
+  public Compression(int expected) {
+    int capacity = MIN_CAPACITY;
+    while (capacity * 3 < expected * 4) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    names = new Name[capacity];
+    hashes = new int[capacity];
+    entries = new int[capacity];
+  }
+
+  private static int entry(int pos, int n) {
+    return (pos << 8) | n;
+  }
+
+  private static int position(int entry) {
+    return entry >>> 8;
+  }
+
+  private static int label(int entry) {
+    return entry & 0xFF;
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
   }
 
   /**
@@ -39,16 +75,41 @@ public class Compression {
    * @param name The name being added to the message.
    */
   public void add(int pos, net.posick.DNS.Name name) {
+    add(pos, name, 0);
+  }
+
+  /**
+   * Adds a compression entry mapping the name formed by the labels of a name from the nth to a
+   * position in a message. A name already in the table keeps its earlier position.
+   *
+   * @param pos The position at which the name is added.
+   * @param name The name being added to the message.
+   * @param n The index of the first label of the added name.
+   */
+  void add(int pos, Name name, int n) {
     if (pos > MAX_POINTER) {
       return;
     }
-    int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
-    Entry entry = new Entry();
-    entry.name = name;
-    entry.pos = pos;
-    entry.next = table[row];
-    table[row] = entry;
-    log.trace("Adding {} at {}", name, pos);
+    if ((size + 1) * 4 > names.length * 3) {
+      resize();
+    }
+
+    int hash = spread(name.suffixHashCode(n));
+    int mask = names.length - 1;
+    int i = hash & mask;
+    while (names[i] != null) {
+      if (hashes[i] == hash && name.suffixEquals(n, names[i], label(entries[i]))) {
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+    names[i] = name;
+    hashes[i] = hash;
+    entries[i] = entry(pos, n);
+    size++;
+    if (log.isTraceEnabled()) {
+      log.trace("Adding {} at {}", n == 0 ? name : new Name(name, n), pos);
+    }
   }
 
   /**
@@ -58,14 +119,50 @@ public class Compression {
    * @return The position of the name, or -1 if not found.
    */
   public int get(Name name) {
-    int row = (name.hashCode() & 0x7FFFFFFF) % TABLE_SIZE;
+    return get(name, 0);
+  }
+
+  /**
+   * Retrieves the position of the name formed by the labels of a name from the nth, if it has been
+   * previously included in the message.
+   *
+   * @param name The name to find in the compression table.
+   * @param n The index of the first label of the name to find.
+   * @return The position of the name, or -1 if not found.
+   */
+  int get(Name name, int n) {
+    int hash = spread(name.suffixHashCode(n));
+    int mask = names.length - 1;
     int pos = -1;
-    for (Entry entry = table[row]; entry != null; entry = entry.next) {
-      if (entry.name.equals(name)) {
-        pos = entry.pos;
+    for (int i = hash & mask; names[i] != null; i = (i + 1) & mask) {
+      if (hashes[i] == hash && name.suffixEquals(n, names[i], label(entries[i]))) {
+        pos = position(entries[i]);
+        break;
       }
     }
-    log.trace("Looking for {}, found {}", name, pos);
+    if (log.isTraceEnabled()) {
+      log.trace("Looking for {}, found {}", n == 0 ? name : new Name(name, n), pos);
+    }
     return pos;
   }
+
+  private void resize() {
+    Name[] oldNames = names;
+    int[] oldHashes = hashes;
+    int[] oldEntries = entries;
+    allocate(oldNames.length * 2);
+
+    int mask = names.length - 1;
+    for (int j = 0; j < oldNames.length; j++) {
+      if (oldNames[j] != null) {
+        int i = oldHashes[j] & mask;
+        while (names[i] != null) {
+          i = (i + 1) & mask;
+        }
+        names[i] = oldNames[j];
+        hashes[i] = oldHashes[j];
+        entries[i] = oldEntries[j];
+      }
+    }
+  }
 }
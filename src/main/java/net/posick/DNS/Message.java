@@ -5,13 +5,17 @@ package net.posick.DNS;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Optional;
+import java.util.RandomAccess;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import lombok.SneakyThrows;
 import net.posick.DNS.Compression;
 import net.posick.DNS.DClass;
@@ -171,6 +175,307 @@ public class Message implements Cloneable {
     this(new DNSInput(byteBuffer));
   }
 
+  /**
+   * Creates a new Message from its DNS wire format representation, decoding its records lazily.
+   * The header is parsed and the records are indexed immediately, so a malformed header, record
+   * framing or RDATA length is reported here, but each record is only decoded when it is first
+   * accessed. Reading only the header therefore costs a single pass over the message, without
+   * creating any Name or Record.
+   *
+   * <p>The message refers to the byte array rather than copying it, so the array must not be
+   * modified afterwards. A record that cannot be decoded despite passing these checks causes an
+   * {@link IllegalStateException} when accessed.
+   *
+   * @param b A byte array containing the DNS Message.
+   */
+  public static Message parseLazily(byte[] b) throws IOException {
+    return parseLazily(ByteBuffer.wrap(b));
+  }
+
+  /**
+   * Creates a new Message from its DNS wire format representation, decoding its records lazily.
+   * The remaining bytes of the buffer are not copied, and the position of the buffer is not
+   * changed. The buffer must therefore not be modified or reused until the message is no longer
+   * used or {@link #detach()} has been called.
+   *
+   * @param byteBuffer A ByteBuffer containing the DNS Message.
+   * @see #parseLazily(byte[])
+   */
+  public static Message parseLazily(ByteBuffer byteBuffer) throws IOException {
+    ByteBuffer wire = byteBuffer.slice();
+    Message m = new Message(new net.posick.DNS.Header(new net.posick.DNS.DNSInput(wire.duplicate())));
+    m.index(wire);
+    return m;
+  }
+
+  /**
+   * Stops a lazily parsed message from referring to the buffer it was parsed from, so that the
+   * buffer may be reused. The message is copied if any of its records has not been decoded yet.
+   * Does nothing for other messages.
+   */
+  public void detach() {
+    ByteBuffer original = null;
+    for (List<Record> section : sections) {
+      if (section instanceof LazySection) {
+        original = ((LazySection) section).getWire();
+        if (original != null) {
+          break;
+        }
+      }
+    }
+    if (original == null) {
+      return;
+    }
+
+    byte[] b = new byte[original.limit()];
+    original.duplicate().get(b);
+    ByteBuffer copy = ByteBuffer.wrap(b);
+    for (List<Record> section : sections) {
+      if (section instanceof LazySection) {
+        ((LazySection) section).rebase(original, copy);
+      }
+    }
+  }
+
+  /** The records of a section of a lazily parsed message, decoded when first accessed. */
+  private static final class LazySection extends AbstractList<Record> implements RandomAccess {
+    private final int[] offsets;
+    private final int section;
+    private final boolean isUpdate;
+    private final AtomicReferenceArray<Record> records;
+
+    /* The message in wire format, or null once every record has been decoded */
+    private ByteBuffer wire;
+    private int decoded;
+
+    LazySection(ByteBuffer wire, int[] offsets, Record[] records, int section, boolean isUpdate) {
+      this.offsets = offsets;
+      this.section = section;
+      this.isUpdate = isUpdate;
+      this.records = new AtomicReferenceArray<>(Arrays.copyOf(records, offsets.length));
+      for (int i = 0; i < offsets.length; i++) {
+        if (records[i] != null) {
+          decoded++;
+        }
+      }
+      this.wire = decoded < offsets.length ? wire : null;
+    }
+
+    @Override
+    public Record get(int index) {
+      Record rec = records.get(index);
+      return rec != null ? rec : decode(index);
+    }
+
+    @Override
+    public int size() {
+      return offsets.length;
+    }
+
+    /* Records are decoded under the lock, so the wire is not replaced while being read */
+    private synchronized Record decode(int index) {
+      Record rec = records.get(index);
+      if (rec != null) {
+        return rec;
+      }
+      if (wire == null) {
+        throw new IllegalStateException(
+            "Record " + index + " of section " + Section.string(section) + " is unavailable");
+      }
+      net.posick.DNS.DNSInput in = new net.posick.DNS.DNSInput(wire.duplicate());
+      in.jump(offsets[index]);
+      try {
+        rec = Record.fromWire(in, section, isUpdate);
+      } catch (IOException e) {
+        throw new IllegalStateException(
+            "Error parsing record " + index + " of section " + Section.string(section), e);
+      }
+      records.set(index, rec);
+      if (++decoded == offsets.length) {
+        wire = null;
+      }
+      return rec;
+    }
+
+    synchronized ByteBuffer getWire() {
+      return wire;
+    }
+
+    synchronized void rebase(ByteBuffer original, ByteBuffer copy) {
+      if (wire == original) {
+        wire = copy;
+      }
+    }
+  }
+
+  /*
+   * Indexes the offsets of the records of each section, and locates any TSIG or SIG(0) record as
+   * the eager parser does. The names and RDATA of the record types used by Multicast DNS are
+   * checked without decoding them, and records of other types are decoded, so that a malformed
+   * message is rejected here rather than when its records are accessed.
+   */
+  private void index(ByteBuffer b) throws IOException {
+    boolean isUpdate = header.getOpcode() == net.posick.DNS.Opcode.UPDATE;
+    boolean truncated = header.getFlag(net.posick.DNS.Flags.TC);
+    int pos = net.posick.DNS.Header.LENGTH;
+    for (int i = 0; i < 4; i++) {
+      int count = header.getCount(i);
+      if (count == 0) {
+        continue;
+      }
+      int[] offsets = new int[count];
+      Record[] records = new Record[count];
+      int n = 0;
+      try {
+        for (; n < count; n++) {
+          int start = pos;
+          int end = checkName(b, pos, b.limit());
+          if (i == net.posick.DNS.Section.QUESTION) {
+            require(b, end, 4);
+            pos = end + 4;
+          } else {
+            require(b, end, 10);
+            int type = readU16(b, end);
+            int length = readU16(b, end + 8);
+            require(b, end + 10, length);
+            boolean empty =
+                length == 0
+                    && isUpdate
+                    && (i == net.posick.DNS.Section.PREREQ || i == net.posick.DNS.Section.UPDATE);
+            if (!empty && !checkRdata(b, type, end + 10, length)) {
+              net.posick.DNS.DNSInput in = new net.posick.DNS.DNSInput(b.duplicate());
+              in.jump(start);
+              records[n] = Record.fromWire(in, i, isUpdate);
+            }
+            pos = end + 10 + length;
+            if (i == net.posick.DNS.Section.ADDITIONAL) {
+              if (type == Type.TSIG) {
+                tsigstart = start;
+                if (n != count - 1) {
+                  throw new WireParseException("TSIG is not the last record in the message");
+                }
+              }
+              if (type == Type.SIG && length >= 2 && readU16(b, end + 10) == 0) {
+                sig0start = start;
+              }
+            }
+          }
+          offsets[n] = start;
+        }
+      } catch (WireParseException e) {
+        if (!truncated) {
+          throw e;
+        }
+        sections[i] = new LazySection(b, Arrays.copyOf(offsets, n), records, i, isUpdate);
+        break;
+      }
+      sections[i] = new LazySection(b, offsets, records, i, isUpdate);
+    }
+    size = pos;
+  }
+
+  /*
+   * Checks the name at the given offset, following compression pointers, and returns the offset
+   * following it. The labels not reached through a pointer must end before the limit.
+   */
+  private static int checkName(ByteBuffer b, int pos, int limit) throws WireParseException {
+    int end = -1;
+    int length = 1;
+    while (true) {
+      if (pos >= limit) {
+        throw new WireParseException("end of input");
+      }
+      int len = b.get(pos) & 0xFF;
+      switch (len & 0xC0) {
+        case 0x00:
+          if (len == 0) {
+            return end < 0 ? pos + 1 : end;
+          }
+          length += len + 1;
+          if (length > 255) {
+            throw new WireParseException("name too long");
+          }
+          pos += len + 1;
+          break;
+        case 0xC0:
+          if (pos + 2 > limit) {
+            throw new WireParseException("end of input");
+          }
+          int target = ((len & ~0xC0) << 8) | (b.get(pos + 1) & 0xFF);
+          if (target >= pos) {
+            throw new WireParseException("bad compression");
+          }
+          if (end < 0) {
+            end = pos + 2;
+            limit = b.limit();
+          }
+          pos = target;
+          break;
+        default:
+          throw new WireParseException("bad label type");
+      }
+    }
+  }
+
+  /*
+   * Checks that the RDATA of the types used by Multicast DNS can be decoded, returning false for
+   * the types that are not checked.
+   */
+  private static boolean checkRdata(ByteBuffer b, int type, int pos, int length)
+      throws WireParseException {
+    int end = pos + length;
+    switch (type) {
+      case Type.A:
+        checkLength(length == 4);
+        break;
+      case Type.AAAA:
+        checkLength(length == 16);
+        break;
+      case Type.NS:
+      case Type.CNAME:
+      case Type.PTR:
+      case Type.DNAME:
+        checkLength(checkName(b, pos, end) == end);
+        break;
+      case Type.SRV:
+        checkLength(length > 6 && checkName(b, pos + 6, end) == end);
+        break;
+      case Type.TXT:
+        while (pos < end) {
+          pos += (b.get(pos) & 0xFF) + 1;
+        }
+        checkLength(pos == end);
+        break;
+      default:
+        return false;
+    }
+    return true;
+  }
+
+  private static void checkLength(boolean valid) throws WireParseException {
+    if (!valid) {
+      throw new WireParseException("invalid record length");
+    }
+  }
+
+  private static void require(ByteBuffer b, int pos, int n) throws WireParseException {
+    if (pos + n > b.limit()) {
+      throw new WireParseException("end of input");
+    }
+  }
+
+  private static int readU16(ByteBuffer b, int pos) {
+    return ((b.get(pos) & 0xFF) << 8) | (b.get(pos + 1) & 0xFF);
+  }
+
+  /* Returns the records of a section for modification, decoding them if parsed lazily. */
+  private List<Record> modifiableSection(int section) {
+    if (sections[section] instanceof LazySection) {
+      sections[section] = new ArrayList<>(sections[section]);
+    }
+    return sections[section];
+  }
+
   /**
    * Replaces the Header with a new one.
    *
@@ -200,7 +505,7 @@ public class Message implements Cloneable {
       sections[section] = new LinkedList<>();
     }
     header.incCount(section);
-    sections[section].add(r);
+    modifiableSection(section).add(r);
   }
 
   /**
@@ -210,7 +515,7 @@ public class Message implements Cloneable {
    * @see net.posick.DNS.Section
    */
   public boolean removeRecord(Record r, int section) {
-    if (sections[section] != null && sections[section].remove(r)) {
+    if (sections[section] != null && modifiableSection(section).remove(r)) {
       header.decCount(section);
       return true;
     } else {
@@ -434,9 +739,20 @@ public class Message implements Cloneable {
     return sets;
   }
 
+  /* Returns a Compression table sized for the names of the records. */
+  private Compression newCompression() {
+    int count = 0;
+    for (List<Record> section : sections) {
+      if (section != null) {
+        count += section.size();
+      }
+    }
+    return new Compression(count);
+  }
+
   void toWire(net.posick.DNS.DNSOutput out) {
     header.toWire(out);
-    Compression c = new Compression();
+    Compression c = newCompression();
     for (int i = 0; i < sections.length; i++) {
       if (sections[i] == null) {
         continue;
@@ -455,8 +771,8 @@ public class Message implements Cloneable {
     int count = 0;
     Record lastrec = null;
 
-    for (int i = 0; i < n; i++) {
-      Record rec = sections[section].get(i);
+    // Iterated rather than indexed, as sections built by addRecord are linked lists
+    for (Record rec : sections[section]) {
       if (section == net.posick.DNS.Section.ADDITIONAL && rec instanceof OPTRecord) {
         continue;
       }
@@ -496,7 +812,7 @@ public class Message implements Cloneable {
 
     int startpos = out.current();
     header.toWire(out);
-    Compression c = new Compression();
+    Compression c = newCompression();
     int flags = header.getFlagsByte();
     int additionalCount = 0;
     for (int i = 0; i < 4; i++) {
@@ -679,7 +995,10 @@ public class Message implements Cloneable {
     Message m = (Message) super.clone();
     m.sections = (List<Record>[]) new List[sections.length];
     for (int i = 0; i < sections.length; i++) {
-      if (sections[i] != null) {
+      if (sections[i] instanceof LazySection) {
+        // Shared, as lazily parsed sections are copied before being modified
+        m.sections[i] = sections[i];
+      } else if (sections[i] != null) {
         m.sections[i] = new LinkedList<>(sections[i]);
       }
     }
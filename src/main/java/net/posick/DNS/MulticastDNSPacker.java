@@ -0,0 +1,138 @@
+package net.posick.DNS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Renders a Message into as many datagrams as are needed to carry all of its records, each no
+ * larger than the maximum payload size. Records are rendered once, in order, into the current
+ * datagram and a new datagram is started when a record does not fit. Every datagram carries the
+ * Message's OPT record, and is signed separately if a TSIG key is given.
+ * <p>
+ * Datagrams split from a query have the TC bit set on all but the last datagram, indicating that
+ * more known answers follow [RFC 6762 section 7.2]. Datagrams split from a response are complete
+ * responses in their own right [RFC 6762 section 17].
+ */
+public class MulticastDNSPacker {
+    private static final int[] SECTIONS = {Section.QUESTION, Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL};
+
+    private final Message message;
+
+    private final int maxLength;
+
+    private final TSIG tsig;
+
+    private final byte[] optBytes;
+
+    private final List<byte[]> datagrams = new ArrayList<>();
+
+    private DNSOutput out;
+
+    private Compression compression;
+
+    private int[] counts;
+
+    private int records;
+
+
+    private MulticastDNSPacker(final Message message, final int maxLength, final TSIG tsig) {
+        this.message = message;
+        this.tsig = tsig;
+
+        OPTRecord opt = message.getOPT();
+        optBytes = opt != null ? opt.toWire(Section.ADDITIONAL) : null;
+
+        int length = maxLength;
+        if (optBytes != null) {
+            length -= optBytes.length;
+        }
+        if (tsig != null) {
+            length -= tsig.recordLength();
+        }
+        this.maxLength = length;
+    }
+
+
+    /**
+     * Renders the message into datagrams no larger than the maximum length.
+     *
+     * @param message   The message
+     * @param maxLength The maximum datagram length
+     * @param tsig      The TSIG key used to sign each datagram, or null
+     * @return The rendered datagrams
+     * @throws IOException If a single record does not fit into a datagram
+     */
+    public static List<byte[]> pack(final Message message, final int maxLength, final TSIG tsig) throws IOException {
+        return new MulticastDNSPacker(message, maxLength, tsig).pack();
+    }
+
+
+    private List<byte[]> pack() throws IOException {
+        begin();
+        for (int section : SECTIONS) {
+            for (Record record : message.getSection(section)) {
+                if ((section == Section.ADDITIONAL) && ((record instanceof OPTRecord) || (record instanceof TSIGRecord))) {
+                    continue;
+                }
+
+                int start = out.current();
+                record.toWire(out, section, compression);
+                if (out.current() > maxLength) {
+                    if (records == 0) {
+                        throw new IOException("DNS Record too large! - " + (out.current() - start) + " bytes in size.");
+                    }
+
+                    out.jump(start);
+                    finish(true);
+                    begin();
+                    record.toWire(out, section, compression);
+                    if (out.current() > maxLength) {
+                        throw new IOException("DNS Record too large! - " + (out.current() - Header.LENGTH) + " bytes in size.");
+                    }
+                }
+                counts[section]++;
+                records++;
+            }
+        }
+        finish(false);
+
+        return datagrams;
+    }
+
+
+    private void begin() {
+        out = new DNSOutput();
+        compression = new Compression();
+        counts = new int[SECTIONS.length];
+        records = 0;
+        message.getHeader().toWire(out);
+    }
+
+
+    private void finish(final boolean more) {
+        Header header = message.getHeader();
+        int flags = header.getFlagsByte();
+        if (!header.getFlag(Flags.QR)) {
+            flags = Header.setFlag(flags, Flags.TC, more);
+        }
+        out.writeU16At(flags, 2);
+
+        int additionalCount = counts[Section.ADDITIONAL];
+        if (optBytes != null) {
+            out.writeByteArray(optBytes);
+            additionalCount++;
+        }
+        for (int section : SECTIONS) {
+            out.writeU16At(section == Section.ADDITIONAL ? additionalCount : counts[section], 4 + (2 * section));
+        }
+
+        if (tsig != null) {
+            TSIGRecord tsigRecord = tsig.generate(message, out.toByteArray(), Rcode.NOERROR, null);
+            tsigRecord.toWire(out, Section.ADDITIONAL, compression);
+            out.writeU16At(additionalCount + 1, 10);
+        }
+
+        datagrams.add(out.toByteArray());
+    }
+}
@@ -329,6 +329,37 @@ public class MulticastDNSUtils {
     }
 
 
+    /**
+     * Creates a successful SetResponse containing the provided RRsets. Used by caches outside of
+     * this package that override Cache.lookup.
+     *
+     * @param rrsets The RRsets answering the lookup
+     * @return A successful SetResponse, or an unknown SetResponse if no RRsets are provided
+     */
+    public static SetResponse newSetResponse(final List<RRset> rrsets) {
+        if ((rrsets == null) || rrsets.isEmpty()) {
+            return SetResponse.ofType(SetResponse.UNKNOWN);
+        }
+
+        SetResponse response = new SetResponse(SetResponse.SUCCESSFUL);
+        for (RRset rrset : rrsets) {
+            response.addRRset(rrset);
+        }
+        return response;
+    }
+
+
+    /**
+     * Creates a CNAME SetResponse for the provided CNAME RRset.
+     *
+     * @param rrset The CNAME RRset
+     * @return A CNAME SetResponse
+     */
+    public static SetResponse newCNAMESetResponse(final RRset rrset) {
+        return new SetResponse(SetResponse.CNAME, rrset);
+    }
+
+
     public static void setDClassForRecord(final Record record, final int dclass) {
         record.dclass = dclass;
     }
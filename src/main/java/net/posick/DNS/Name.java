@@ -668,6 +668,59 @@ public class Name implements Comparable<Name>, Serializable {
     return Arrays.copyOfRange(name, pos, pos + len);
   }
 
+  /**
+   * Retrieve a copy of the nth label of a Name in canonical (lower) case, including the label
+   * length as the first byte.
+   *
+   * @param n The label to be retrieved. The first label is 0.
+   */
+  byte[] getCanonicalLabel(int n) {
+    int pos = offset(n);
+    int len = name[pos];
+    byte[] label = new byte[len + 1];
+    label[0] = (byte) len;
+    for (int i = 1; i <= len; i++) {
+      label[i] = lowercase[name[pos + i] & 0xFF];
+    }
+    return label;
+  }
+
+  /**
+   * Computes a case-insensitive hashcode of the nth label of a Name, without copying the label.
+   *
+   * @param n The label to be hashed. The first label is 0.
+   */
+  int labelHashCode(int n) {
+    int pos = offset(n);
+    int len = name[pos];
+    int code = len;
+    for (int i = 1; i <= len; i++) {
+      code = 31 * code + (lowercase[name[pos + i] & 0xFF] & 0xFF);
+    }
+    return code;
+  }
+
+  /**
+   * Compares the nth label of a Name to a canonical label, ignoring case, without copying the
+   * label.
+   *
+   * @param n The label to be compared. The first label is 0.
+   * @param label A label in canonical case, including the label length as the first byte.
+   */
+  boolean labelEquals(int n, byte[] label) {
+    int pos = offset(n);
+    int len = name[pos];
+    if (len != label[0]) {
+      return false;
+    }
+    for (int i = 1; i <= len; i++) {
+      if (lowercase[name[pos + i] & 0xFF] != label[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   /**
    * Convert the nth label in a Name to a String
    *
@@ -691,15 +744,9 @@ public class Name implements Comparable<Name>, Serializable {
     }
 
     for (int i = 0; i < labels - 1; i++) {
-      Name tname;
-      if (i == 0) {
-        tname = this;
-      } else {
-        tname = new Name(this, i);
-      }
       int pos = -1;
       if (c != null) {
-        pos = c.get(tname);
+        pos = c.get(this, i);
       }
       if (pos >= 0) {
         pos |= LABEL_MASK << 8;
@@ -707,7 +754,7 @@ public class Name implements Comparable<Name>, Serializable {
         return;
       } else {
         if (c != null) {
-          c.add(out.current(), tname);
+          c.add(out.current(), this, i);
         }
         int off = offset(i);
         out.writeByteArray(name, off, name[off] + 1);
@@ -789,6 +836,55 @@ public class Name implements Comparable<Name>, Serializable {
     return true;
   }
 
+  /**
+   * Computes the hashcode of the name formed by the labels of this Name from the nth, which is the
+   * hashcode that Name would have.
+   *
+   * @param n The index of the first label. The first label is 0.
+   */
+  int suffixHashCode(int n) {
+    if (n == 0) {
+      return hashCode();
+    }
+    int code = 0;
+    for (int i = offset(n); i < name.length; i++) {
+      code += (code << 3) + (lowercase[name[i] & 0xFF] & 0xFF);
+    }
+    return code;
+  }
+
+  /**
+   * Are the names formed by the labels of this Name from the nth, and by the labels of another Name
+   * from the mth, equivalent?
+   *
+   * @param n The index of the first label of this Name. The first label is 0.
+   * @param other The other Name.
+   * @param m The index of the first label of the other Name.
+   */
+  boolean suffixEquals(int n, Name other, int m) {
+    if (labels - n != other.labels - m) {
+      return false;
+    }
+    if (other == this && n == m) {
+      return true;
+    }
+    int pos = offset(n);
+    int opos = other.offset(m);
+    for (int i = n; i < labels; i++) {
+      if (name[pos] != other.name[opos]) {
+        return false;
+      }
+      int len = name[pos++];
+      opos++;
+      for (int j = 0; j < len; j++) {
+        if (lowercase[name[pos++] & 0xFF] != lowercase[other.name[opos++] & 0xFF]) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   /** Are these two Names equivalent? */
   @Override
   public boolean equals(Object arg) {
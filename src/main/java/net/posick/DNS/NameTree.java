@@ -0,0 +1,381 @@
+// SPDX-License-Identifier: BSD-3-Clause
+package net.posick.DNS;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+
+/**
+ * A tree of values indexed by absolute domain name, with one node per label and the root name at
+ * the root of the tree. Lookups walk the labels of a name from the right, comparing them in place,
+ * so finding a name, its closest enclosing name or a wildcard does not allocate.
+ *
+ * <p>Lookups never lock. Updates are serialized, and publish new nodes, child tables and values
+ * with volatile writes, so a lookup concurrent with an update sees each node either before or
+ * after the update. Values should therefore be immutable, and replaced rather than modified.
+ *
+ * @param <T> The type of the values
+ */
+public class NameTree<T> implements Serializable {
+  private static final long serialVersionUID = 3146272834102471870L;
+
+  private static final int INITIAL_CHILDREN = 4;
+
+  private static final byte[] ROOT_LABEL = new byte[] {0};
+
+  private static final Name WILD = Name.fromConstantString("*");
+
+  /** A label of a name in the tree, and the value of the name, if any. */
+  static final class Node<T> {
+    /* The label in canonical case, starting with its length */
+    final byte[] label;
+    final int hash;
+    final Node<T> parent;
+    volatile T value;
+
+    /* Open addressed table of children, null until a child is added */
+    volatile AtomicReferenceArray<Node<T>> children;
+
+    /* The number of children, and of children and removed children in the table */
+    int size;
+    int used;
+
+    Node(Node<T> parent, byte[] label, int hash) {
+      this.parent = parent;
+      this.label = label;
+      this.hash = hash;
+    }
+  }
+
+  @SuppressWarnings("rawtypes")
+  private static final Node REMOVED = new Node<>(null, ROOT_LABEL, 0);
+
+  private transient volatile Node<T> root = new Node<>(null, ROOT_LABEL, 0);
+  private transient int size;
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int compareLabels(byte[] a, byte[] b) {
+    int length = Math.min(a[0], b[0]);
+    for (int i = 1; i <= length; i++) {
+      int n = (a[i] & 0xFF) - (b[i] & 0xFF);
+      if (n != 0) {
+        return n;
+      }
+    }
+    return a[0] - b[0];
+  }
+
+  /**
+   * Returns the child of a node for the nth label of a name.
+   *
+   * @return The child, or null if it does not exist
+   */
+  Node<T> child(Node<T> node, Name name, int n) {
+    AtomicReferenceArray<Node<T>> table = node.children;
+    if (table == null) {
+      return null;
+    }
+    int hash = spread(name.labelHashCode(n));
+    int mask = table.length() - 1;
+    for (int i = hash & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+      Node<T> child = table.get(i);
+      if (child == null) {
+        return null;
+      }
+      if (child != REMOVED && child.hash == hash && name.labelEquals(n, child.label)) {
+        return child;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the wildcard child of a node.
+   *
+   * @return The child, or null if it does not exist
+   */
+  Node<T> wildcard(Node<T> node) {
+    return child(node, WILD, 0);
+  }
+
+  /**
+   * Returns the node of a name.
+   *
+   * @return The node, or null if it does not exist
+   */
+  Node<T> getNode(Name name) {
+    if (!name.isAbsolute()) {
+      return null;
+    }
+    Node<T> node = root;
+    for (int n = name.labels() - 2; n >= 0 && node != null; n--) {
+      node = child(node, name, n);
+    }
+    return node;
+  }
+
+  /**
+   * Returns the value of a name.
+   *
+   * @param name The name
+   * @return The value, or null if the name has no value
+   */
+  public T get(Name name) {
+    Node<T> node = getNode(name);
+    return node == null ? null : node.value;
+  }
+
+  /**
+   * Returns the value of a name or, if it has none, the value of its closest enclosing name with a
+   * value.
+   *
+   * @param name The name
+   * @return The value, or null if neither the name nor any enclosing name has a value
+   */
+  public T findClosest(Name name) {
+    if (!name.isAbsolute()) {
+      return null;
+    }
+    Node<T> node = root;
+    T closest = node.value;
+    for (int n = name.labels() - 2; n >= 0; n--) {
+      node = child(node, name, n);
+      if (node == null) {
+        break;
+      }
+      T value = node.value;
+      if (value != null) {
+        closest = value;
+      }
+    }
+    return closest;
+  }
+
+  /**
+   * Sets the value of a name.
+   *
+   * @param name The name, which must be absolute
+   * @param value The value
+   * @return The previous value, or null if the name had no value
+   */
+  public synchronized T put(Name name, T value) {
+    Objects.requireNonNull(value, "value");
+    if (!name.isAbsolute()) {
+      throw new IllegalArgumentException("name " + name + " is not absolute");
+    }
+    Node<T> node = root;
+    for (int n = name.labels() - 2; n >= 0; n--) {
+      Node<T> child = child(node, name, n);
+      if (child == null) {
+        child = addChild(node, name.getCanonicalLabel(n), spread(name.labelHashCode(n)));
+      }
+      node = child;
+    }
+    T old = node.value;
+    node.value = value;
+    if (old == null) {
+      size++;
+    }
+    return old;
+  }
+
+  /**
+   * Removes the value of a name.
+   *
+   * @param name The name
+   * @return The removed value, or null if the name had no value
+   */
+  public synchronized T remove(Name name) {
+    Node<T> node = getNode(name);
+    if (node == null || node.value == null) {
+      return null;
+    }
+    T old = node.value;
+    node.value = null;
+    size--;
+
+    // Remove the nodes left without a value or children
+    while (node != root && node.value == null && node.size == 0) {
+      Node<T> parent = node.parent;
+      removeChild(parent, node);
+      node = parent;
+    }
+    return old;
+  }
+
+  /** Removes all values. */
+  public synchronized void clear() {
+    root = new Node<>(null, ROOT_LABEL, 0);
+    size = 0;
+  }
+
+  /** Returns the number of names with a value. */
+  public synchronized int size() {
+    return size;
+  }
+
+  /** Returns true if no name has a value. */
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Performs an action for each name with a value, in canonical order. The action is performed on
+   * a snapshot of the tree, and may modify it.
+   */
+  public void forEach(BiConsumer<? super Name, ? super T> action) {
+    List<Name> names = new ArrayList<>();
+    List<T> values = new ArrayList<>();
+    collect(root, ROOT_LABEL, names, values);
+    for (int i = 0; i < names.size(); i++) {
+      action.accept(names.get(i), values.get(i));
+    }
+  }
+
+  /** Returns the values, in the canonical order of their names. */
+  public List<T> values() {
+    List<T> values = new ArrayList<>();
+    collect(root, null, null, values);
+    return values;
+  }
+
+  private Node<T> addChild(Node<T> node, byte[] label, int hash) {
+    AtomicReferenceArray<Node<T>> table = node.children;
+    if (table == null) {
+      table = new AtomicReferenceArray<>(INITIAL_CHILDREN);
+      node.children = table;
+    } else if ((node.used + 1) * 4 > table.length() * 3) {
+      table = resize(node);
+    }
+
+    Node<T> child = new Node<>(node, label, hash);
+    int mask = table.length() - 1;
+    int i = hash & mask;
+    while (table.get(i) != null && table.get(i) != REMOVED) {
+      i = (i + 1) & mask;
+    }
+    if (table.get(i) == null) {
+      node.used++;
+    }
+    table.set(i, child);
+    node.size++;
+    return child;
+  }
+
+  private AtomicReferenceArray<Node<T>> resize(Node<T> node) {
+    AtomicReferenceArray<Node<T>> old = node.children;
+    int capacity = INITIAL_CHILDREN;
+    while (capacity < (node.size + 1) * 2) {
+      capacity <<= 1;
+    }
+
+    AtomicReferenceArray<Node<T>> table = new AtomicReferenceArray<>(capacity);
+    int mask = capacity - 1;
+    for (int j = 0; j < old.length(); j++) {
+      Node<T> child = old.get(j);
+      if (child != null && child != REMOVED) {
+        int i = child.hash & mask;
+        while (table.get(i) != null) {
+          i = (i + 1) & mask;
+        }
+        table.set(i, child);
+      }
+    }
+    node.used = node.size;
+    node.children = table;
+    return table;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void removeChild(Node<T> node, Node<T> child) {
+    AtomicReferenceArray<Node<T>> table = node.children;
+    if (table == null) {
+      return;
+    }
+    for (int i = 0; i < table.length(); i++) {
+      if (table.get(i) == child) {
+        node.size--;
+        if (node.size == 0) {
+          node.children = null;
+          node.used = 0;
+        } else {
+          table.set(i, REMOVED);
+        }
+        return;
+      }
+    }
+  }
+
+  private void collect(Node<T> node, byte[] wire, List<Name> names, List<T> values) {
+    T value = node.value;
+    if (value != null) {
+      if (names != null) {
+        names.add(toName(wire));
+      }
+      values.add(value);
+    }
+
+    AtomicReferenceArray<Node<T>> table = node.children;
+    if (table == null) {
+      return;
+    }
+    List<Node<T>> children = new ArrayList<>();
+    for (int i = 0; i < table.length(); i++) {
+      Node<T> child = table.get(i);
+      if (child != null && child != REMOVED) {
+        children.add(child);
+      }
+    }
+    children.sort((a, b) -> compareLabels(a.label, b.label));
+    for (Node<T> child : children) {
+      byte[] childWire = null;
+      if (wire != null) {
+        childWire = Arrays.copyOf(child.label, child.label.length + wire.length);
+        System.arraycopy(wire, 0, childWire, child.label.length, wire.length);
+      }
+      collect(child, childWire, names, values);
+    }
+  }
+
+  private static Name toName(byte[] wire) {
+    try {
+      return new Name(wire);
+    } catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+    List<Name> names = new ArrayList<>();
+    List<T> values = new ArrayList<>();
+    synchronized (this) {
+      collect(root, ROOT_LABEL, names, values);
+    }
+    out.writeInt(names.size());
+    for (int i = 0; i < names.size(); i++) {
+      out.writeObject(names.get(i));
+      out.writeObject(values.get(i));
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    root = new Node<>(null, ROOT_LABEL, 0);
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      put((Name) in.readObject(), (T) in.readObject());
+    }
+  }
+}
@@ -17,12 +17,12 @@ import net.posick.DNS.ZoneTransferIn;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A DNS Zone. This encapsulates all data related to a Zone, and provides convenient lookup methods.
@@ -39,25 +39,32 @@ public class Zone implements Serializable {
   /** A secondary zone */
   public static final int SECONDARY = 2;
 
-  private Map<net.posick.DNS.Name, Object> data;
+  private static final AtomicLong lastVersion = new AtomicLong();
+
+  private NameTree<net.posick.DNS.RRset[]> data;
   private net.posick.DNS.Name origin;
-  private Object originNode;
   private net.posick.DNS.RRset NS;
   private net.posick.DNS.SOARecord SOA;
-  private boolean hasWild;
+  private volatile boolean hasWild;
+  private volatile long version = lastVersion.incrementAndGet();
 
   class ZoneIterator implements Iterator<net.posick.DNS.RRset> {
-    private final Iterator<Map.Entry<net.posick.DNS.Name, Object>> zentries;
+    private final Iterator<net.posick.DNS.RRset[]> zentries;
     private net.posick.DNS.RRset[] current;
     private int count;
     private boolean wantLastSOA;
 
     ZoneIterator(boolean axfr) {
-      synchronized (Zone.this) {
-        zentries = data.entrySet().iterator();
-      }
+      List<net.posick.DNS.RRset[]> nodes = new ArrayList<>();
+      data.forEach(
+          (name, sets) -> {
+            if (!name.equals(origin)) {
+              nodes.add(sets);
+            }
+          });
+      zentries = nodes.iterator();
       wantLastSOA = axfr;
-      net.posick.DNS.RRset[] sets = allRRsets(originNode);
+      net.posick.DNS.RRset[] sets = data.get(origin);
       current = new net.posick.DNS.RRset[sets.length];
       for (int i = 0, j = 2; i < sets.length; i++) {
         int type = sets[i].getType();
@@ -83,17 +90,13 @@ public class Zone implements Serializable {
       }
       if (current == null) {
         wantLastSOA = false;
-        return oneRRset(originNode, net.posick.DNS.Type.SOA);
+        return oneRRset(data.get(origin), net.posick.DNS.Type.SOA);
       }
       net.posick.DNS.RRset set = current[count++];
       if (count == current.length) {
         current = null;
         while (zentries.hasNext()) {
-          Map.Entry<net.posick.DNS.Name, Object> entry = zentries.next();
-          if (entry.getKey().equals(origin)) {
-            continue;
-          }
-          net.posick.DNS.RRset[] sets = allRRsets(entry.getValue());
+          net.posick.DNS.RRset[] sets = zentries.next();
           if (sets.length == 0) {
             continue;
           }
@@ -112,7 +115,7 @@ public class Zone implements Serializable {
   }
 
   private void validate() throws IOException {
-    originNode = exactName(origin);
+    net.posick.DNS.RRset[] originNode = data.get(origin);
     if (originNode == null) {
       throw new IOException(origin + ": no data specified");
     }
@@ -149,7 +152,7 @@ public class Zone implements Serializable {
    * @see Master
    */
   public Zone(net.posick.DNS.Name zone, String file) throws IOException {
-    data = new TreeMap<>();
+    data = new NameTree<>();
 
     if (zone == null) {
       throw new IllegalArgumentException("no zone name specified");
@@ -173,7 +176,7 @@ public class Zone implements Serializable {
    * @see Master
    */
   public Zone(net.posick.DNS.Name zone, net.posick.DNS.Record[] records) throws IOException {
-    data = new TreeMap<>();
+    data = new NameTree<>();
 
     if (zone == null) {
       throw new IllegalArgumentException("no zone name specified");
@@ -187,7 +190,8 @@ public class Zone implements Serializable {
 
   private void fromXFR(net.posick.DNS.ZoneTransferIn xfrin) throws IOException, net.posick.DNS.ZoneTransferException {
     synchronized (this) {
-      data = new TreeMap<>();
+      data = new NameTree<>();
+      modified();
     }
 
     origin = xfrin.getName();
@@ -238,40 +242,36 @@ public class Zone implements Serializable {
     return SOA;
   }
 
-  /** Returns the Zone's class */
-  public int getDClass() {
-    return DClass.IN;
+  /**
+   * Returns the version of the Zone's data, which changes whenever the Zone is modified. Versions
+   * are unique across all zones and increase with every modification, so a Zone whose version is
+   * greater than the {@link #getLastVersion() last version} read before a lookup was modified
+   * during the lookup.
+   */
+  public long getVersion() {
+    return version;
   }
 
-  private synchronized Object exactName(net.posick.DNS.Name name) {
-    return data.get(name);
+  /** Returns the most recent version of any Zone. */
+  public static long getLastVersion() {
+    return lastVersion.get();
   }
 
-  private synchronized net.posick.DNS.RRset[] allRRsets(Object types) {
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<net.posick.DNS.RRset> typelist = (List<net.posick.DNS.RRset>) types;
-      return typelist.toArray(new net.posick.DNS.RRset[0]);
-    } else {
-      net.posick.DNS.RRset set = (net.posick.DNS.RRset) types;
-      return new net.posick.DNS.RRset[] {set};
-    }
+  /* Must be called after the modified data is published, as the volatile store orders them */
+  private void modified() {
+    version = lastVersion.incrementAndGet();
+  }
+
+  /** Returns the Zone's class */
+  public int getDClass() {
+    return DClass.IN;
   }
 
-  private synchronized net.posick.DNS.RRset oneRRset(Object types, int type) {
+  private static net.posick.DNS.RRset oneRRset(net.posick.DNS.RRset[] sets, int type) {
     if (type == net.posick.DNS.Type.ANY) {
       throw new IllegalArgumentException("oneRRset(ANY)");
     }
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<net.posick.DNS.RRset> list = (List<net.posick.DNS.RRset>) types;
-      for (net.posick.DNS.RRset set : list) {
-        if (set.getType() == type) {
-          return set;
-        }
-      }
-    } else {
-      net.posick.DNS.RRset set = (net.posick.DNS.RRset) types;
+    for (net.posick.DNS.RRset set : sets) {
       if (set.getType() == type) {
         return set;
       }
@@ -279,76 +279,70 @@ public class Zone implements Serializable {
     return null;
   }
 
-  private synchronized net.posick.DNS.RRset findRRset(net.posick.DNS.Name name, int type) {
-    Object types = exactName(name);
-    if (types == null) {
+  private net.posick.DNS.RRset findRRset(net.posick.DNS.Name name, int type) {
+    net.posick.DNS.RRset[] sets = data.get(name);
+    if (sets == null) {
       return null;
     }
-    return oneRRset(types, type);
+    return oneRRset(sets, type);
   }
 
+  /*
+   * The RRsets of a name are replaced, never modified, so that lookups need
+   * not lock the Zone. The version is changed only once the new RRsets are
+   * published, so a lookup that reads the new version also reads the new data.
+   */
   private synchronized void addRRset(net.posick.DNS.Name name, net.posick.DNS.RRset rrset) {
     if (!hasWild && name.isWild()) {
       hasWild = true;
     }
-    Object types = data.get(name);
-    if (types == null) {
-      data.put(name, rrset);
-      return;
+    data.put(name, withRRset(data.get(name), rrset));
+    modified();
+  }
+
+  private static net.posick.DNS.RRset[] withRRset(net.posick.DNS.RRset[] sets, net.posick.DNS.RRset rrset) {
+    if (sets == null) {
+      return new net.posick.DNS.RRset[] {rrset};
     }
     int rtype = rrset.getType();
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<net.posick.DNS.RRset> list = (List<net.posick.DNS.RRset>) types;
-      for (int i = 0; i < list.size(); i++) {
-        net.posick.DNS.RRset set = list.get(i);
-        if (set.getType() == rtype) {
-          list.set(i, rrset);
-          return;
-        }
-      }
-      list.add(rrset);
-    } else {
-      net.posick.DNS.RRset set = (net.posick.DNS.RRset) types;
-      if (set.getType() == rtype) {
-        data.put(name, rrset);
-      } else {
-        LinkedList<net.posick.DNS.RRset> list = new LinkedList<>();
-        list.add(set);
-        list.add(rrset);
-        data.put(name, list);
+    for (int i = 0; i < sets.length; i++) {
+      if (sets[i].getType() == rtype) {
+        net.posick.DNS.RRset[] replaced = sets.clone();
+        replaced[i] = rrset;
+        return replaced;
       }
     }
+    net.posick.DNS.RRset[] added = Arrays.copyOf(sets, sets.length + 1);
+    added[sets.length] = rrset;
+    return added;
   }
 
   private synchronized void removeRRset(net.posick.DNS.Name name, int type) {
-    Object types = data.get(name);
-    if (types == null) {
+    net.posick.DNS.RRset[] sets = data.get(name);
+    if (sets == null) {
       return;
     }
-    if (types instanceof List) {
-      @SuppressWarnings("unchecked")
-      List<net.posick.DNS.RRset> list = (List<net.posick.DNS.RRset>) types;
-      for (int i = 0; i < list.size(); i++) {
-        net.posick.DNS.RRset set = list.get(i);
-        if (set.getType() == type) {
-          list.remove(i);
-          if (list.size() == 0) {
-            data.remove(name);
-          }
-          return;
+    for (int i = 0; i < sets.length; i++) {
+      if (sets[i].getType() == type) {
+        if (sets.length == 1) {
+          data.remove(name);
+        } else {
+          net.posick.DNS.RRset[] removed = new net.posick.DNS.RRset[sets.length - 1];
+          System.arraycopy(sets, 0, removed, 0, i);
+          System.arraycopy(sets, i + 1, removed, i, sets.length - i - 1);
+          data.put(name, removed);
         }
-      }
-    } else {
-      net.posick.DNS.RRset set = (net.posick.DNS.RRset) types;
-      if (set.getType() != type) {
+        modified();
         return;
       }
-      data.remove(name);
     }
   }
 
-  private synchronized net.posick.DNS.SetResponse lookup(net.posick.DNS.Name name, int type) {
+  /*
+   * Walks the name tree from the origin towards the name, one label at a
+   * time, without locking the Zone or allocating names.
+   */
+  private net.posick.DNS.SetResponse lookup(net.posick.DNS.Name name, int type) {
     if (!name.subdomain(origin)) {
       return net.posick.DNS.SetResponse.ofType(net.posick.DNS.SetResponse.NXDOMAIN);
     }
@@ -356,78 +350,90 @@ public class Zone implements Serializable {
     int labels = name.labels();
     int olabels = origin.labels();
 
-    for (int tlabels = olabels; tlabels <= labels; tlabels++) {
+    NameTree.Node<net.posick.DNS.RRset[]> node = data.getNode(origin);
+    if (node == null) {
+      return net.posick.DNS.SetResponse.ofType(net.posick.DNS.SetResponse.NXDOMAIN);
+    }
+    int tlabels = olabels;
+    while (true) {
       boolean isOrigin = tlabels == olabels;
       boolean isExact = tlabels == labels;
 
-      net.posick.DNS.Name tname;
-      if (isOrigin) {
-        tname = origin;
-      } else if (isExact) {
-        tname = name;
-      } else {
-        tname = new net.posick.DNS.Name(name, labels - tlabels);
-      }
-
-      Object types = exactName(tname);
-      if (types == null) {
-        continue;
-      }
-
-      /* If this is a delegation, return that. */
-      if (!isOrigin) {
-        net.posick.DNS.RRset ns = oneRRset(types, net.posick.DNS.Type.NS);
-        if (ns != null) {
-          return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.DELEGATION, ns);
+      net.posick.DNS.RRset[] types = node.value;
+      if (types != null) {
+        /* If this is a delegation, return that. */
+        if (!isOrigin) {
+          net.posick.DNS.RRset ns = oneRRset(types, net.posick.DNS.Type.NS);
+          if (ns != null) {
+            return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.DELEGATION, ns);
+          }
         }
-      }
 
-      /* If this is an ANY lookup, return everything. */
-      if (isExact && type == net.posick.DNS.Type.ANY) {
-        net.posick.DNS.SetResponse sr = new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.SUCCESSFUL);
-        for (net.posick.DNS.RRset set : allRRsets(types)) {
-          sr.addRRset(set);
+        /* If this is an ANY lookup, return everything. */
+        if (isExact && type == net.posick.DNS.Type.ANY) {
+          net.posick.DNS.SetResponse sr = new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.SUCCESSFUL);
+          for (net.posick.DNS.RRset set : types) {
+            sr.addRRset(set);
+          }
+          return sr;
         }
-        return sr;
-      }
 
-      /*
-       * If this is the name, look for the actual type or a CNAME.
-       * Otherwise, look for a DNAME.
-       */
-      if (isExact) {
-        net.posick.DNS.RRset rrset = oneRRset(types, type);
-        if (rrset != null) {
-          return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.SUCCESSFUL, rrset);
-        }
-        rrset = oneRRset(types, net.posick.DNS.Type.CNAME);
-        if (rrset != null) {
-          return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.CNAME, rrset);
+        /*
+         * If this is the name, look for the actual type or a CNAME.
+         * Otherwise, look for a DNAME.
+         */
+        if (isExact) {
+          net.posick.DNS.RRset rrset = oneRRset(types, type);
+          if (rrset != null) {
+            return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.SUCCESSFUL, rrset);
+          }
+          rrset = oneRRset(types, net.posick.DNS.Type.CNAME);
+          if (rrset != null) {
+            return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.CNAME, rrset);
+          }
+        } else {
+          net.posick.DNS.RRset rrset = oneRRset(types, net.posick.DNS.Type.DNAME);
+          if (rrset != null) {
+            return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.DNAME, rrset);
+          }
         }
-      } else {
-        net.posick.DNS.RRset rrset = oneRRset(types, net.posick.DNS.Type.DNAME);
-        if (rrset != null) {
-          return new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.DNAME, rrset);
+
+        /* We found the name, but not the type. */
+        if (isExact) {
+          return net.posick.DNS.SetResponse.ofType(net.posick.DNS.SetResponse.NXRRSET);
         }
       }
 
-      /* We found the name, but not the type. */
       if (isExact) {
-        return net.posick.DNS.SetResponse.ofType(net.posick.DNS.SetResponse.NXRRSET);
+        break;
       }
+      NameTree.Node<net.posick.DNS.RRset[]> child = data.child(node, name, labels - tlabels - 1);
+      if (child == null) {
+        break;
+      }
+      node = child;
+      tlabels++;
     }
 
+    /*
+     * The wildcards that could match are those of the closest encloser and
+     * its ancestors, up to the origin.
+     */
     if (hasWild) {
-      for (int i = 0; i < labels - olabels; i++) {
-        net.posick.DNS.Name tname = name.wild(i + 1);
-        Object types = exactName(tname);
+      if (tlabels == labels) {
+        node = node.parent;
+        tlabels--;
+      }
+      for (; tlabels >= olabels; tlabels--, node = node.parent) {
+        NameTree.Node<net.posick.DNS.RRset[]> wild = data.wildcard(node);
+        net.posick.DNS.RRset[] types = wild == null ? null : wild.value;
         if (types == null) {
           continue;
         }
 
         if (type == Type.ANY) {
           net.posick.DNS.SetResponse sr = new net.posick.DNS.SetResponse(net.posick.DNS.SetResponse.SUCCESSFUL);
-          for (net.posick.DNS.RRset set : allRRsets(types)) {
+          for (net.posick.DNS.RRset set : types) {
             sr.addRRset(expandSet(set, name));
           }
           return sr;
@@ -476,11 +482,7 @@ public class Zone implements Serializable {
    * @see net.posick.DNS.RRset
    */
   public net.posick.DNS.RRset findExactMatch(net.posick.DNS.Name name, int type) {
-    Object types = exactName(name);
-    if (types == null) {
-      return null;
-    }
-    return oneRRset(types, type);
+    return findRRset(name, type);
   }
 
   /**
@@ -507,10 +509,11 @@ public class Zone implements Serializable {
       net.posick.DNS.RRset rrset = findRRset(name, rtype);
       if (rrset == null) {
         rrset = new net.posick.DNS.RRset(r);
-        addRRset(name, rrset);
       } else {
+        rrset = new net.posick.DNS.RRset(rrset);
         rrset.addRR(r);
       }
+      addRRset(name, rrset);
     }
   }
 
@@ -531,7 +534,9 @@ public class Zone implements Serializable {
       if (rrset.size() == 1 && rrset.first().equals(r)) {
         removeRRset(name, rtype);
       } else {
+        rrset = new net.posick.DNS.RRset(rrset);
         rrset.deleteRR(r);
+        addRRset(name, rrset);
       }
     }
   }
@@ -550,8 +555,7 @@ public class Zone implements Serializable {
     return new ZoneIterator(true);
   }
 
-  private void nodeToString(StringBuffer sb, Object node) {
-    net.posick.DNS.RRset[] sets = allRRsets(node);
+  private void nodeToString(StringBuffer sb, net.posick.DNS.RRset[] sets) {
     for (RRset rrset : sets) {
       rrset.rrs().forEach(r -> sb.append(r).append('\n'));
       rrset.sigs().forEach(r -> sb.append(r).append('\n'));
@@ -561,12 +565,13 @@ public class Zone implements Serializable {
   /** Returns the contents of the Zone in master file format. */
   public synchronized String toMasterFile() {
     StringBuffer sb = new StringBuffer();
-    nodeToString(sb, originNode);
-    for (Map.Entry<Name, Object> entry : data.entrySet()) {
-      if (!origin.equals(entry.getKey())) {
-        nodeToString(sb, entry.getValue());
-      }
-    }
+    nodeToString(sb, data.get(origin));
+    data.forEach(
+        (name, sets) -> {
+          if (!origin.equals(name)) {
+            nodeToString(sb, sets);
+          }
+        });
     return sb.toString();
   }
 
@@ -3,6 +3,7 @@ package net.posick.DNS.tools;
 
 import net.posick.DNS.tools.dig;
 import net.posick.DNS.tools.jnamed;
+import net.posick.DNS.tools.jnamedperf;
 import net.posick.DNS.tools.lookup;
 import net.posick.DNS.tools.primary;
 import net.posick.DNS.tools.update;
@@ -15,6 +16,7 @@ public class Tools {
       System.out.println("  Commands:");
       System.out.println("    dig");
       System.out.println("    jnamed");
+      System.out.println("    jnamedperf");
       System.out.println("    lookup");
       System.out.println("    primary");
       System.out.println("    update");
@@ -33,6 +35,9 @@ public class Tools {
       case "jnamed":
         jnamed.main(programArgs);
         break;
+      case "jnamedperf":
+        jnamedperf.main(programArgs);
+        break;
       case "lookup":
         lookup.main(programArgs);
         break;
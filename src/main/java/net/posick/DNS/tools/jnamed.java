@@ -2,25 +2,41 @@
 // Copyright (c) 1999-2004 Brian Wellington (bwelling@xbill.org)
 package net.posick.DNS.tools;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.InterruptedIOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.posick.DNS.Address;
 import net.posick.DNS.CNAMERecord;
 import net.posick.DNS.Cache;
@@ -33,6 +49,7 @@ import net.posick.DNS.Header;
 import net.posick.DNS.Message;
 import net.posick.DNS.Name;
 import net.posick.DNS.NameTooLongException;
+import net.posick.DNS.NameTree;
 import net.posick.DNS.OPTRecord;
 import net.posick.DNS.Opcode;
 import net.posick.DNS.RRset;
@@ -52,8 +69,111 @@ public class jnamed {
   static final int FLAG_DNSSECOK = 1;
   static final int FLAG_SIGONLY = 2;
 
+  /** The size of the UDP receive buffers, large enough for any EDNS payload size. */
+  static final int UDP_BUFFER_SIZE = 65535;
+
+  /** The time a TCP connection may be idle between queries, in milliseconds. */
+  static final int TCP_IDLE_TIMEOUT = 10000;
+
+  /** The number of UDP serving threads per address and port. */
+  int udpThreads = Runtime.getRuntime().availableProcessors();
+
+  /** The maximum number of concurrently served TCP connections. */
+  int tcpThreads = 64;
+
+  ThreadPoolExecutor tcpWorkers;
+
+  /** The maximum number of cached responses, 0 disabling the response cache. */
+  int responseCacheSize = 10000;
+
+  /*
+   * Rendered responses, keyed by the query without its ID, so that repeated
+   * queries are answered by patching the ID of a copy of the cached response.
+   * The least recently used response is evicted once the cache is full.
+   */
+  Map<QueryKey, CachedResponse> responses =
+      Collections.synchronizedMap(
+          new LinkedHashMap<QueryKey, CachedResponse>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<QueryKey, CachedResponse> eldest) {
+              return size() > responseCacheSize;
+            }
+          });
+
+  /** A query, less its ID, and the transport it was received on. */
+  static final class QueryKey {
+    final byte[] query;
+    final boolean tcp;
+    final int hashCode;
+
+    QueryKey(byte[] query, boolean tcp) {
+      this.query = query;
+      this.tcp = tcp;
+      int hash = tcp ? 1 : 0;
+      for (int i = 2; i < query.length; i++) {
+        hash = 31 * hash + query[i];
+      }
+      hashCode = hash;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof QueryKey)) {
+        return false;
+      }
+      QueryKey that = (QueryKey) o;
+      return hashCode == that.hashCode
+          && tcp == that.tcp
+          && Arrays.equals(query, 2, query.length, that.query, 2, that.query.length);
+    }
+  }
+
+  /*
+   * The zones that a response was rendered from, and their versions when it
+   * was rendered. The response is stale once any of the zones has been
+   * modified.
+   */
+  static final class ResponseZones {
+    final Zone[] zones;
+    final long[] versions;
+
+    ResponseZones(Zone[] zones, long[] versions) {
+      this.zones = zones;
+      this.versions = versions;
+    }
+
+    boolean isCurrent() {
+      for (int i = 0; i < zones.length; i++) {
+        if (zones[i].getVersion() != versions[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /* A rendered response, and the zones it was rendered from. */
+  static final class CachedResponse {
+    final byte[] response;
+    final ResponseZones zones;
+
+    CachedResponse(byte[] response, ResponseZones zones) {
+      this.response = response;
+      this.zones = zones;
+    }
+
+    boolean isCurrent() {
+      return zones.isCurrent();
+    }
+  }
+
   Map<Integer, Cache> caches;
-  Map<Name, Zone> znames;
+  NameTree<Zone> znames;
   Map<Name, TSIG> TSIGs;
 
   private static String addrport(InetAddress addr, int port) {
@@ -76,8 +196,8 @@ public class jnamed {
     }
 
     try {
-      caches = new HashMap<Integer, Cache>();
-      znames = new HashMap<>();
+      caches = new ConcurrentHashMap<>();
+      znames = new NameTree<>();
       TSIGs = new HashMap<Name, TSIG>();
 
       String line;
@@ -121,6 +241,15 @@ public class jnamed {
             String addr = st.nextToken();
             addresses.add(Address.getByAddress(addr));
             break;
+          case "threads":
+            udpThreads = Integer.parseInt(st.nextToken());
+            break;
+          case "tcpthreads":
+            tcpThreads = Integer.parseInt(st.nextToken());
+            break;
+          case "responsecache":
+            responseCacheSize = Integer.parseInt(st.nextToken());
+            break;
           default:
             System.out.println("unknown keyword: " + keyword);
             break;
@@ -135,6 +264,17 @@ public class jnamed {
         addresses.add(Address.getByAddress("0.0.0.0"));
       }
 
+      AtomicInteger tcpThreadCount = new AtomicInteger();
+      tcpWorkers =
+          new ThreadPoolExecutor(
+              tcpThreads,
+              tcpThreads,
+              60,
+              TimeUnit.SECONDS,
+              new ArrayBlockingQueue<>(tcpThreads),
+              r -> new Thread(r, "jnamed-tcp-" + tcpThreadCount.incrementAndGet()));
+      tcpWorkers.allowCoreThreadTimeOut(true);
+
       for (Object address : addresses) {
         InetAddress addr = (InetAddress) address;
         for (Object o : ports) {
@@ -157,6 +297,7 @@ public class jnamed {
     }
     Zone newzone = new Zone(origin, zonefile);
     znames.put(newzone.getOrigin(), newzone);
+    responses.clear();
   }
 
   public void addSecondaryZone(String zone, String remote)
@@ -164,6 +305,7 @@ public class jnamed {
     Name zname = Name.fromString(zone, Name.root);
     Zone newzone = new Zone(zname, DClass.IN, remote);
     znames.put(zname, newzone);
+    responses.clear();
   }
 
   public void addTSIG(String algstr, String namestr, String key) throws IOException {
@@ -172,29 +314,11 @@ public class jnamed {
   }
 
   public Cache getCache(int dclass) {
-    Cache c = caches.get(dclass);
-    if (c == null) {
-      c = new Cache(dclass);
-      caches.put(dclass, c);
-    }
-    return c;
+    return caches.computeIfAbsent(dclass, c -> new Cache(c));
   }
 
   public Zone findBestZone(Name name) {
-    Zone foundzone;
-    foundzone = znames.get(name);
-    if (foundzone != null) {
-      return foundzone;
-    }
-    int labels = name.labels();
-    for (int i = 1; i < labels; i++) {
-      Name tname = new Name(name, i);
-      foundzone = znames.get(tname);
-      if (foundzone != null) {
-        return foundzone;
-      }
-    }
-    return null;
+    return znames.findClosest(name);
   }
 
   public <T extends Record> RRset findExactMatch(Name name, int type, int dclass, boolean glue) {
@@ -470,12 +594,14 @@ public class jnamed {
       return errorMessage(query, Rcode.NOTIMP);
     }
 
+    long lastVersion = Zone.getLastVersion();
     byte rcode = addAnswer(response, name, type, dclass, 0, flags);
     if (rcode != Rcode.NOERROR && rcode != Rcode.NXDOMAIN) {
       return errorMessage(query, rcode);
     }
 
     addAdditional(response, flags);
+    ResponseZones zones = tsig == null ? findResponseZones(response, lastVersion) : null;
 
     if (queryOPT != null) {
       int optflags = (flags == FLAG_DNSSECOK) ? ExtendedFlags.DO : 0;
@@ -484,7 +610,85 @@ public class jnamed {
     }
 
     response.setTSIG(tsig, Rcode.NOERROR, queryTSIG);
-    return response.toWire(maxLength);
+    byte[] out = response.toWire(maxLength);
+    if (zones != null) {
+      cacheResponse(in, s != null, out, zones);
+    }
+    return out;
+  }
+
+  /*
+   * Returns the zones that the response was rendered from, with their
+   * versions, or null if it depends on data outside of the zones, such as the
+   * cache, or if one of the zones was modified since lastVersion. The
+   * versions are read before the response is rendered, so that a zone
+   * modified while rendering makes the cached response stale.
+   */
+  ResponseZones findResponseZones(Message response, long lastVersion) {
+    Set<Zone> zones = new LinkedHashSet<>();
+    for (int section = Section.QUESTION; section <= Section.ADDITIONAL; section++) {
+      for (Record r : response.getSection(section)) {
+        if (!addResponseZone(zones, r.getName())) {
+          return null;
+        }
+        Name additional = r.getAdditionalName();
+        if (additional != null && !addResponseZone(zones, additional)) {
+          return null;
+        }
+        if (r instanceof CNAMERecord
+            && !addResponseZone(zones, ((CNAMERecord) r).getTarget())) {
+          return null;
+        }
+      }
+    }
+    Zone[] found = zones.toArray(new Zone[0]);
+    long[] versions = new long[found.length];
+    for (int i = 0; i < found.length; i++) {
+      versions[i] = found[i].getVersion();
+      if (versions[i] > lastVersion) {
+        return null;
+      }
+    }
+    return new ResponseZones(found, versions);
+  }
+
+  private boolean addResponseZone(Set<Zone> zones, Name name) {
+    Zone zone = findBestZone(name);
+    if (zone == null) {
+      return false;
+    }
+    zones.add(zone);
+    return true;
+  }
+
+  void cacheResponse(byte[] in, boolean tcp, byte[] out, ResponseZones zones) {
+    if (responseCacheSize <= 0) {
+      return;
+    }
+    responses.put(new QueryKey(in.clone(), tcp), new CachedResponse(out, zones));
+  }
+
+  /*
+   * Returns a copy of the cached response to the query, with the query's ID,
+   * or null if no current response is cached.
+   */
+  byte[] cachedReply(byte[] in, boolean tcp) {
+    if (in.length < Header.LENGTH || responses.isEmpty()) {
+      return null;
+    }
+    QueryKey key = new QueryKey(in, tcp);
+    CachedResponse cached = responses.get(key);
+    if (cached == null) {
+      return null;
+    }
+    if (!cached.isCurrent()) {
+      responses.remove(key, cached);
+      return null;
+    }
+    byte[] out = cached.response.clone();
+    out[0] = in[0];
+    out[1] = in[1];
+    return out;
   }
 
   byte[] buildErrorMessage(Header header, int rcode, Record question) {
@@ -514,33 +718,71 @@ public class jnamed {
     return buildErrorMessage(query.getHeader(), rcode, query.getQuestion());
   }
 
+  /*
+   * Parses and answers a query, returning null if the caller doesn't need to
+   * do anything.
+   */
+  byte[] reply(byte[] in, Socket s) {
+    byte[] cached = cachedReply(in, s != null);
+    if (cached != null) {
+      return cached;
+    }
+    try {
+      Message query = new Message(in);
+      return generateReply(query, in, s);
+    } catch (IOException e) {
+      return formerrMessage(in);
+    }
+  }
+
+  /*
+   * Serves the queries sent on a TCP connection until the client closes it
+   * or it has been idle for TCP_IDLE_TIMEOUT. Pipelined queries are answered
+   * in order, and responses are flushed once no further query is buffered.
+   */
   public void TCPclient(Socket s) {
     try {
-      int inLength;
-      DataInputStream dataIn;
-      DataOutputStream dataOut;
-      byte[] in;
+      s.setSoTimeout(TCP_IDLE_TIMEOUT);
+      DataInputStream dataIn = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      DataOutputStream dataOut =
+          new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+      while (true) {
+        if (dataIn.available() == 0) {
+          dataOut.flush();
+        }
 
-      InputStream is = s.getInputStream();
-      dataIn = new DataInputStream(is);
-      inLength = dataIn.readUnsignedShort();
-      in = new byte[inLength];
-      dataIn.readFully(in);
+        int inLength;
+        try {
+          inLength = dataIn.readUnsignedShort();
+        } catch (EOFException | SocketTimeoutException e) {
+          return;
+        }
+        byte[] in = new byte[inLength];
+        dataIn.readFully(in);
 
-      Message query;
-      byte[] response;
-      try {
-        query = new Message(in);
-        response = generateReply(query, in, s);
+        byte[] response = cachedReply(in, true);
         if (response == null) {
-          return;
+          try {
+            Message query = new Message(in);
+            Record question = query.getQuestion();
+            if (question != null && question.getType() == Type.AXFR) {
+              // The transfer is written directly to the socket
+              dataOut.flush();
+            }
+            response = generateReply(query, in, s);
+          } catch (IOException e) {
+            response = formerrMessage(in);
+          }
+          if (response == null) {
+            if (s.isClosed()) {
+              return;
+            }
+            continue;
+          }
         }
-      } catch (IOException e) {
-        response = formerrMessage(in);
+        dataOut.writeShort(response.length);
+        dataOut.write(response);
       }
-      dataOut = new DataOutputStream(s.getOutputStream());
-      dataOut.writeShort(response.length);
-      dataOut.write(response);
     } catch (IOException e) {
       System.out.println(
           "TCPclient(" + addrport(s.getLocalAddress(), s.getLocalPort()) + "): " + e);
@@ -556,62 +798,107 @@ public class jnamed {
     try (ServerSocket sock = new ServerSocket(port, 128, addr)) {
       while (true) {
         final Socket s = sock.accept();
-        Thread t;
-        t = new Thread(() -> TCPclient(s));
-        t.start();
+        try {
+          tcpWorkers.execute(() -> TCPclient(s));
+        } catch (RejectedExecutionException e) {
+          System.out.println(
+              "serveTCP("
+                  + addrport(addr, port)
+                  + "): too many connections, closing "
+                  + addrport(s.getInetAddress(), s.getPort()));
+          try {
+            s.close();
+          } catch (IOException ex) {
+          }
+        }
       }
     } catch (IOException e) {
       System.out.println("serveTCP(" + addrport(addr, port) + "): " + e);
     }
   }
 
-  public void serveUDP(InetAddress addr, int port) {
-    try (DatagramSocket sock = new DatagramSocket(port, addr)) {
-      final short udpLength = 512;
-      byte[] in = new byte[udpLength];
-      DatagramPacket indp = new DatagramPacket(in, in.length);
-      DatagramPacket outdp = null;
+  /*
+   * Opens a UDP socket bound to the address and port. When reusePort is set,
+   * several sockets can be bound to the same address and port, the kernel
+   * distributing the received datagrams between them.
+   */
+  DatagramChannel openUDP(InetAddress addr, int port, boolean reusePort) throws IOException {
+    DatagramChannel channel = DatagramChannel.open();
+    try {
+      if (reusePort) {
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+      }
+      channel.bind(new InetSocketAddress(addr, port));
+      return channel;
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /*
+   * Answers the queries received on a UDP socket, which may be shared with
+   * other serving threads.
+   */
+  public void serveUDP(DatagramChannel channel, InetAddress addr, int port) {
+    ByteBuffer buffer = ByteBuffer.allocate(UDP_BUFFER_SIZE);
+    try {
       while (true) {
-        indp.setLength(in.length);
-        try {
-          sock.receive(indp);
-        } catch (InterruptedIOException e) {
+        buffer.clear();
+        SocketAddress remote = channel.receive(buffer);
+        buffer.flip();
+        byte[] in = new byte[buffer.remaining()];
+        buffer.get(in);
+
+        byte[] response = reply(in, null);
+        if (response == null) {
           continue;
         }
-        Message query;
-        byte[] response;
-        try {
-          query = new Message(in);
-          response = generateReply(query, in, null);
-          if (response == null) {
-            continue;
-          }
-        } catch (IOException e) {
-          response = formerrMessage(in);
-        }
-        if (outdp == null) {
-          outdp = new DatagramPacket(response, response.length, indp.getAddress(), indp.getPort());
-        } else {
-          outdp.setData(response);
-          outdp.setLength(response.length);
-          outdp.setAddress(indp.getAddress());
-          outdp.setPort(indp.getPort());
-        }
-        sock.send(outdp);
+        channel.send(ByteBuffer.wrap(response), remote);
       }
     } catch (IOException e) {
       System.out.println("serveUDP(" + addrport(addr, port) + "): " + e);
+    } finally {
+      try {
+        channel.close();
+      } catch (IOException e) {
+      }
+    }
+  }
+
+  public void serveUDP(InetAddress addr, int port) {
+    try {
+      serveUDP(openUDP(addr, port, false), addr, port);
+    } catch (IOException e) {
+      System.out.println("serveUDP(" + addrport(addr, port) + "): " + e);
     }
   }
 
   public void addTCP(final InetAddress addr, final int port) {
-    Thread t = new Thread(() -> serveTCP(addr, port));
+    Thread t = new Thread(() -> serveTCP(addr, port), "jnamed-tcp-" + addrport(addr, port));
     t.start();
   }
 
-  public void addUDP(final InetAddress addr, final int port) {
-    Thread t = new Thread(() -> serveUDP(addr, port));
-    t.start();
+  /*
+   * Starts udpThreads serving threads for the address and port, each with
+   * its own SO_REUSEPORT socket where supported, or sharing a single socket
+   * otherwise.
+   */
+  public void addUDP(final InetAddress addr, final int port) throws IOException {
+    boolean reusePort;
+    try (DatagramChannel probe = DatagramChannel.open()) {
+      reusePort =
+          udpThreads > 1
+              && probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+    }
+
+    DatagramChannel shared = reusePort ? null : openUDP(addr, port, false);
+    for (int i = 0; i < udpThreads; i++) {
+      DatagramChannel channel = reusePort ? openUDP(addr, port, true) : shared;
+      String threadName = "jnamed-udp-" + addrport(addr, port) + "-" + i;
+      Thread t = new Thread(() -> serveUDP(channel, addr, port), threadName);
+      t.start();
+    }
   }
 
   public static void main(String[] args) {
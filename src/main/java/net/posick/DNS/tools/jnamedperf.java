@@ -0,0 +1,228 @@
+// SPDX-License-Identifier: BSD-3-Clause
+package net.posick.DNS.tools;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import net.posick.DNS.DClass;
+import net.posick.DNS.Message;
+import net.posick.DNS.Name;
+import net.posick.DNS.Record;
+import net.posick.DNS.Type;
+
+/**
+ * A load generator for DNS servers such as jnamed. A number of clients repeatedly send the same
+ * query, each waiting for the response before sending the next, for a fixed duration. The
+ * throughput in queries per second and the response latency percentiles are then reported.
+ */
+public class jnamedperf {
+  static final int TIMEOUT = 2000;
+
+  static InetAddress server;
+  static int port = 53;
+  static int clients = 8;
+  static int duration = 10;
+  static boolean tcp = false;
+  static byte[] query;
+
+  static void usage() {
+    System.out.println(
+        "Usage: jnamedperf [@server] [-p port] [-c clients] [-d seconds] [-t] name [type]");
+    System.exit(0);
+  }
+
+  /** A client sending queries and recording the latency of each response, in microseconds. */
+  static class Client extends Thread {
+    final long end;
+    long[] latencies = new long[1024];
+    int completed;
+    int timeouts;
+    IOException error;
+
+    Client(int id, long end) {
+      super("jnamedperf-" + id);
+      this.end = end;
+    }
+
+    void record(long start) {
+      if (completed == latencies.length) {
+        latencies = Arrays.copyOf(latencies, completed * 2);
+      }
+      latencies[completed++] = (System.nanoTime() - start) / 1000;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (tcp) {
+          runTCP();
+        } else {
+          runUDP();
+        }
+      } catch (IOException e) {
+        error = e;
+      }
+    }
+
+    void runUDP() throws IOException {
+      byte[] out = query.clone();
+      byte[] in = new byte[65535];
+      try (DatagramSocket socket = new DatagramSocket()) {
+        socket.setSoTimeout(TIMEOUT);
+        socket.connect(server, port);
+        DatagramPacket outdp = new DatagramPacket(out, out.length);
+        DatagramPacket indp = new DatagramPacket(in, in.length);
+        int id = 0;
+        while (System.currentTimeMillis() < end) {
+          id = (id + 1) & 0xFFFF;
+          out[0] = (byte) (id >>> 8);
+          out[1] = (byte) id;
+          long start = System.nanoTime();
+          socket.send(outdp);
+          try {
+            do {
+              indp.setLength(in.length);
+              socket.receive(indp);
+            } while (indp.getLength() < 2 || (((in[0] & 0xFF) << 8) | (in[1] & 0xFF)) != id);
+            record(start);
+          } catch (SocketTimeoutException e) {
+            timeouts++;
+          }
+        }
+      }
+    }
+
+    void runTCP() throws IOException {
+      byte[] out = query.clone();
+      try (Socket socket = new Socket()) {
+        socket.setSoTimeout(TIMEOUT);
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(server, port), TIMEOUT);
+        DataInputStream dataIn = new DataInputStream(socket.getInputStream());
+        DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
+        byte[] frame = new byte[out.length + 2];
+        frame[0] = (byte) (out.length >>> 8);
+        frame[1] = (byte) out.length;
+        int id = 0;
+        while (System.currentTimeMillis() < end) {
+          id = (id + 1) & 0xFFFF;
+          out[0] = (byte) (id >>> 8);
+          out[1] = (byte) id;
+          System.arraycopy(out, 0, frame, 2, out.length);
+          long start = System.nanoTime();
+          dataOut.write(frame);
+          dataOut.flush();
+          byte[] in = new byte[dataIn.readUnsignedShort()];
+          dataIn.readFully(in);
+          record(start);
+        }
+      }
+    }
+  }
+
+  static long percentile(long[] sorted, int count, double p) {
+    if (count == 0) {
+      return 0;
+    }
+    int index = (int) Math.ceil(p / 100 * count) - 1;
+    return sorted[Math.max(0, Math.min(count - 1, index))];
+  }
+
+  public static void main(String[] args) throws Exception {
+    int arg = 0;
+    server = InetAddress.getLoopbackAddress();
+    try {
+      if (arg < args.length && args[arg].startsWith("@")) {
+        server = InetAddress.getByName(args[arg++].substring(1));
+      }
+      while (arg < args.length && args[arg].startsWith("-")) {
+        switch (args[arg++]) {
+          case "-p":
+            port = Integer.parseInt(args[arg++]);
+            break;
+          case "-c":
+            clients = Integer.parseInt(args[arg++]);
+            break;
+          case "-d":
+            duration = Integer.parseInt(args[arg++]);
+            break;
+          case "-t":
+            tcp = true;
+            break;
+          default:
+            usage();
+        }
+      }
+      if (arg >= args.length) {
+        usage();
+      }
+      Name name = Name.fromString(args[arg++], Name.root);
+      int type = Type.A;
+      if (arg < args.length) {
+        type = Type.value(args[arg]);
+        if (type < 0) {
+          usage();
+        }
+      }
+      query = Message.newQuery(Record.newRecord(name, type, DClass.IN)).toWire();
+    } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+      usage();
+    }
+
+    long start = System.currentTimeMillis();
+    Client[] threads = new Client[clients];
+    for (int i = 0; i < clients; i++) {
+      threads[i] = new Client(i, start + duration * 1000L);
+      threads[i].start();
+    }
+
+    int completed = 0;
+    int timeouts = 0;
+    for (Client client : threads) {
+      client.join();
+      completed += client.completed;
+      timeouts += client.timeouts;
+      if (client.error != null) {
+        System.out.println(client.getName() + ": " + client.error);
+      }
+    }
+    double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+
+    long[] latencies = new long[completed];
+    int count = 0;
+    for (Client client : threads) {
+      System.arraycopy(client.latencies, 0, latencies, count, client.completed);
+      count += client.completed;
+    }
+    Arrays.sort(latencies);
+
+    System.out.println(
+        "jnamedperf: "
+            + (tcp ? "TCP" : "UDP")
+            + " "
+            + server.getHostAddress()
+            + "#"
+            + port
+            + ", "
+            + clients
+            + " clients, "
+            + duration
+            + " s");
+    System.out.println("  queries completed: " + completed + ", timed out: " + timeouts);
+    System.out.printf("  throughput: %.0f queries/s%n", completed / elapsed);
+    System.out.println(
+        "  latency (us): p50 "
+            + percentile(latencies, count, 50)
+            + ", p99 "
+            + percentile(latencies, count, 99)
+            + ", max "
+            + percentile(latencies, count, 100));
+  }
+}
@@ -1,14 +1,15 @@
 package net.posick.mDNS;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.posick.mDNS.utils.Executors;
 import net.posick.mDNS.utils.ListenerProcessor;
+import net.posick.mDNS.utils.ResolverListenerProcessor;
 import net.posick.DNS.DClass;
 import net.posick.DNS.Flags;
 import net.posick.DNS.Header;
@@ -26,18 +27,16 @@ public class Browse extends MulticastDNSLookupBase
     static final Logger logger = Logger.getLogger(Browse.class.getName());
     
     /**
-     * The Browse Operation manages individual browse sessions.  Retrying broadcasts. 
-     * Refer to the mDNS specification [RFC 6762]
+     * The Browse Operation manages individual browse sessions. The browse queries are asked
+     * continuously by the Querier's query scheduler. Refer to the mDNS specification [RFC 6762]
      * 
      * @author Steve Posick
      */
-    protected class BrowseOperation implements ResolverListener, Runnable
+    protected class BrowseOperation implements QueryListener, Runnable
     {
-        private int broadcastDelay = 0;
+        private ListenerProcessor<ResolverListener> listenerProcessor = new ResolverListenerProcessor();
         
-        private ListenerProcessor<ResolverListener> listenerProcessor = new ListenerProcessor<ResolverListener>(ResolverListener.class);
-        
-        private long lastBroadcast;
+        private final List continuousQueries = new LinkedList();
         
         
         BrowseOperation()
@@ -61,6 +60,23 @@ public class Browse extends MulticastDNSLookupBase
         }
         
         
+        public Record[] getQuestions()
+        {
+            List<Record> questions = new LinkedList<Record>();
+            for (Message query : queries)
+            {
+                questions.addAll(Arrays.asList(MulticastDNSUtils.extractRecords(query, Section.QUESTION)));
+            }
+            return questions.toArray(new Record[questions.size()]);
+        }
+        
+        
+        public boolean isBrowse()
+        {
+            return true;
+        }
+        
+        
         boolean answersQuery(Record record)
         {
             if (record != null)
@@ -146,34 +162,30 @@ public class Browse extends MulticastDNSLookupBase
         {
             if (logger.isLoggable(Level.FINE))
             {
-                long now = System.currentTimeMillis();
-                logger.logp(Level.FINE, getClass().getName(), "run", "Broadcasting Query for Browse." + (lastBroadcast <= 0 ? "" : " Last broadcast was " + ((double) (now - lastBroadcast) / (double) 1000) + " seconds ago."));
-                lastBroadcast = System.currentTimeMillis();
+                logger.logp(Level.FINE, getClass().getName(), "run", "Starting continuous queries for Browse Operation.");
             }
             
-            try
+            synchronized (continuousQueries)
             {
-                broadcastDelay = broadcastDelay > 0 ? Math.min(broadcastDelay * 2, 3600) : 1;
-                executors.schedule(this, broadcastDelay, TimeUnit.SECONDS);
-                
-                if (logger.isLoggable(Level.FINE))
-                {
-                    logger.logp(Level.FINE, getClass().getName(), "run", "Broadcasting Query for Browse Operation.");
-                }
-                
                 for (Message query : queries)
                 {
-                    querier.broadcast((Message) query.clone(), false);
+                    continuousQueries.add(querier.startContinuousQuery((Message) query.clone()));
                 }
-            } catch (Exception e)
-            {
-                logger.log(Level.WARNING, "Error broadcasting query for browse - " + e.getMessage(), e);
             }
         }
 
 
         public void close()
         {
+            synchronized (continuousQueries)
+            {
+                for (Object id : continuousQueries)
+                {
+                    querier.stopContinuousQuery(id);
+                }
+                continuousQueries.clear();
+            }
+            
             try
             {
                 listenerProcessor.close();
@@ -284,6 +296,7 @@ public class Browse extends MulticastDNSLookupBase
             BrowseOperation browseOperation = (BrowseOperation) o;
             try
             {
+                querier.unregisterListener(browseOperation);
                 browseOperation.close();
             } catch (Exception e)
             {
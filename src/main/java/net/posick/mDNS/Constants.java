@@ -75,4 +75,7 @@ public interface Constants
 
     /** The Cache Flush flag used in Multicast DNS (mDNS) [RFC 6762] query responses */
     public static final int CACHE_FLUSH = 0x8000;
+
+    /** The Unicast Response flag used in Multicast DNS (mDNS) [RFC 6762] query questions */
+    public static final int UNICAST_RESPONSE = 0x8000;
 }
@@ -10,6 +10,17 @@ public interface DNSSDListener
     public void serviceRemoved(Object id, ServiceInstance service);
     
     
+    /**
+     * Called when the SRV, TXT or address records of a previously discovered service change.
+     * 
+     * @param id The id of the message that caused the update
+     * @param service The updated service instance
+     */
+    public default void serviceUpdated(Object id, ServiceInstance service)
+    {
+    }
+    
+    
     public void receiveMessage(Object id, Message m);
     
     
@@ -0,0 +1,127 @@
+package net.posick.mDNS;
+
+import net.posick.mDNS.utils.ListenerProcessor;
+import net.posick.DNS.Message;
+
+/**
+ * A ListenerProcessor for DNSSDListeners that dispatches events by calling the registered
+ * listeners directly rather than through a dynamic proxy.
+ * 
+ * @author Steve Posick
+ */
+class DNSSDListenerProcessor extends ListenerProcessor<DNSSDListener>
+{
+    protected static class DNSSDListenerDispatcher implements DNSSDListener
+    {
+        private final DNSSDListenerProcessor processor;
+        
+        
+        protected DNSSDListenerDispatcher(final DNSSDListenerProcessor processor)
+        {
+            this.processor = processor;
+        }
+        
+        
+        public void serviceDiscovered(final Object id, final ServiceInstance service)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((DNSSDListener) listener).serviceDiscovered(id, service);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        
+        
+        public void serviceRemoved(final Object id, final ServiceInstance service)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((DNSSDListener) listener).serviceRemoved(id, service);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        
+        
+        public void serviceUpdated(final Object id, final ServiceInstance service)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((DNSSDListener) listener).serviceUpdated(id, service);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        
+        
+        public void receiveMessage(final Object id, final Message m)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((DNSSDListener) listener).receiveMessage(id, m);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        
+        
+        public void handleException(final Object id, final Exception ex)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((DNSSDListener) listener).handleException(id, ex);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    DNSSDListenerProcessor()
+    {
+        super(DNSSDListener.class);
+    }
+    
+    
+    @Override
+    protected DNSSDListener newDispatcher()
+    {
+        return new DNSSDListenerDispatcher(this);
+    }
+}
@@ -0,0 +1,114 @@
+package net.posick.mDNS;
+
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import net.posick.mDNS.utils.Executors;
+import net.posick.DNS.Flags;
+import net.posick.DNS.Header;
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Opcode;
+import net.posick.DNS.Record;
+import net.posick.DNS.ResolverListener;
+import net.posick.DNS.Section;
+
+/**
+ * Reassembles queries whose known answer lists span multiple packets [RFC 6762 section 7.2].
+ * A query with the TC bit set is held for 400 to 500 milliseconds, during which the known
+ * answers of subsequent queries from the same source are merged into it. The merged query is
+ * then delivered to the target listener with the TC bit cleared.
+ * 
+ * @author Steve Posick
+ */
+class KnownAnswerAggregator
+{
+    public static final int MIN_DELAY = 400;
+    
+    public static final int MAX_DELAY = 500;
+    
+    private final Map<SocketAddress, Message> pending = new HashMap<SocketAddress, Message>();
+    
+    private final Executors executors;
+    
+    @SuppressWarnings("deprecation")
+    private final ResolverListener target;
+    
+    
+    @SuppressWarnings("deprecation")
+    KnownAnswerAggregator(final Executors executors, final ResolverListener target)
+    {
+        this.executors = executors;
+        this.target = target;
+    }
+    
+    
+    /**
+     * Offers a received message for aggregation.
+     * 
+     * @param source The source of the message
+     * @param message The message
+     * @return true if the message was held or merged into a held query and must not be
+     *         delivered now, false if the message should be delivered as usual
+     */
+    boolean aggregate(final SocketAddress source, final Message message)
+    {
+        Header header = message.getHeader();
+        if (header.getFlag(Flags.QR) || (header.getOpcode() != Opcode.QUERY))
+        {
+            return false;
+        }
+        
+        synchronized (pending)
+        {
+            Message query = pending.get(source);
+            if (query != null)
+            {
+                for (Record question : MulticastDNSUtils.extractRecords(message, Section.QUESTION))
+                {
+                    if (!query.findRecord(question, Section.QUESTION))
+                    {
+                        query.addRecord(question, Section.QUESTION);
+                    }
+                }
+                for (Record answer : MulticastDNSUtils.extractRecords(message, Section.ANSWER))
+                {
+                    query.addRecord(answer, Section.ANSWER);
+                }
+                return true;
+            } else if (header.getFlag(Flags.TC))
+            {
+                pending.put(source, message);
+                executors.schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        release(source);
+                    }
+                }, ThreadLocalRandom.current().nextInt(MIN_DELAY, MAX_DELAY + 1), TimeUnit.MILLISECONDS);
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    
+    private void release(final SocketAddress source)
+    {
+        Message query;
+        synchronized (pending)
+        {
+            query = pending.remove(source);
+        }
+        
+        if (query != null)
+        {
+            query.getHeader().unsetFlag(Flags.TC);
+            target.receiveMessage(query.getHeader().getID(), query);
+        }
+    }
+}
@@ -3,15 +3,17 @@ package net.posick.mDNS;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.AccessibleObject;
-import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.Collection;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -23,6 +25,7 @@ import net.posick.DNS.Credibility;
 import net.posick.DNS.DClass;
 import net.posick.DNS.Flags;
 import net.posick.DNS.Header;
+import net.posick.DNS.Master;
 import net.posick.DNS.Message;
 import net.posick.DNS.MulticastDNSUtils;
 import net.posick.DNS.Name;
@@ -31,19 +34,26 @@ import net.posick.DNS.Options;
 import net.posick.DNS.RRset;
 import net.posick.DNS.Rcode;
 import net.posick.DNS.Record;
+import net.posick.DNS.SOARecord;
 import net.posick.DNS.Section;
 import net.posick.DNS.SetResponse;
 import net.posick.DNS.Type;
 
 /**
  * A cache of mDNS records and responses. The cache obeys TTLs, so items are
- * purged after their validity period is complete. Negative answers are cached,
- * to avoid repeated failed DNS queries. The credibility of each RRset is
+ * purged after their validity period is complete. The credibility of each RRset is
  * maintained, so that more credible records replace less credible records, and
  * lookups can specify the minimum credibility of data they are requesting.
  * 
- * !!! This cache implementation extends the Cache class. Reflection had to be used to access
- * !!! private fields and methods in the Cache class that prevent its direct extensibility.
+ * The MulticastDNSCache extends Cache so that it can be used wherever a Cache is expected, but
+ * it does not use the storage of its superclass. RRsets are held in a concurrent index keyed by
+ * Name and type, so lookups do not contend with the CacheMonitor or with each other. Adding or
+ * removing records replaces the cached RRset rather than modifying it, so lookups never see a
+ * partially updated RRset. The TTLs of cached records are however set in place, when the
+ * CacheMonitor refreshes authoritative records and when records expire or are withdrawn at
+ * shutdown. The cache-flush semantics of RFC 6762 Section 10.2 are applied by updateRRset, and
+ * goodbye records remove only the records they match. mDNS does not use negative caching (RFC 6762 Section 6.1), so negative entries are
+ * not stored.
  * 
  * @see Cache
  * 
@@ -72,7 +82,8 @@ public class MulticastDNSCache extends Cache implements Closeable
         
         
         /**
-         * Called before a RRset is removed.
+         * Called when a RRset reaches one of its refresh points, at 80%, 85%, 90% and 95% of its
+         * TTL (RFC 6762 Section 5.2), so that it may be refreshed before it expires.
          * 
          * @param rrs The RRset
          * @param credibility The credibility of the RRset
@@ -107,123 +118,98 @@ public class MulticastDNSCache extends Cache implements Closeable
     }
     
     
-    protected static class ElementHelper
+    /**
+     * An RRset stored in the MulticastDNSCache along with its credibility and expiry. Instances
+     * are not modified once they have been added to the cache.
+     * 
+     * @author Steve Posick
+     */
+    protected static class CachedRRset extends RRset
     {
-        private Cache cache = null;
-        
-        private Object element = null;
-        
-        private Class clazz = null;
+        private static final long serialVersionUID = 202610171200L;
         
-        private Method expired = null;
+        private final int credibility;
         
-        private Method compareCredibility = null;
+        private final int expire;
         
-        private Method getType = null;
+        private final long updated;
         
-        private Method getTTL = null;
         
-        private Field expireField = null;
-        
-        private Field credibilityField = null;
-        
-        
-        protected ElementHelper(final Cache cache, final Object element)
-        throws SecurityException, NoSuchMethodException, NoSuchFieldException,
-        IllegalArgumentException
+        protected CachedRRset(final RRset rrset, final int credibility, final int expire, final long updated)
         {
-            this.cache = cache;
-            this.element = element;
-            clazz = element.getClass();
-            
-            expireField = findField(clazz, "expire");
-            credibilityField = findField(clazz, "credibility");
-            
-            expired = findMethod(clazz, "expired", new Class[0]);
-            compareCredibility = findMethod(clazz, "compareCredibility", new Class[] {Integer.TYPE});
-            getType = findMethod(clazz, "getType", new Class[0]);
-            getTTL = findMethod(clazz, "getTTL", new Class[0]);
-            
-            AccessibleObject.setAccessible(new AccessibleObject[] {expireField,
-                                                                   credibilityField}, true);
-            AccessibleObject.setAccessible(new AccessibleObject[] {expired,
-                                                                   compareCredibility,
-                                                                   getType,
-                                                                   getTTL,
-                                                                   expireField,
-                                                                   credibilityField}, true);
+            super(rrset);
+            this.credibility = credibility;
+            this.expire = expire;
+            this.updated = updated;
         }
         
         
         public int getCredibility()
-        throws IllegalArgumentException, IllegalAccessException
         {
-            return credibilityField.getInt(element);
+            return credibility;
         }
         
         
-        public int getExpiresIn()
-        throws IllegalArgumentException, IllegalAccessException
+        public int getExpire()
         {
-            return getExpire() - (int) (System.currentTimeMillis() / 1000);
+            return expire;
         }
         
         
-        public long getTTL()
-        throws IllegalArgumentException, IllegalAccessException,
-        InvocationTargetException
+        public int getExpiresIn()
         {
-            if (getTTL != null)
-            {
-                Long value = (Long) getTTL.invoke(element, new Object[0]);
-                return value == null ? 0L : value.longValue();
-            }
-            return 0;
+            return expire - (int) (System.currentTimeMillis() / 1000);
         }
         
         
-        public void resetExpire()
-        throws IllegalArgumentException, IllegalAccessException,
-        InvocationTargetException
+        /**
+         * Returns the time, in milliseconds, that a record was last added to this RRset.
+         * 
+         * @return The time, in milliseconds, that a record was last added to this RRset
+         */
+        public long getUpdated()
         {
-            expireField.setInt(element, limitExpire(getTTL(), cache.getMaxCache()));
+            return updated;
         }
         
         
-        protected int compareCredibility(final int cred)
-        throws IllegalArgumentException, IllegalAccessException,
-        InvocationTargetException
+        public boolean expired()
         {
-            return (Integer) compareCredibility.invoke(element, new Object[] {cred});
+            return getExpiresIn() <= 0;
         }
         
         
-        protected boolean expired()
-        throws IllegalArgumentException, IllegalAccessException,
-        InvocationTargetException
+        @Override
+        public String toString()
         {
-            return (Boolean) expired.invoke(element, new Object[0]);
+            return super.toString() + " cl = " + credibility;
         }
+    }
+    
+    
+    /**
+     * A scheduled refresh point or expiry of a cached RRset.
+     */
+    private static class Deadline implements Comparable<Deadline>
+    {
+        private final int time;
         
+        private final int point;
         
-        protected Object getElement()
-        {
-            return element;
-        }
+        private final CachedRRset rrset;
         
         
-        protected int getExpire()
-        throws IllegalArgumentException, IllegalAccessException
+        private Deadline(final int time, final int point, final CachedRRset rrset)
         {
-            return expireField.getInt(element);
+            this.time = time;
+            this.point = point;
+            this.rrset = rrset;
         }
         
         
-        protected int getType()
-        throws IllegalArgumentException, IllegalAccessException,
-        InvocationTargetException
+        public int compareTo(final Deadline o)
         {
-            return (Integer) getType.invoke(element, new Object[0]);
+            return time < o.time ? -1 : (time == o.time ? 0 : 1);
         }
     }
     
@@ -263,37 +249,17 @@ public class MulticastDNSCache extends Cache implements Closeable
                     logger.log(Level.WARNING, e.getMessage(), e);
                 }
                 
-                Object[] sets;
-                synchronized (MulticastDNSCache.this)
+                // Only the RRsets that have reached a refresh point or their expiry are checked.
+                Deadline deadline;
+                int now = (int) (System.currentTimeMillis() / 1000);
+                while ((deadline = nextDeadline(now)) != null)
                 {
-                    Collection values = dataCopy.values();
-                    sets = values.toArray(new Object[values.size()]);
-                }
-                
-                for (int index = 0; index < sets.length; index++ )
-                {
-                    try
+                    if (isCached(deadline.rrset))
                     {
-                        Object types = sets[index];
-                        if (types instanceof List)
-                        {
-                            List list = (List) types;
-                            Object[] elements;
-                            synchronized (MulticastDNSCache.this)
-                            {
-                                elements = list.toArray(new Object[list.size()]);
-                            }
-                            for (int eIndex = 0; eIndex < elements.length; eIndex++ )
-                            {
-                                processElement(new ElementHelper(MulticastDNSCache.this, elements[eIndex]));
-                            }
-                        } else
+                        if (processElement(deadline.rrset))
                         {
-                            processElement(new ElementHelper(MulticastDNSCache.this, types));
+                            schedule(deadline.rrset, deadline.point + 1);
                         }
-                    } catch (Exception e)
-                    {
-                        logger.log(Level.WARNING, e.getMessage(), e);
                     }
                 }
                 
@@ -311,78 +277,106 @@ public class MulticastDNSCache extends Cache implements Closeable
         }
         
         
-        private void processElement(final ElementHelper element)
+        /**
+         * Checks the RRset, returning true if the RRset remains cached.
+         */
+        private boolean processElement(final CachedRRset rrs)
         {
             try
             {
-                if (element.getElement() instanceof RRset)
+                if (shutdown)
                 {
-                    RRset rrs = (RRset) element.getElement();
-                    
-                    if (shutdown)
+                    Record[] records = MulticastDNSUtils.extractRecords(rrs);
+                    for (Record record : records)
                     {
-                        Record[] records = MulticastDNSUtils.extractRecords(rrs);
-                        for (Record record : records)
+                        if (rrs.getCredibility() >= Credibility.AUTH_AUTHORITY)
                         {
-                            if (element.getCredibility() >= Credibility.AUTH_AUTHORITY)
-                            {
-                                MulticastDNSUtils.setTLLForRecord(record, 0);
-                            }
+                            MulticastDNSUtils.setTLLForRecord(record, 0);
                         }
                     }
-                    
-                    CacheMonitor cacheMonitor = getCacheMonitor();
-                    int expiresIn = element.getExpiresIn();
-                    if ((expiresIn <= 0) || (rrs.getTTL() <= 0))
+                }
+                
+                CacheMonitor cacheMonitor = getCacheMonitor();
+                int expiresIn = rrs.getExpiresIn();
+                if ((expiresIn <= 0) || (rrs.getTTL() <= 0))
+                {
+                    try
                     {
-                        cacheMonitor.expired(rrs, element.getCredibility());
-                    } else
+                        cacheMonitor.expired(rrs, rrs.getCredibility());
+                    } catch (Exception e)
                     {
-                        cacheMonitor.check(rrs, element.getCredibility(), expiresIn);
+                        logger.log(Level.WARNING, e.getMessage(), e);
                     }
+                    
+                    // Removed regardless, as rescheduling an expired RRset makes it due again immediately
+                    removeElement(rrs);
+                    return false;
                 } else
                 {
-                    logger.logp(Level.INFO, getClass().getName(), "processElement", "Element is an unexpected type \"" + (element.getElement() != null ? element.getElement().getClass().getName() : "null") + "\"");
+                    cacheMonitor.check(rrs, rrs.getCredibility(), expiresIn);
                 }
             } catch (Exception e)
             {
                 logger.log(Level.WARNING, e.getMessage(), e);
             }
+            return true;
         }
     }
     
     protected final static MulticastDNSCache DEFAULT_MDNS_CACHE;
     
     public final static String MDNS_CACHE_FILENAME = MulticastDNSMulticastOnlyQuerier.class.getSimpleName() + ".cache";
-
+    
+    /**
+     * The interval, in milliseconds, within which records received with the cache-flush bit set
+     * are merged rather than flushing the existing RRset (RFC 6762 Section 10.2).
+     */
+    public static final long CACHE_FLUSH_INTERVAL = 1000;
+    
+    private static final int DEFAULT_MAX_ENTRIES = 50000;
+    
+    private static final int LOCK_STRIPES = 64;
+    
+    /** The number of names sampled for each eviction */
+    private static final int EVICTION_SAMPLES = 8;
+    
+    private static final CachedRRset[] EMPTY_RRSETS = new CachedRRset[0];
+    
+    /**
+     * The fractions of an RRset's TTL at which the CacheMonitor is asked to check the RRset, so
+     * that it may be refreshed before it expires (RFC 6762 Section 5.2).
+     */
+    private static final double[] REFRESH_POINTS = new double[] {.80,
+                                                                 .85,
+                                                                 .90,
+                                                                 .95};
+    
+    /**
+     * The fraction of an RRset's TTL by which each refresh point is randomly delayed, so that
+     * hosts sharing a record do not refresh it at the same moment (RFC 6762 Section 5.2). Each
+     * point therefore falls between 80-82%, 85-87%, 90-92% and 95-97% of the TTL.
+     */
+    private static final double REFRESH_JITTER = .02;
+    
     static
     {
         MulticastDNSCache temp = null;
         try
         {
-            try
+            String filename = MDNS_CACHE_FILENAME;
+            File file = new File(filename);
+            if (file.exists() && file.canRead())
             {
-                String filename = MDNS_CACHE_FILENAME;
-                File file = new File(filename);
-                if (file.exists() && file.canRead())
-                {
-                    temp = new MulticastDNSCache(filename);
-                } else
-                {
-                    temp = new MulticastDNSCache();
-                }
-            } catch (IOException e)
+                temp = new MulticastDNSCache(filename);
+            } else
             {
                 temp = new MulticastDNSCache();
-                
-                logger.log(Level.WARNING, "Error loading default cache values - " + e.getMessage(), e);
             }
-        } catch (NoSuchFieldException e)
+        } catch (IOException e)
         {
-            logger.log(Level.WARNING, "Unrecoverable Error: The base " + Cache.class + " class does not implement required fields - " + e.getMessage(), e);
-        } catch (NoSuchMethodException e)
-        {
-            logger.log(Level.WARNING, "Unrecoverable Error: The base " + Cache.class + " class does not implement required methods - " + e.getMessage(), e);
+            temp = new MulticastDNSCache();
+            
+            logger.log(Level.WARNING, "Error loading default cache values - " + e.getMessage(), e);
         }
         
         DEFAULT_MDNS_CACHE = temp;
@@ -390,29 +384,35 @@ public class MulticastDNSCache extends Cache implements Closeable
     
     private CacheMonitor cacheMonitor = null;
     
-    private LinkedHashMap dataCopy;
+    private final ConcurrentHashMap<Name, CachedRRset[]> rrsets = new ConcurrentHashMap<Name, CachedRRset[]>();
+    
+    private final Object[] locks = new Object[LOCK_STRIPES];
     
-    private Field dataField = null;
+    private volatile int maxEntries = DEFAULT_MAX_ENTRIES;
     
-    private Method findElement = null;
+    private final Object evictionLock = new Object();
+    
+    /**
+     * The position of the eviction sweep over the cached names, continued by each eviction so
+     * that successive evictions sample different names. Guarded by evictionLock.
+     */
+    private Iterator<Name> evictionCursor;
     
-    private Method removeElement = null;
+    private final PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
     
     private Executors executors = Executors.newInstance();
     
+    private ScheduledFuture<?> monitorFuture;
+    
     
     /**
      * Creates an empty Cache for class IN.
      * 
-     * @throws NoSuchFieldException
-     * 
      * @see DClass
      */
     public MulticastDNSCache()
-    throws NoSuchFieldException, NoSuchMethodException
     {
-        super();
-        populateReflectedFields();
+        this(DClass.IN);
     }
     
     
@@ -420,14 +420,18 @@ public class MulticastDNSCache extends Cache implements Closeable
      * Creates an empty Cache
      * 
      * @param dclass The DNS class of this cache
-     * @throws NoSuchFieldException
      * @see DClass
      */
     public MulticastDNSCache(final int dclass)
-    throws NoSuchFieldException, NoSuchMethodException
     {
         super(dclass);
-        populateReflectedFields();
+        
+        for (int index = 0; index < locks.length; index++ )
+        {
+            locks[index] = new Object();
+        }
+        
+        monitorFuture = executors.scheduleAtFixedRate(new MonitorTask(), 1, 1, TimeUnit.SECONDS);
     }
     
     
@@ -436,16 +440,24 @@ public class MulticastDNSCache extends Cache implements Closeable
      * file.
      * 
      * @throws IOException
-     * @throws IllegalAccessException
-     * @throws NoSuchFieldException
-     * @throws IllegalArgumentException
-     * @throws SecurityException
      */
     public MulticastDNSCache(final String file)
-    throws IOException, NoSuchFieldException, NoSuchMethodException
+    throws IOException
     {
-        super(file);
-        populateReflectedFields();
+        this();
+        
+        Master master = new Master(file);
+        try
+        {
+            Record record;
+            while ((record = master.nextRecord()) != null)
+            {
+                addRecord(record, Credibility.HINT);
+            }
+        } finally
+        {
+            master.close();
+        }
     }
     
     
@@ -453,37 +465,106 @@ public class MulticastDNSCache extends Cache implements Closeable
      * Initializes a new mDNSCahce with the records from the provided Cache.
      * 
      * @param cache The Cache to use to populate this mDNSCache.
-     * @throws NoSuchFieldException if the "data" field does not exist in either Cache
-     * @throws IllegalAccessException if the "data" field could not be accessed in either Cache
      */
     MulticastDNSCache(final Cache cache)
-    throws NoSuchFieldException, NoSuchMethodException, IllegalAccessException
     {
         this();
         
-        Field field = cache.getClass().getDeclaredField("data");
-        field.setAccessible(true);
-        Object cacheData = field.get(cache);
+        cache.copyTo(this);
+    }
+    
+    
+    @Override
+    public void addRecord(final Record r, final int cred, final Object o)
+    {
+        addRecord(r, cred);
+    }
+    
+    
+    @Override
+    public void addRecord(final Record r, final int cred)
+    {
+        Name name = r.getName();
+        int type = r.getRRsetType();
+        if (!Type.isRR(type))
+        {
+            return;
+        }
         
-        field = super.getClass().getDeclaredField("data");
-        field.setAccessible(true);
-        field.set(this, cacheData);
+        synchronized (lockFor(name))
+        {
+            CachedRRset element = findElement(name, type, 0);
+            if ((element == null) || (element.getCredibility() < cred))
+            {
+                RRset rrset = new RRset(r);
+                setElement(name, type, new CachedRRset(rrset, cred, limitExpire(rrset.getTTL(), getMaxCache()), System.currentTimeMillis()));
+            } else if (element.getCredibility() == cred)
+            {
+                RRset rrset = new RRset(element);
+                rrset.addRR(r);
+                setElement(name, type, new CachedRRset(rrset, cred, element.getExpire(), System.currentTimeMillis()));
+            }
+        }
         
-        populateReflectedFields();
+        evict();
     }
     
     
     @Override
-    public synchronized void addRecord(final Record r, final int cred, final Object o)
+    public void addRRset(final RRset rrset, final int cred)
+    {
+        long ttl = rrset.getTTL();
+        Name name = rrset.getName();
+        int type = rrset.getType();
+        
+        synchronized (lockFor(name))
+        {
+            CachedRRset element = findElement(name, type, 0);
+            if ((element == null) || (element.getCredibility() <= cred))
+            {
+                if (ttl == 0)
+                {
+                    setElement(name, type, null);
+                } else
+                {
+                    setElement(name, type, new CachedRRset(rrset, cred, limitExpire(ttl, getMaxCache()), System.currentTimeMillis()));
+                }
+            }
+        }
+        
+        evict();
+    }
+    
+    
+    /**
+     * Negative responses are not cached. mDNS uses NSEC records to assert the nonexistence of
+     * records (RFC 6762 Section 6.1).
+     */
+    @Override
+    public void addNegative(final Name name, final int type, final SOARecord soa, final int cred)
     {
-        super.addRecord(r, cred, o);
     }
     
     
     @Override
-    public synchronized void addRRset(final RRset rrset, final int cred)
+    public void clearCache()
     {
-        super.addRRset(rrset, cred);
+        for (Name name : rrsets.keySet())
+        {
+            flushName(name);
+        }
+        
+        // Deadlines of RRsets cached while clearing are kept
+        synchronized (deadlines)
+        {
+            for (Iterator<Deadline> i = deadlines.iterator(); i.hasNext();)
+            {
+                if (!isCached(i.next().rrset))
+                {
+                    i.remove();
+                }
+            }
+        }
     }
     
     
@@ -498,10 +579,29 @@ public class MulticastDNSCache extends Cache implements Closeable
                 MonitorTask task = new MonitorTask(true);
                 task.run();
             }
+            
+            monitorFuture.cancel(false);
+        }
+    }
+    
+    
+    @Override
+    public void flushName(final Name name)
+    {
+        synchronized (lockFor(name))
+        {
+            rrsets.remove(name);
         }
     }
     
     
+    @Override
+    public void flushSet(final Name name, final int type)
+    {
+        removeElementCopy(name, type);
+    }
+    
+    
     /**
      * Gets the CacheMonitor used to monitor cache data.
      * 
@@ -513,6 +613,20 @@ public class MulticastDNSCache extends Cache implements Closeable
     }
     
     
+    @Override
+    public int getMaxEntries()
+    {
+        return maxEntries;
+    }
+    
+    
+    @Override
+    public int getSize()
+    {
+        return rrsets.size();
+    }
+    
+    
     public Message queryCache(final Message query)
     {
         return queryCache(query, Credibility.ANY);
@@ -612,6 +726,35 @@ public class MulticastDNSCache extends Cache implements Closeable
     }
     
     
+    /**
+     * Returns the cached answers to the question that may be listed in the Known-Answer section
+     * of a query, those with more than half of their TTL remaining [RFC 6762 section 7.1].
+     * 
+     * @param question The question
+     * @return The known answers
+     */
+    public Record[] queryKnownAnswers(final Record question)
+    {
+        CachedRRset[] sets = rrsets.get(question.getName());
+        if (sets == null)
+        {
+            return MulticastDNSUtils.EMPTY_RECORDS;
+        }
+        
+        int type = question.getType();
+        List<Record> knownAnswers = new ArrayList<Record>();
+        for (CachedRRset rrset : sets)
+        {
+            if (((type == Type.ANY) || (rrset.getType() == type)) && ((rrset.getExpiresIn() * 2L) > rrset.getTTL()))
+            {
+                knownAnswers.addAll(rrset.rrs(false));
+            }
+        }
+        
+        return knownAnswers.toArray(new Record[knownAnswers.size()]);
+    }
+    
+    
     /**
      * Acquires additional information from the cache so that the returned results have all the
      * information required in 1 query.
@@ -651,15 +794,48 @@ public class MulticastDNSCache extends Cache implements Closeable
     }
     
     
+    
     public void removeElementCopy(final Name name, final int type)
     {
-        try
+        synchronized (lockFor(name))
         {
-            removeElement.invoke(this, new Object[] {name,
-                                                     new Integer(type)});
-        } catch (Exception e)
+            setElement(name, type, null);
+        }
+    }
+    
+    
+    /**
+     * Removes a single record from its cached RRset, as is done when a goodbye record (TTL of 0)
+     * is received. The RRset is removed once its last record has been removed. Records cached
+     * with a higher credibility are not removed.
+     * 
+     * @param record The record to be removed
+     * @param cred The credibility of the source of the removal
+     */
+    public void removeRecord(final Record record, final int cred)
+    {
+        Name name = record.getName();
+        int type = record.getRRsetType();
+        
+        synchronized (lockFor(name))
         {
-            logger.log(Level.WARNING, e.getMessage(), e);
+            CachedRRset element = findElement(name, type, 0);
+            if ((element != null) && (element.getCredibility() <= cred))
+            {
+                RRset rrset = new RRset(element);
+                rrset.deleteRR(record);
+                
+                if (rrset.size() == element.size())
+                {
+                    return;
+                } else if (rrset.size() == 0)
+                {
+                    setElement(name, type, null);
+                } else
+                {
+                    setElement(name, type, new CachedRRset(rrset, element.getCredibility(), element.getExpire(), element.getUpdated()));
+                }
+            }
         }
     }
     
@@ -679,13 +855,35 @@ public class MulticastDNSCache extends Cache implements Closeable
     }
     
     
+    @Override
+    public void setMaxEntries(final int entries)
+    {
+        maxEntries = entries;
+    }
+    
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (CachedRRset[] sets : rrsets.values())
+        {
+            for (CachedRRset rrset : sets)
+            {
+                builder.append(rrset).append("\n");
+            }
+        }
+        return builder.toString();
+    }
+    
+    
     /**
      * Removes an RRset from the Cache.
      * 
      * @param rrset The RRset to be removed
      * @see RRset
      */
-    synchronized void removeRRset(final RRset rrset)
+    void removeRRset(final RRset rrset)
     {
         removeElementCopy(rrset.getName(), rrset.getType());
     }
@@ -694,43 +892,59 @@ public class MulticastDNSCache extends Cache implements Closeable
     /**
      * Updates an RRset in the Cache. Typically used to update expirey.
      * 
-     * @param rrset The RRset to be updated
-     * @throws InvocationTargetException
-     * @throws IllegalAccessException
-     * @throws IllegalArgumentException
+     * @param record The record to be added or refreshed
+     * @param cred The credibility of the record
+     * @see RRset
+     */
+    void updateRRset(final Record record, final int cred)
+    {
+        updateRRset(record, cred, false);
+    }
+    
+    
+    /**
+     * Updates an RRset in the Cache, adding the record or refreshing the expiry of the RRset. If
+     * the record had the cache-flush bit set, records in the RRset that were received more than
+     * CACHE_FLUSH_INTERVAL ago are flushed (RFC 6762 Section 10.2).
+     * 
+     * @param record The record to be added or refreshed, with the cache-flush bit cleared
+     * @param cred The credibility of the record
+     * @param cacheFlush true if the record was received with the cache-flush bit set
      * @see RRset
      */
-    synchronized void updateRRset(final Record record, final int cred)
-    throws IllegalArgumentException, IllegalAccessException,
-    InvocationTargetException
+    void updateRRset(final Record record, final int cred, final boolean cacheFlush)
     {
-        long ttl = record.getTTL();
         Name name = record.getName();
-        int type = record.getType();
-        ElementHelper element = findElementCopy(name, type, 0);
-        if (element != null)
+        int type = record.getRRsetType();
+        if (!Type.isRR(type))
         {
-            if (element.compareCredibility(cred) <= 0)
+            return;
+        }
+        
+        synchronized (lockFor(name))
+        {
+            long now = System.currentTimeMillis();
+            CachedRRset element = findElement(name, type, 0);
+            RRset rrset;
+            // A cache flush never replaces a more credible RRset, such as our own registered records
+            if ((element == null) || (element.getCredibility() < cred) || (cacheFlush && (element.getCredibility() <= cred) && ((now - element.getUpdated()) > CACHE_FLUSH_INTERVAL)))
             {
-                if (element.getElement() instanceof RRset)
-                {
-                    ((RRset) element.getElement()).addRR(record);
-                    if (element.getTTL() == ttl)
-                    {
-                        element.resetExpire();
-                    } else
-                    {
-                        addRecord(record, cred, this);
-                    }
-                } else
-                {
-                    addRecord(record, cred, this);
-                }
+                rrset = new RRset(record);
+            } else if (element.getCredibility() == cred)
+            {
+                // Copying the cached RRset is linear, where re-adding each cached record is quadratic.
+                rrset = new RRset(element);
+                rrset.deleteRR(record);
+                rrset.addRR(record);
+            } else
+            {
+                return;
             }
-        } else
-        {
-            addRecord(record, cred, this);
+            
+            setElement(name, type, new CachedRRset(rrset, cred, limitExpire(rrset.getTTL(), getMaxCache()), now));
         }
+        
+        evict();
     }
     
     
@@ -750,134 +964,290 @@ public class MulticastDNSCache extends Cache implements Closeable
     
     
     /**
-     * !!! Work around to access private methods in Cache superclass
-     * !!! This method will be removed when the super class is made extensible (private members made protected)
-     * Populates the local copies of the needed private super fields.
-     * 
-     * @throws SecurityException
-     * @throws NoSuchFieldException
-     * @throws NoSuchMethodException
-     * @throws IllegalArgumentException
-     * @throws IllegalAccessException
+     * Looks up the RRsets cached for the exact name. Names are not searched for delegations, as
+     * mDNS names are not delegated.
      */
-    protected void populateReflectedFields()
-    throws NoSuchFieldException, NoSuchMethodException
+    @Override
+    protected SetResponse lookup(final Name name, final int type, final int minCred)
     {
-        executors.scheduleAtFixedRate(new MonitorTask(), 1, 1, TimeUnit.SECONDS);
+        CachedRRset[] sets = rrsets.get(name);
+        if (sets == null)
+        {
+            return MulticastDNSUtils.newSetResponse(null);
+        }
         
-        Class clazz = getClass().getSuperclass();
+        List<RRset> answers = new ArrayList<RRset>(type == Type.ANY ? sets.length : 1);
+        for (CachedRRset rrset : sets)
+        {
+            if (((type == Type.ANY) || (rrset.getType() == type)) && !rrset.expired() && (rrset.getCredibility() >= minCred))
+            {
+                answers.add(rrset);
+            }
+        }
         
-        try
+        if (answers.isEmpty() && (type != Type.ANY) && (type != Type.CNAME))
         {
-            dataField = findField(clazz, "data");
-            
-            AccessibleObject.setAccessible(new AccessibleObject[] {dataField}, true);
-            
-            dataCopy = (LinkedHashMap) dataField.get(this);
-        } catch (NoSuchFieldException e)
+            CachedRRset cname = findElement(name, Type.CNAME, minCred);
+            if (cname != null)
+            {
+                return MulticastDNSUtils.newCNAMESetResponse(cname);
+            }
+        }
+        
+        return MulticastDNSUtils.newSetResponse(answers);
+    }
+    
+    
+    /**
+     * Returns the unexpired RRset of the specified name and type, if its credibility is at least
+     * minCred.
+     */
+    private CachedRRset findElement(final Name name, final int type, final int minCred)
+    {
+        CachedRRset[] sets = rrsets.get(name);
+        if (sets != null)
+        {
+            for (CachedRRset rrset : sets)
+            {
+                if (rrset.getType() == type)
+                {
+                    return !rrset.expired() && (rrset.getCredibility() >= minCred) ? rrset : null;
+                }
+            }
+        }
+        return null;
+    }
+    
+    
+    private Object lockFor(final Name name)
+    {
+        return locks[(name.hashCode() & 0x7FFFFFFF) % locks.length];
+    }
+    
+    
+    /**
+     * Removes the RRset from the cache, unless it has already been replaced.
+     */
+    private void removeElement(final CachedRRset rrset)
+    {
+        Name name = rrset.getName();
+        synchronized (lockFor(name))
         {
-            logger.log(Level.WARNING, e.getMessage(), e);
-            throw e;
-        } catch (Exception e)
+            CachedRRset[] sets = rrsets.get(name);
+            if (sets != null)
+            {
+                for (CachedRRset set : sets)
+                {
+                    if (set == rrset)
+                    {
+                        setElement(name, rrset.getType(), null);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Replaces the RRset of the specified type, removing it if rrset is null. Must be called while
+     * holding the lock for the name.
+     */
+    private void setElement(final Name name, final int type, final CachedRRset rrset)
+    {
+        CachedRRset[] sets = rrsets.get(name);
+        if (sets == null)
         {
-            logger.log(Level.WARNING, e.getMessage(), e);
+            sets = EMPTY_RRSETS;
         }
         
-        try
+        int index = 0;
+        while ((index < sets.length) && (sets[index].getType() != type))
         {
-            findElement = findMethod(clazz, "findElement", new Class[] {Name.class,
-                                                                        Integer.TYPE,
-                                                                        Integer.TYPE});
-            removeElement = findMethod(clazz, "removeElement", new Class[] {Name.class,
-                                                                            Integer.TYPE});
-            
-            AccessibleObject.setAccessible(new AccessibleObject[] {findElement,
-                                                                   removeElement}, true);
-        } catch (NoSuchMethodException e)
+            index++ ;
+        }
+        
+        CachedRRset[] temp;
+        if (rrset == null)
         {
-            logger.log(Level.WARNING, e.getMessage(), e);
-            throw e;
-        } catch (Exception e)
+            if (index == sets.length)
+            {
+                return;
+            }
+            temp = new CachedRRset[sets.length - 1];
+            System.arraycopy(sets, 0, temp, 0, index);
+            System.arraycopy(sets, index + 1, temp, index, sets.length - index - 1);
+        } else if (index == sets.length)
         {
-            logger.log(Level.WARNING, e.getMessage(), e);
+            temp = Arrays.copyOf(sets, sets.length + 1);
+            temp[index] = rrset;
+        } else
+        {
+            temp = sets.clone();
+            temp[index] = rrset;
+        }
+        
+        if (temp.length == 0)
+        {
+            rrsets.remove(name);
+        } else
+        {
+            rrsets.put(name, temp);
+        }
+        
+        if (rrset != null)
+        {
+            schedule(rrset, 0);
         }
     }
     
     
-    private ElementHelper findElementCopy(final Name name, final int type, final int minCred)
-    throws IllegalArgumentException, IllegalAccessException,
-    InvocationTargetException
+    /**
+     * Returns true if the RRset is currently cached, rather than having been replaced or removed.
+     */
+    private boolean isCached(final CachedRRset rrset)
     {
-        Object o = findElement.invoke(this, new Object[] {name,
-                                                          new Integer(type),
-                                                          new Integer(minCred)});
-        
-        try
+        CachedRRset[] sets = rrsets.get(rrset.getName());
+        if (sets != null)
         {
-            return o == null ? (ElementHelper) null : new ElementHelper(this, o);
-        } catch (Exception e)
+            for (CachedRRset set : sets)
+            {
+                if (set == rrset)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    
+    /**
+     * Removes and returns the earliest Deadline, if it is due.
+     */
+    private Deadline nextDeadline(final int now)
+    {
+        synchronized (deadlines)
         {
-            logger.log(Level.WARNING, e.getMessage(), e);
-            return null;
+            Deadline deadline = deadlines.peek();
+            return (deadline != null) && (deadline.time <= now) ? deadlines.poll() : null;
         }
     }
     
     
-    private static Field findField(final Class clazz, final String name)
-    throws NoSuchFieldException
+    /**
+     * Schedules the first refresh point at or after the specified point that is still in the
+     * future, or the expiry of the RRset if all refresh points have passed. Deadlines of RRsets
+     * that have since been replaced are discarded when they come due.
+     */
+    private void schedule(final CachedRRset rrset, int point)
     {
-        Class clz = clazz;
-        Field field = null;
-        
-        while ((clz != null) && (field == null))
+        int now = (int) (System.currentTimeMillis() / 1000);
+        long ttl = rrset.getTTL();
+        int time = rrset.getExpire();
+        for (; point < REFRESH_POINTS.length; point++ )
         {
-            try
-            {
-                field = clz.getDeclaredField(name);
-            } catch (SecurityException e)
-            {
-            } catch (NoSuchFieldException e)
+            // A whole second within the window from the refresh point to the point plus the jitter,
+            // or the point itself if the window is shorter than a second.
+            long earliest = (long) Math.ceil((ttl * REFRESH_POINTS[point]) - 1e-9);
+            long latest = Math.max(earliest, (long) Math.floor((ttl * (REFRESH_POINTS[point] + REFRESH_JITTER)) + 1e-9));
+            long elapsed = earliest + ThreadLocalRandom.current().nextLong((latest - earliest) + 1);
+            int refresh = (int) (rrset.getExpire() - (ttl - elapsed));
+            if (refresh > now)
             {
+                time = refresh;
+                break;
             }
+        }
+        
+        synchronized (deadlines)
+        {
+            deadlines.add(new Deadline(time, point, rrset));
             
-            if (field != null)
+            // Purge deadlines of replaced RRsets if they greatly outnumber the cached RRsets
+            if (deadlines.size() > (4 * Math.max(rrsets.size(), 1024)))
             {
-                return field;
+                for (Iterator<Deadline> i = deadlines.iterator(); i.hasNext();)
+                {
+                    if (!isCached(i.next().rrset))
+                    {
+                        i.remove();
+                    }
+                }
             }
-            
-            clz = clz.getSuperclass();
         }
-        
-        throw new NoSuchFieldException("Field \"" + name + "\" does not exist in class \"" + clazz.getName() + "\".");
     }
     
     
-    private static Method findMethod(final Class clazz, final String name, final Class[] parameters)
-    throws NoSuchMethodException
+    /**
+     * Removes the name closest to expiry from a sample of names, if the cache holds more than the
+     * maximum number of names. The names are sampled by a sweep over the cache that continues
+     * where the previous eviction stopped. Names holding authoritative RRsets, the records
+     * registered by this host, are never evicted. Must not be called while holding the lock for a
+     * name.
+     */
+    private void evict()
     {
-        Class clz = clazz;
-        Method method = null;
+        int max = maxEntries;
+        if ((max < 0) || (rrsets.size() <= max))
+        {
+            return;
+        }
         
-        while ((clz != null) && (method == null))
+        Name candidate = null;
+        CachedRRset[] candidateSets = null;
+        int candidateExpire = Integer.MAX_VALUE;
+        synchronized (evictionLock)
         {
-            try
-            {
-                method = clz.getDeclaredMethod(name, parameters);
-            } catch (SecurityException e)
+            for (int sampled = 0; sampled < EVICTION_SAMPLES; sampled++ )
             {
-            } catch (NoSuchMethodException e)
+                if ((evictionCursor == null) || !evictionCursor.hasNext())
+                {
+                    evictionCursor = rrsets.keySet().iterator();
+                    if (!evictionCursor.hasNext())
+                    {
+                        break;
+                    }
+                }
+                
+                Name name = evictionCursor.next();
+                CachedRRset[] sets = rrsets.get(name);
+                int expire = sets != null ? evictionExpire(sets) : Integer.MAX_VALUE;
+                if (expire < candidateExpire)
+                {
+                    candidate = name;
+                    candidateSets = sets;
+                    candidateExpire = expire;
+                }
+            }
+        }
+        
+        if (candidate != null)
+        {
+            synchronized (lockFor(candidate))
             {
+                rrsets.remove(candidate, candidateSets);
             }
-            
-            if (method != null)
+        }
+    }
+    
+    
+    /**
+     * Returns the earliest expiry of the RRsets, or Integer.MAX_VALUE if any of them is
+     * authoritative, so that the name is not evicted.
+     */
+    private static int evictionExpire(final CachedRRset[] sets)
+    {
+        int expire = Integer.MAX_VALUE;
+        for (CachedRRset rrset : sets)
+        {
+            if (rrset.getCredibility() >= Credibility.AUTH_AUTHORITY)
             {
-                return method;
+                return Integer.MAX_VALUE;
             }
-            
-            clz = clz.getSuperclass();
+            expire = Math.min(expire, rrset.getExpire());
         }
-        
-        throw new NoSuchMethodException("Method \"" + name + "\" does not exist in class \"" + clazz.getName() + "\".");
+        return expire;
     }
     
     
@@ -1,16 +1,29 @@
 package net.posick.mDNS;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -19,13 +32,14 @@ import net.posick.mDNS.net.Packet;
 import net.posick.mDNS.net.PacketListener;
 import net.posick.mDNS.utils.Executors;
 import net.posick.mDNS.utils.ListenerProcessor;
+import net.posick.mDNS.utils.ResolverListenerProcessor;
 import net.posick.mDNS.utils.Misc;
-import net.posick.mDNS.utils.Wait;
 import net.posick.DNS.Cache;
 import net.posick.DNS.Credibility;
 import net.posick.DNS.Flags;
 import net.posick.DNS.Header;
 import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSPacker;
 import net.posick.DNS.MulticastDNSUtils;
 import net.posick.DNS.Name;
 import net.posick.DNS.OPTRecord;
@@ -35,9 +49,10 @@ import net.posick.DNS.RRset;
 import net.posick.DNS.Rcode;
 import net.posick.DNS.Record;
 import net.posick.DNS.ResolverListener;
+import net.posick.DNS.SRVRecord;
 import net.posick.DNS.Section;
-import net.posick.DNS.SetResponse;
 import net.posick.DNS.TSIG;
+import net.posick.DNS.Type;
 import net.posick.DNS.WireParseException;
 
 /**
@@ -57,7 +72,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
 {
     private static final Logger logger = Misc.getLogger(MulticastDNSMulticastOnlyQuerier.class, true);
     
-    public class ListenerWrapper implements ResolverListener
+    public class ListenerWrapper implements QueryListener
     {
         private final Object id;
         
@@ -74,6 +89,18 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
         }
         
         
+        public Record[] getQuestions()
+        {
+            return MulticastDNSUtils.extractRecords(query, Section.QUESTION);
+        }
+        
+        
+        public boolean isBrowse()
+        {
+            return false;
+        }
+        
+        
         @Override
         public boolean equals(final Object o)
         {
@@ -124,6 +151,162 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     }
     
     
+    /**
+     * Tracks a query sent using sendAsync(Message, QueryCompletion), completing its future with
+     * the cached answers to the query once the QueryCompletion is satisfied, the query has been
+     * quiescent for the QueryCompletion's quiescence period, or the timeout elapses.
+     * 
+     * @author Steve Posick
+     */
+    protected class PendingQuery implements QueryListener
+    {
+        private final Message query;
+        
+        private final QueryCompletion completion;
+        
+        private final CompletableFuture<Message> future = new CompletableFuture<Message>();
+        
+        private int responses = 0;
+        
+        private ScheduledFuture<?> timeout;
+        
+        private ScheduledFuture<?> quiescence;
+        
+        
+        protected PendingQuery(final Message query, final QueryCompletion completion)
+        {
+            this.query = query;
+            this.completion = completion;
+        }
+        
+        
+        public Record[] getQuestions()
+        {
+            return MulticastDNSUtils.extractRecords(query, Section.QUESTION);
+        }
+        
+        
+        public boolean isBrowse()
+        {
+            return false;
+        }
+        
+        
+        public void receiveMessage(final Object id, final Message m)
+        {
+            if (future.isDone() || !MulticastDNSUtils.answersAny(query, m))
+            {
+                return;
+            }
+            
+            int count;
+            synchronized (this)
+            {
+                count = ++responses;
+            }
+            
+            Message answers = cache.queryCache(query, Credibility.ANY);
+            if (completion.isComplete(query, answers, count))
+            {
+                complete(answers);
+            } else if (completion.getQuiescence() > 0)
+            {
+                synchronized (this)
+                {
+                    if (quiescence != null)
+                    {
+                        quiescence.cancel(false);
+                    }
+                    quiescence = schedule(completion.getQuiescence());
+                }
+            }
+        }
+        
+        
+        public void handleException(final Object id, final Exception e)
+        {
+            if ((id instanceof Integer) && (((Integer) id).intValue() == query.getHeader().getID()))
+            {
+                completeExceptionally(e);
+            }
+        }
+        
+        
+        protected CompletableFuture<Message> start()
+        {
+            Message answers = cache.queryCache(query, Credibility.ANY);
+            if (completion.isComplete(query, answers, 0))
+            {
+                future.complete(answers);
+                return future;
+            }
+            
+            registerListener(this);
+            synchronized (this)
+            {
+                timeout = schedule(completion.getTimeout());
+            }
+            
+            try
+            {
+                broadcast(query, false);
+            } catch (IOException e)
+            {
+                completeExceptionally(e);
+            }
+            
+            return future;
+        }
+        
+        
+        protected void complete(final Message answers)
+        {
+            if (future.complete(answers))
+            {
+                finish();
+            }
+        }
+        
+        
+        protected void completeExceptionally(final Exception e)
+        {
+            if (future.completeExceptionally(e))
+            {
+                finish();
+            }
+        }
+        
+        
+        private void finish()
+        {
+            unregisterListener(this);
+            synchronized (this)
+            {
+                if (timeout != null)
+                {
+                    timeout.cancel(false);
+                }
+                if (quiescence != null)
+                {
+                    quiescence.cancel(false);
+                }
+            }
+        }
+        
+        
+        private ScheduledFuture<?> schedule(final long delay)
+        {
+            return executors.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    complete(cache.queryCache(query, Credibility.ANY));
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    
     /**
      * Resolver Listener that replies to queries from the network.
      * 
@@ -153,16 +336,11 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                 return;
             }
             
-            if (header.getFlag(Flags.TC))
+            // Truncated queries are reassembled by the KnownAnswerAggregator before delivery.
+            if (header.getFlag(Flags.TC) && ignoreTruncation)
             {
-                if (ignoreTruncation)
-                {
-                    logger.logp(Level.WARNING, getClass().getName(), "receiveMessage", "Truncated Message : " + "RCode: " + Rcode.string(rcode) + "; Opcode: " + Opcode.string(opcode) + " - Ignoring subsequent known answer records.");
-                    return;
-                } else
-                {
-                    // TODO: Implement the reception of truncated packets. (wait 400 to 500 milliseconds for more known answers)
-                }
+                logger.logp(Level.WARNING, getClass().getName(), "receiveMessage", "Truncated Message : " + "RCode: " + Rcode.string(rcode) + "; Opcode: " + Opcode.string(opcode) + " - Ignoring subsequent known answer records.");
+                return;
             }
             
             if (mdnsVerbose)
@@ -177,12 +355,16 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                 {
                     case Opcode.IQUERY:
                     case Opcode.QUERY:
+                        queryScheduler.observe(message);
                         Message response = cache.queryCache(message, Credibility.AUTH_AUTHORITY);
                         
                         if (response != null)
                         {
+                            boolean probe = isProbe(message);
+                            suppressAnswers(message, response);
+                            
                             Header responseHeader = response.getHeader();
-                            if ((responseHeader.getCount(Section.ANSWER) > 0) || (responseHeader.getCount(Section.AUTHORITY) > 0) || (responseHeader.getCount(Section.ADDITIONAL) > 0))
+                            if ((responseHeader.getCount(Section.ANSWER) > 0) || (responseHeader.getCount(Section.AUTHORITY) > 0))
                             {
                                 if (mdnsVerbose)
                                 {
@@ -191,7 +373,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                                 responseHeader.setFlag(Flags.AA);
                                 responseHeader.setFlag(Flags.QR);
                                 // System.out.println("-----> Writing Response <-----\nQuery:\n" + message + "\nResponse:\n" + response);
-                                writeResponse(response);
+                                responseScheduler.schedule(response, probe);
                             } else
                             {
                                 if (mdnsVerbose)
@@ -212,6 +394,58 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                 logger.log(Level.WARNING, "Error replying to query - " + e.getMessage(), e);
             }
         }
+        
+        
+        /**
+         * Removes the records from the response that the querier already knows [RFC 6762 section
+         * 7.1], and those that were multicast on this interface within the last second
+         * [RFC 6762 sections 6 and 7.4]. Recently multicast records are not suppressed when
+         * answering a probe, so that conflicting probes are always defended. The additional
+         * records are removed if no answers remain.
+         * 
+         * @param query The query
+         * @param response The response to the query
+         */
+        protected void suppressAnswers(final Message query, final Message response)
+        {
+            boolean probe = isProbe(query);
+            Map<Record, Record> knownAnswers = new HashMap<Record, Record>();
+            for (Record knownAnswer : MulticastDNSUtils.extractRecords(query, Section.ANSWER))
+            {
+                knownAnswers.put(MulticastHistory.key(knownAnswer), knownAnswer);
+            }
+            
+            for (int section : new int[] {Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL})
+            {
+                for (Record record : MulticastDNSUtils.extractRecords(response, section))
+                {
+                    Record knownAnswer = knownAnswers.get(MulticastHistory.key(record));
+                    if (((knownAnswer != null) && (knownAnswer.getTTL() >= (record.getTTL() / 2))) || (!probe && multicastHistory.recentlyMulticast(record)))
+                    {
+                        if (mdnsVerbose)
+                        {
+                            logger.logp(Level.INFO, getClass().getName(), "suppressAnswers", "Suppressing known or recently multicast record: " + record);
+                        }
+                        response.removeRecord(record, section);
+                    }
+                }
+            }
+            
+            if ((response.getHeader().getCount(Section.ANSWER) == 0) && (response.getHeader().getCount(Section.ADDITIONAL) > 0))
+            {
+                response.removeAllRecords(Section.ADDITIONAL);
+            }
+        }
+        
+        
+        /**
+         * Returns true if the query is a probe, carrying its proposed records in the authority
+         * section [RFC 6762 section 8.2].
+         */
+        protected boolean isProbe(final Message query)
+        {
+            return query.getHeader().getCount(Section.AUTHORITY) > 0;
+        }
     }
     
     
@@ -275,10 +509,24 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     
     protected boolean cacheVerbose = false;
     
-    protected ListenerProcessor<ResolverListener> resolverListenerProcessor = new ListenerProcessor<ResolverListener>(ResolverListener.class);
+    protected ListenerProcessor<ResolverListener> resolverListenerProcessor = new ResolverListenerProcessor();
     
     protected ResolverListener resolverListenerDispatcher = resolverListenerProcessor.getDispatcher();
     
+    protected ResponseRouter responseRouter = new ResponseRouter();
+    
+    protected MulticastHistory multicastHistory = new MulticastHistory();
+    
+    protected ResponseScheduler responseScheduler;
+    
+    protected QueryScheduler queryScheduler;
+    
+    /**
+     * The targets of SRV records of interest, mapped to the time at which the SRV records
+     * expire, so that the addresses of the hosts are refreshed along with the SRV records.
+     */
+    protected final Map<Name, Long> interestedHosts = new ConcurrentHashMap<Name, Long>();
+    
     protected MulticastDNSCache cache;
     
     protected Cacher cacher;
@@ -305,6 +553,19 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     
     protected Executors executors = Executors.newInstance();
     
+    protected KnownAnswerAggregator knownAnswerAggregator = new KnownAnswerAggregator(executors, new ResolverListener()
+    {
+        public void receiveMessage(final Object id, final Message message)
+        {
+            dispatch(message);
+        }
+        
+        
+        public void handleException(final Object id, final Exception e)
+        {
+        }
+    });
+    
     
     private final MulticastDNSCache.CacheMonitor cacheMonitor = new MulticastDNSCache.CacheMonitor()
     {
@@ -312,6 +573,8 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
         
         private final List nonauthRecords = new ArrayList();
         
+        private final Set<Record> refreshQuestions = new LinkedHashSet<Record>();
+        
         private long lastPoll = System.currentTimeMillis();
         
         
@@ -331,6 +594,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             
             authRecords.clear();
             nonauthRecords.clear();
+            refreshQuestions.clear();
         }
         
         
@@ -342,24 +606,26 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             }
             long ttl = rrs.getTTL();
             
-            // Update expiry of records in accordance to RFC 6762 Section 5.2
+            // Update expiry of records in accordance to RFC 6762 Section 5.2. The cache only
+            // checks a RRset when it reaches one of its refresh points.
             if (credibility >= Credibility.AUTH_AUTHORITY)
             {
-                if (isAboutToExpire(ttl, expiresIn))
+                Record[] records = MulticastDNSUtils.extractRecords(rrs);
+                for (Record record : records)
                 {
-                    Record[] records = MulticastDNSUtils.extractRecords(rrs);
-                    for (Record record : records)
+                    try
                     {
-                        try
-                        {
-                            MulticastDNSUtils.setTLLForRecord(record, ttl);
-                            authRecords.add(record);
-                        } catch (Exception e)
-                        {
-                            logger.log(Level.WARNING, e.getMessage(), e);
-                        }
+                        MulticastDNSUtils.setTLLForRecord(record, ttl);
+                        authRecords.add(record);
+                    } catch (Exception e)
+                    {
+                        logger.log(Level.WARNING, e.getMessage(), e);
                     }
                 }
+            } else if (isInterested(rrs.getName(), rrs.getType()))
+            {
+                // Cache maintenance query for records that are in use, RFC 6762 Section 5.2
+                refreshQuestions.add(Record.newRecord(rrs.getName(), rrs.getType(), rrs.getDClass() & 0x7FFF));
             }
         }
         
@@ -385,6 +651,21 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                     broadcast(m, false);
                 }
                 
+                if (refreshQuestions.size() > 0)
+                {
+                    Message m = new Message(0);
+                    for (Record question : refreshQuestions)
+                    {
+                        m.addRecord(question, Section.QUESTION);
+                    }
+                    
+                    if (mdnsVerbose || cacheVerbose)
+                    {
+                        logger.logp(Level.INFO, getClass().getName(), "end", "CacheMonitor Querying to refresh Non-Authoritative Records:\n" + m);
+                    }
+                    queryScheduler.query(m);
+                }
+                
                 // Notify Local client of expired records
                 if (nonauthRecords.size() > 0)
                 {
@@ -401,13 +682,15 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                     {
                         logger.logp(Level.INFO, getClass().getName(), "end", "CacheMonitor Locally Broadcasting Non-Authoritative Records:\n" + m);
                     }
-                    resolverListenerProcessor.getDispatcher().receiveMessage(h.getID(), m);
+                    resolverListenerDispatcher.receiveMessage(h.getID(), m);
+                    responseRouter.route(h.getID(), m);
                 }
             } catch (IOException e)
             {
                 IOException ioe = new IOException("Exception \"" + e.getMessage() + "\" occured while refreshing cached entries.");
                 ioe.setStackTrace(e.getStackTrace());
                 resolverListenerDispatcher.handleException("", ioe);
+                responseRouter.handleException("", ioe);
                 
                 if (mdnsVerbose)
                 {
@@ -420,6 +703,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             
             authRecords.clear();
             nonauthRecords.clear();
+            refreshQuestions.clear();
         }
         
         
@@ -463,10 +747,31 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
         }
         
         
-        protected boolean isAboutToExpire(final long ttl, final int expiresIn)
+        /**
+         * Returns true if records of the name and type are of interest to an outstanding query or
+         * browse operation, or are the addresses of a host targeted by SRV records of interest.
+         */
+        protected boolean isInterested(final Name name, final int type)
         {
-            double percentage = (double) expiresIn / (double) ttl;
-            return (percentage <= .07f) || ((percentage >= .10f) && (percentage <= .12f)) || ((percentage >= .15f) && (percentage <= .17f)) || ((percentage >= .20f) && (percentage <= .22f));
+            if (responseRouter.isInterested(name, type))
+            {
+                return true;
+            }
+            
+            if ((type == Type.A) || (type == Type.AAAA))
+            {
+                Long expires = interestedHosts.get(name);
+                if (expires != null)
+                {
+                    if (expires.longValue() > System.currentTimeMillis())
+                    {
+                        return true;
+                    }
+                    interestedHosts.remove(name, expires);
+                }
+            }
+            
+            return false;
         }
     };
     
@@ -487,6 +792,22 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     
     public MulticastDNSMulticastOnlyQuerier(final InetAddress ifaceAddress, final InetAddress address)
     throws IOException
+    {
+        this(ifaceAddress, address, MulticastDNSCache.DEFAULT_MDNS_CACHE);
+    }
+    
+    
+    /**
+     * Creates a querier for the specified interface address, or all interfaces if null, that
+     * caches records in the specified cache.
+     * 
+     * @param ifaceAddress The interface address, or null for all interfaces
+     * @param address The multicast group address
+     * @param cache The cache
+     * @throws IOException
+     */
+    public MulticastDNSMulticastOnlyQuerier(final InetAddress ifaceAddress, final InetAddress address, final MulticastDNSCache cache)
+    throws IOException
     {
         super();
         
@@ -501,11 +822,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             }
         }, 1, 1, TimeUnit.MINUTES);
         
-        cache = MulticastDNSCache.DEFAULT_MDNS_CACHE;
-        if (cache.getCacheMonitor() == null)
-        {
-            cache.setCacheMonitor(cacheMonitor);
-        }
+        this.cache = cache;
         
         // Set Address to any local address
         setAddress(address);
@@ -516,47 +833,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             multicastProcessors.add(new DatagramProcessor(ifaceAddress, address, port, this));
         } else
         {
-            Set<InetAddress> addresses = new HashSet<InetAddress>();
-            Set<String> MACs = new HashSet<String>();
-            Enumeration<NetworkInterface> netIfaces = NetworkInterface.getNetworkInterfaces();
-            while (netIfaces.hasMoreElements())
-            {
-                NetworkInterface netIface = netIfaces.nextElement();
-                
-                if (netIface.isUp() && !netIface.isVirtual() && !netIface.isLoopback())
-                {
-                    // Generate MAC
-                    byte[] hwAddr = netIface.getHardwareAddress();
-                    if (hwAddr != null)
-                    {
-                        StringBuilder builder = new StringBuilder();
-                        for (byte octet : hwAddr)
-                        {
-                            builder.append(Integer.toHexString((octet & 0x0FF))).append(":");
-                        }
-                        if (builder.length() > 1)
-                        {
-                            builder.setLength(builder.length() - 1);
-                        }
-                        String mac = builder.toString();
-                        
-                        if (!MACs.contains(mac))
-                        {
-                            MACs.add(mac);
-                            Enumeration<InetAddress> ifaceAddrs = netIface.getInetAddresses();
-                            while (ifaceAddrs.hasMoreElements())
-                            {
-                                InetAddress addr = ifaceAddrs.nextElement();
-                                if (address.getAddress().length == addr.getAddress().length)
-                                {
-                                    addresses.add(addr);
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            
+            List<InetAddress> addresses = getInterfaceAddresses(address, false);
             for (InetAddress ifaceAddr : addresses)
             {
                 if (ifaceAddr.getAddress().length == address.getAddress().length)
@@ -587,16 +864,86 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             }
         }, getClass().getSimpleName() + " Shutdown Hook"));
         
+        // The collaborators used by the packet listeners and the cache monitor are created before
+        // the processors start receiving packets.
+        responseScheduler = new ResponseScheduler(this, executors, multicastHistory);
+        queryScheduler = new QueryScheduler(this, executors, cache);
+        
         cacher = new Cacher();
         registerListener(cacher);
+        responder = new MulticastDNSResponder();
+        registerListener(responder);
+        
+        if (cache.getCacheMonitor() == null)
+        {
+            cache.setCacheMonitor(cacheMonitor);
+        }
         
         for (DatagramProcessor multicastProcessor : multicastProcessors)
         {
             multicastProcessor.start();
         }
+    }
+    
+    
+    /**
+     * Returns the addresses of the local network interfaces that are up, of the same family as
+     * the multicast address. Interfaces sharing a hardware address are only included once.
+     * 
+     * @param address The multicast group address
+     * @param perLink If true, only the first address of each interface is returned
+     * @return The interface addresses
+     * @throws SocketException
+     */
+    public static List<InetAddress> getInterfaceAddresses(final InetAddress address, final boolean perLink)
+    throws SocketException
+    {
+        Set<InetAddress> addresses = new LinkedHashSet<InetAddress>();
+        Set<String> MACs = new HashSet<String>();
+        Enumeration<NetworkInterface> netIfaces = NetworkInterface.getNetworkInterfaces();
+        while (netIfaces.hasMoreElements())
+        {
+            NetworkInterface netIface = netIfaces.nextElement();
+            
+            if (netIface.isUp() && !netIface.isVirtual() && !netIface.isLoopback())
+            {
+                // Generate MAC
+                byte[] hwAddr = netIface.getHardwareAddress();
+                if (hwAddr != null)
+                {
+                    StringBuilder builder = new StringBuilder();
+                    for (byte octet : hwAddr)
+                    {
+                        builder.append(Integer.toHexString((octet & 0x0FF))).append(":");
+                    }
+                    if (builder.length() > 1)
+                    {
+                        builder.setLength(builder.length() - 1);
+                    }
+                    String mac = builder.toString();
+                    
+                    if (!MACs.contains(mac))
+                    {
+                        MACs.add(mac);
+                        Enumeration<InetAddress> ifaceAddrs = netIface.getInetAddresses();
+                        while (ifaceAddrs.hasMoreElements())
+                        {
+                            InetAddress addr = ifaceAddrs.nextElement();
+                            if (address.getAddress().length == addr.getAddress().length)
+                            {
+                                addresses.add(addr);
+                                if (perLink)
+                                {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
         
-        responder = new MulticastDNSResponder();
-        registerListener(responder);
+        return new ArrayList<InetAddress>(addresses);
     }
     
     
@@ -621,23 +968,20 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                                                                              Section.UPDATE,
                                                                              Section.ADDITIONAL}), Credibility.AUTH_AUTHORITY);
             writeMessageToWire(convertUpdateToQueryResponse(message));
+        } else if (isSchedulable(message))
+        {
+            queryScheduler.query(message);
         } else if (addKnownAnswers)
         {
             Message knownAnswer = cache.queryCache(message, Credibility.ANY);
-            for (Integer section : new Integer[] {Section.ANSWER,
-                                                  Section.ADDITIONAL,
-                                                  Section.AUTHORITY})
+            ResponseAccumulator accumulator = new ResponseAccumulator(message);
+            for (int section : new int[] {Section.ANSWER,
+                                          Section.ADDITIONAL,
+                                          Section.AUTHORITY})
             {
-                Record[] records = knownAnswer.getSectionArray(section);
-                if ((records != null) && (records.length > 0))
+                for (Record record : knownAnswer.getSection(section))
                 {
-                    for (Record record : records)
-                    {
-                        if (!message.findRecord(record))
-                        {
-                            message.addRecord(record, section);
-                        }
-                    }
+                    accumulator.add(record, section);
                 }
             }
             
@@ -678,6 +1022,15 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
         }
         
         resolverListenerProcessor.close();
+        responseRouter.close();
+        if (responseScheduler != null)
+        {
+            responseScheduler.close();
+        }
+        if (queryScheduler != null)
+        {
+            queryScheduler.close();
+        }
     }
     
     
@@ -771,13 +1124,13 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             logger.logp(Level.INFO, getClass().getName(), "packetReceived", "mDNS Datagram Received!");
         }
         
-        byte[] data = packet.getData();
+        ByteBuffer data = packet.getBuffer();
         
         // Exclude message sent by this Responder and Message from a non-mDNS port
-        if (data.length > 0/* && packet.getPort() == processor.getPort() && !processor.isSentPacket(data) */)
+        if (data.remaining() > 0/* && packet.getPort() == processor.getPort() && !processor.isSentPacket(data) */)
         {
             // Check that the response is long enough.
-            if (data.length < Header.LENGTH)
+            if (data.remaining() < Header.LENGTH)
             {
                 if (mdnsVerbose)
                 {
@@ -789,17 +1142,64 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             try
             {
                 Message message = parseMessage(data);
-                resolverListenerDispatcher.receiveMessage(message.getHeader().getID(), message);
+                try
+                {
+                    if (ignoreTruncation || !knownAnswerAggregator.aggregate(packet.getSocketAddress(), message))
+                    {
+                        dispatch(message);
+                    }
+                } finally
+                {
+                    // The packet buffer is reused once this method returns
+                    message.detach();
+                }
             } catch (IOException e)
             {
-                logger.log(Level.WARNING, "Error parsing mDNS Packet - " + e.getMessage() + "\nPacket Data [" + Arrays.toString(data) + "]", e);
+                logger.log(Level.WARNING, "Error parsing mDNS Packet - " + e.getMessage() + "\nPacket Data [" + Arrays.toString(packet.getData()) + "]", e);
+            } catch (IllegalStateException e)
+            {
+                // A record that passed validation could not be decoded by a listener
+                logger.log(Level.WARNING, "Error parsing mDNS Packet - " + e.getMessage() + "\nPacket Data [" + Arrays.toString(packet.getData()) + "]", e);
+            }
+        }
+    }
+    
+    
+    /**
+     * Delivers a received message to the registered listeners, remembering the records of
+     * responses as recently multicast.
+     * 
+     * @param message The received message
+     */
+    protected void dispatch(final Message message)
+    {
+        if (message.getHeader().getFlag(Flags.QR))
+        {
+            Record[] records = MulticastDNSUtils.extractRecords(message, Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL);
+            multicastHistory.multicast(records);
+            
+            long now = System.currentTimeMillis();
+            for (Record record : records)
+            {
+                if ((record.getType() == Type.SRV) && (record.getTTL() > 0) && responseRouter.isInterested(record.getName(), Type.SRV))
+                {
+                    interestedHosts.put(((SRVRecord) record).getTarget(), now + (record.getTTL() * 1000));
+                }
             }
         }
+        
+        resolverListenerDispatcher.receiveMessage(message.getHeader().getID(), message);
+        responseRouter.route(message.getHeader().getID(), message);
     }
     
     
     public ResolverListener registerListener(final ResolverListener listener)
     {
+        if (listener instanceof QueryListener)
+        {
+            return responseRouter.register((QueryListener) listener);
+        }
+        
         return resolverListenerProcessor.registerListener(listener);
     }
     
@@ -816,59 +1216,33 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             throw new IOException("Query is null");
         }
         
-        final Message query = (Message) request.clone();
+        final Message query = request.clone();
         final int opcode = query.getHeader().getOpcode();
         
-        // If all answers for the query are cached, return immediately. Otherwise,
-        // Broadcast the query, waiting minimum response wait time, re-broadcasting the query
-        // periodically to ensure that all mDNS Responders on the network have a chance to respond
-        // (dropped frames/packets, etc...), and then return the answers received from cache.
+        // If all answers for the query are cached, return immediately. Otherwise, broadcast the
+        // query and return the answers received from cache as soon as all questions are answered
+        // or the response wait time elapses.
         switch (opcode)
         {
             case Opcode.QUERY:
             case Opcode.IQUERY:
-                Message message = cache.queryCache(query, Credibility.ANY);
-                if (MulticastDNSUtils.answersAll(query, message))
+                try
                 {
-                    return message;
-                } else
+                    return sendAsync(query, QueryCompletion.answersAll()).toCompletableFuture().get();
+                } catch (InterruptedException e)
                 {
-                    final List results = new ArrayList();
-                    final List exceptions = new ArrayList();
-                    
-                    sendAsync(query, new ResolverListener()
-                    {
-                        public void handleException(final Object id, final Exception e)
-                        {
-                            synchronized (results)
-                            {
-                                exceptions.add(e);
-                                results.notifyAll();
-                            }
-                        }
-                        
-                        
-                        public void receiveMessage(final Object id, final Message m)
-                        {
-                            synchronized (results)
-                            {
-                                results.add(m);
-                                results.notifyAll();
-                            }
-                        }
-                    });
-                    
-                    Wait.forResponse(results);
-                    
-                    if (exceptions.size() > 0)
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a response to the query");
+                } catch (ExecutionException e)
+                {
+                    if (e.getCause() instanceof IOException)
                     {
-                        Exception e = (Exception) exceptions.get(0);
-                        IOException ioe = new IOException(e.getMessage());
-                        ioe.setStackTrace(e.getStackTrace());
-                        throw ioe;
+                        throw (IOException) e.getCause();
                     }
+                    IOException ioe = new IOException(e.getCause().getMessage());
+                    ioe.setStackTrace(e.getCause().getStackTrace());
+                    throw ioe;
                 }
-                break;
             case Opcode.UPDATE:
                 broadcast(query, false);
                 break;
@@ -880,13 +1254,52 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     }
     
     
+    /**
+     * {@inheritDoc}
+     */
+    public CompletionStage<Message> sendAsync(final Message query, final QueryCompletion completion)
+    {
+        Message m = query.clone();
+        switch (m.getHeader().getOpcode())
+        {
+            case Opcode.QUERY:
+            case Opcode.IQUERY:
+                return new PendingQuery(m, completion).start();
+            case Opcode.UPDATE:
+                CompletableFuture<Message> future = new CompletableFuture<Message>();
+                try
+                {
+                    broadcast(m, false);
+                    future.complete(cache.queryCache(m, Credibility.ANY));
+                } catch (IOException e)
+                {
+                    future.completeExceptionally(e);
+                }
+                return future;
+            default:
+                CompletableFuture<Message> failed = new CompletableFuture<Message>();
+                failed.completeExceptionally(new IOException("Don't know what to do with Opcode: " + Opcode.string(m.getHeader().getOpcode()) + " queries."));
+                return failed;
+        }
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public CompletionStage<Message> sendAsync(final Message query, final Executor executor)
+    {
+        return sendAsync(query, QueryCompletion.answersAll()).thenApplyAsync(Function.<Message> identity(), executor);
+    }
+    
+    
     /**
      * {@inheritDoc}
      */
     
     public Object sendAsync(final Message m, final ResolverListener listener)
     {
-        final Message query = (Message) m.clone();
+        final Message query = m.clone();
         final Object id = query.getHeader().getID();
         final int opcode = query.getHeader().getOpcode();
         final ListenerWrapper wrapper = new ListenerWrapper(id, query, listener);
@@ -920,14 +1333,13 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                     }
                     
                     int wait = Options.intValue("mdns_resolve_wait");
-                    long timeOut = System.currentTimeMillis() + (wait > 0 ? wait : Querier.DEFAULT_RESPONSE_WAIT_TIME);
                     executors.schedule(new Runnable()
                     {
                         public void run()
                         {
                             unregisterListener(wrapper);
                         }
-                    }, timeOut, TimeUnit.MILLISECONDS);
+                    }, wait > 0 ? wait : Querier.DEFAULT_RESPONSE_WAIT_TIME, TimeUnit.MILLISECONDS);
                 } catch (Exception e)
                 {
                     listener.handleException(id, e);
@@ -977,21 +1389,10 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
             }
         } else
         {
-            try
-            {
-                this.cache = new MulticastDNSCache(cache);
-                if (this.cache.getCacheMonitor() == null)
-                {
-                    this.cache.setCacheMonitor(cacheMonitor);
-                }
-            } catch (Exception e)
+            this.cache = new MulticastDNSCache(cache);
+            if (this.cache.getCacheMonitor() == null)
             {
-                if (mdnsVerbose)
-                {
-                    logger.log(Level.WARNING, e.getMessage(), e);
-                }
-                
-                throw new IllegalArgumentException("Could not set Cache - " + e.getMessage());
+                this.cache.setCacheMonitor(cacheMonitor);
             }
         }
     }
@@ -1077,13 +1478,13 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     {
         setTimeout(secs, 0);
     }
-
+    
     @Override
     public void setTimeout(Duration duration) {
         setTimeout((int) duration.toSeconds());
     }
-
-
+    
+    
     /**
      * {@inheritDoc}
      */
@@ -1104,7 +1505,8 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
     
     public ResolverListener unregisterListener(final ResolverListener listener)
     {
-        return resolverListenerProcessor.unregisterListener(listener);
+        ResolverListener removed = responseRouter.unregister(listener);
+        return removed != null ? removed : resolverListenerProcessor.unregisterListener(listener);
     }
     
     
@@ -1161,10 +1563,27 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
      */
     protected Message parseMessage(final byte[] b)
     throws WireParseException
+    {
+        return parseMessage(ByteBuffer.wrap(b));
+    }
+    
+    
+    /**
+     * Parses a DNS message from a raw DNS packet stored in a ByteBuffer. The records are only
+     * indexed, and decoded when first accessed, so listeners that only check the header or a few
+     * records of a message do not pay for decoding the rest. The message refers to the packet
+     * buffer rather than copying it, so it must be detached before the buffer is released.
+     * 
+     * @param b The ByteBuffer containing the raw DNS packet
+     * @return The DNS message
+     * @throws WireParseException If an error occurred while parsing the DNS message
+     */
+    protected Message parseMessage(final ByteBuffer b)
+    throws WireParseException
     {
         try
         {
-            return new Message(b);
+            return Message.parseLazily(b);
         } catch (IOException e)
         {
             if (mdnsVerbose)
@@ -1211,12 +1630,11 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
         Header header = message.getHeader();
         header.setID(0);
         applyEDNS(message);
-        if (tsig != null)
-        {
-            tsig.apply(message, null);
-        }
         
-        byte[] out = message.toWire(Message.MAXLENGTH);
+        // Messages larger than the payload size are packed into multiple datagrams, only
+        // repacking when processors have differing payload sizes.
+        int packedSize = -1;
+        List<byte[]> datagrams = null;
         for (DatagramProcessor multicastProcessor : multicastProcessors)
         {
             int maxUDPSize;
@@ -1229,31 +1647,85 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                 maxUDPSize = multicastProcessor.getMaxPayloadSize();
             }
             
-            // TODO: Break into multiple messages with Truncated flag set
-            if (out.length > maxUDPSize)
+            if ((datagrams == null) || (maxUDPSize != packedSize))
+            {
+                datagrams = MulticastDNSPacker.pack(message, maxUDPSize, tsig);
+                packedSize = maxUDPSize;
+            }
+            
+            for (byte[] out : datagrams)
             {
-                if (header.getFlag(Flags.QR))
+                try
                 {
-                    throw new IOException("DNS Message too large! - " + out.length + " bytes in size.");
-                } else
+                    multicastProcessor.send(out/* , remember */);
+                } catch (Exception e)
                 {
-                    Message[] messages = MulticastDNSUtils.splitMessage(message);
-                    for (int index = 0; index < messages.length; index++ )
-                    {
-                        writeMessageToWire(messages[index]/* , remember */);
-                    }
-                    return;
+                    resolverListenerDispatcher.handleException(message.getHeader().getID(), e);
+                    responseRouter.handleException(message.getHeader().getID(), e);
                 }
             }
-            
-            try
-            {
-                multicastProcessor.send(out/* , remember */);
-            } catch (Exception e)
+        }
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public Object startContinuousQuery(final Message query)
+    {
+        return queryScheduler.start(query);
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void stopContinuousQuery(final Object id)
+    {
+        queryScheduler.stop(id);
+    }
+    
+    
+    /**
+     * Returns true if the message is a multicast query that only asks questions, which the
+     * QueryScheduler merges with the questions of other queries. Probes, queries with known
+     * answers and queries asking for unicast responses are sent as they are.
+     */
+    protected boolean isSchedulable(final Message message)
+    {
+        Header header = message.getHeader();
+        if ((header.getOpcode() != Opcode.QUERY) || header.getFlag(Flags.QR) || (header.getCount(Section.QUESTION) == 0) ||
+            (header.getCount(Section.ANSWER) > 0) || (header.getCount(Section.AUTHORITY) > 0))
+        {
+            return false;
+        }
+        
+        for (Record question : MulticastDNSUtils.extractRecords(message, Section.QUESTION))
+        {
+            if ((question.getDClass() & Constants.UNICAST_RESPONSE) != 0)
             {
-                resolverListenerDispatcher.handleException(message.getHeader().getID(), e);
+                return false;
             }
         }
+        
+        return true;
+    }
+    
+    
+    /**
+     * Writes a query built by the QueryScheduler to the wire.
+     * 
+     * @param message The query
+     */
+    protected void writeQuery(final Message message)
+    throws IOException
+    {
+        if (mdnsVerbose)
+        {
+            logger.logp(Level.INFO, getClass().getName(), "writeQuery", "Writing Query to " + multicastAddress.getHostAddress() + ":" + port);
+        }
+        
+        writeMessageToWire(message);
     }
     
     
@@ -1275,6 +1747,7 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
         header.setRcode(0);
         
         writeMessageToWire(message/* , true */);
+        multicastHistory.multicast(MulticastDNSUtils.extractRecords(message, Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL));
     }
     
     
@@ -1288,35 +1761,20 @@ public class MulticastDNSMulticastOnlyQuerier implements Querier, PacketListener
                 try
                 {
                     // Workaround. mDNS Uses high order DClass bit for Unicast Response OK
+                    boolean cacheFlush = (record.getDClass() & Constants.CACHE_FLUSH) != 0;
                     Record cacheRecord = MulticastDNSUtils.clone(record);
                     MulticastDNSUtils.setDClassForRecord(cacheRecord, cacheRecord.getDClass() & 0x7FFF);
                     if (cacheRecord.getTTL() > 0)
                     {
-                        SetResponse response = cache.lookupRecords(cacheRecord.getName(), cacheRecord.getType(), Credibility.ANY);
-                        List<RRset> rrs = response.answers();
-                        if ((rrs != null) && (rrs.size() > 0))
+                        if (mdnsVerbose)
                         {
-                            Record[] cachedRecords = MulticastDNSUtils.extractRecords(rrs);
-                            if ((cachedRecords != null) && (cachedRecords.length > 0))
-                            {
-                                if (mdnsVerbose)
-                                {
-                                    logger.logp(Level.INFO, getClass().getName(), "updateCache", "Updating Cached Record: " + cacheRecord);
-                                }
-                                cache.updateRRset(cacheRecord, credibility);
-                            }
-                        } else
-                        {
-                            if (mdnsVerbose)
-                            {
-                                logger.logp(Level.INFO, getClass().getName(), "updateCache", "Caching Record: " + cacheRecord);
-                            }
-                            cache.addRecord(cacheRecord, credibility, null);
+                            logger.logp(Level.INFO, getClass().getName(), "updateCache", "Caching Record: " + cacheRecord);
                         }
+                        cache.updateRRset(cacheRecord, credibility, cacheFlush);
                     } else
                     {
                         // Remove unregistered records from Cache
-                        cache.removeElementCopy(cacheRecord.getName(), cacheRecord.getType());
+                        cache.removeRecord(cacheRecord, credibility);
                     }
                 } catch (Exception e)
                 {
@@ -1,23 +1,31 @@
 package net.posick.mDNS;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.posick.mDNS.utils.ListenerProcessor;
+import net.posick.mDNS.utils.ResolverListenerProcessor;
 import net.posick.mDNS.utils.Misc;
 import net.posick.DNS.ExtendedResolver;
-import net.posick.DNS.Flags;
-import net.posick.DNS.Header;
 import net.posick.DNS.Message;
 import net.posick.DNS.MulticastDNSUtils;
 import net.posick.DNS.Name;
-import net.posick.DNS.Opcode;
 import net.posick.DNS.Options;
 import net.posick.DNS.Rcode;
 import net.posick.DNS.Record;
@@ -48,6 +56,13 @@ public class MulticastDNSQuerier implements Querier
         
         private final LinkedList responses = new LinkedList();
         
+        // A Lock rather than the responses monitor, so that waiting does not pin virtual threads
+        private final ReentrantLock lock = new ReentrantLock();
+        
+        private final Condition responded = lock.newCondition();
+        
+        private final ResponseAccumulator accumulator;
+        
         private int requestsSent;
         
         private final List requestIDs = new ArrayList();
@@ -60,6 +75,7 @@ public class MulticastDNSQuerier implements Querier
             this.querier = querier;
             this.query = query;
             this.listener = listener;
+            accumulator = new ResponseAccumulator(query.clone());
             mdnsVerbose = Options.check("mdns_verbose");
         }
         
@@ -67,60 +83,16 @@ public class MulticastDNSQuerier implements Querier
         public Message getResponse(final int timeout)
         throws IOException
         {
-            Message response = query.clone();
-            Header header = response.getHeader();
             try
             {
                 Message[] messages = getResults(true, timeout);
-                
-                boolean found = false;
                 if ((messages != null) && (messages.length > 0))
                 {
-                    header.setRcode(Rcode.NOERROR);
-                    header.setOpcode(Opcode.QUERY);
-                    header.setFlag(Flags.QR);
-                    
-                    for (Message message : messages)
-                    {
-                        Header h = message.getHeader();
-                        if (h.getRcode() == Rcode.NOERROR)
-                        {
-                            if (h.getFlag(Flags.AA))
-                            {
-                                header.setFlag(Flags.AA);
-                            }
-                            
-                            if (h.getFlag(Flags.AD))
-                            {
-                                header.setFlag(Flags.AD);
-                            }
-                            
-                            for (int section : new int[] {Section.ANSWER,
-                                                          Section.ADDITIONAL,
-                                                          Section.AUTHORITY})
-                            {
-                                Record[] records = message.getSectionArray(section);
-                                if ((records != null) && (records.length > 0))
-                                {
-                                    for (Record record : records)
-                                    {
-                                        if (!response.findRecord(record))
-                                        {
-                                            response.addRecord(record, section);
-                                            found = true;
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-                
-                if (!found)
-                {
-                    header.setRcode(Rcode.NXDOMAIN);
+                    return accumulator.getResponse();
                 }
                 
+                Message response = query.clone();
+                response.getHeader().setRcode(Rcode.NXDOMAIN);
                 return response;
             } catch (Exception e)
             {
@@ -144,30 +116,41 @@ public class MulticastDNSQuerier implements Querier
             {
                 long now = System.currentTimeMillis();
                 long timeout = now + timeoutValue;
-                while (!hasResults() && ((now = System.currentTimeMillis()) < timeout))
+                lock.lock();
+                try
                 {
-                    synchronized (responses)
+                    while (!hasResults() && ((now = System.currentTimeMillis()) < timeout))
                     {
-                        if (!hasResults())
+                        try
                         {
-                            try
-                            {
-                                responses.wait(timeout - now);
-                            } catch (InterruptedException e)
-                            {
-                                // ignore
-                            }
+                            responded.await(timeout - now, TimeUnit.MILLISECONDS);
+                        } catch (InterruptedException e)
+                        {
+                            // ignore
                         }
                     }
+                } finally
+                {
+                    lock.unlock();
                 }
             }
             
-            if (responses.size() > 0)
+            Object[] received;
+            lock.lock();
+            try
+            {
+                received = responses.toArray();
+            } finally
+            {
+                lock.unlock();
+            }
+            
+            if (received.length > 0)
             {
                 LinkedList messages = new LinkedList();
                 LinkedList exceptions = new LinkedList();
                 
-                for (Object o : responses)
+                for (Object o : received)
                 {
                     Response response = (Response) o;
                     if (response.inError())
@@ -197,11 +180,7 @@ public class MulticastDNSQuerier implements Querier
             if ((requestIDs.size() != 0) && (!requestIDs.contains(id) || (this != id) || !equals(id)))
             {
                 logger.logp(Level.FINE, getClass().getName(), "handleException", "!!!!! Exception Received for ID - " + id + ".");
-                synchronized (responses)
-                {
-                    responses.add(new Response(id, exception));
-                    responses.notifyAll();
-                }
+                addResponse(new Response(id, exception));
                 
                 if (listener != null)
                 {
@@ -227,7 +206,17 @@ public class MulticastDNSQuerier implements Querier
         
         public boolean inError()
         {
-            for (Object o : responses)
+            Object[] received;
+            lock.lock();
+            try
+            {
+                received = responses.toArray();
+            } finally
+            {
+                lock.unlock();
+            }
+            
+            for (Object o : received)
             {
                 Response response = (Response) o;
                 if (!response.inError())
@@ -240,16 +229,27 @@ public class MulticastDNSQuerier implements Querier
         }
         
         
+        private void addResponse(final Response response)
+        {
+            lock.lock();
+            try
+            {
+                responses.add(response);
+                responded.signalAll();
+            } finally
+            {
+                lock.unlock();
+            }
+        }
+        
+        
         public void receiveMessage(final Object id, final Message message)
         {
             if ((requestIDs.size() == 0) || requestIDs.contains(id) || (this == id) || equals(id) || MulticastDNSUtils.answersAny(query, message))
             {
                 logger.logp(Level.FINE, getClass().getName(), "receiveMessage", "!!!! Message Received - " + id + " - " + query.getQuestion());
-                synchronized (responses)
-                {
-                    responses.add(new Response(this, message));
-                    responses.notifyAll();
-                }
+                accumulator.merge(message);
+                addResponse(new Response(this, message));
                 
                 if (listener != null)
                 {
@@ -353,8 +353,8 @@ public class MulticastDNSQuerier implements Querier
             return exception != null;
         }
     }
-
-    protected ListenerProcessor<ResolverListener> resolverListenerProcessor = new ListenerProcessor<ResolverListener>(ResolverListener.class);
+    
+    protected ListenerProcessor<ResolverListener> resolverListenerProcessor = new ResolverListenerProcessor();
     
     protected ResolverListener resolverListenerDispatcher = resolverListenerProcessor.getDispatcher();
     
@@ -367,7 +367,7 @@ public class MulticastDNSQuerier implements Querier
     protected Resolver[] unicastResolvers;
     
     private final boolean mdnsVerbose;
-
+    
     protected ResolverListener resolverDispatch = new ResolverListener()
     {
         public void handleException(final Object id, final Exception e)
@@ -442,26 +442,19 @@ public class MulticastDNSQuerier implements Querier
             this.unicastResolvers = unicastResolvers;
         }
         
-        Querier ipv4Responder = null;
-        Querier ipv6Responder = null;
-        
-        IOException ipv4_exception = null;
-        IOException ipv6_exception = null;
+        List<Querier> responders = new ArrayList<Querier>();
+        IOException exception = null;
         
         if (ipv4)
         {
             try
             {
-                ipv4Responder = new MulticastDNSMulticastOnlyQuerier(false);
+                responders.addAll(createResponders(false));
                 this.ipv4 = true;
             } catch (IOException e)
             {
-                ipv4Responder = null;
-                ipv4_exception = e;
-                if (mdnsVerbose)
-                {
-                    logger.log(Level.WARNING, "Error constructing IPv4 mDNS Responder - " + e.getMessage(), e);
-                }
+                exception = e;
+                logger.log(Level.WARNING, "Error constructing IPv4 mDNS Responder - " + e.getMessage(), e);
             }
         }
         
@@ -469,43 +462,76 @@ public class MulticastDNSQuerier implements Querier
         {
             try
             {
-                ipv6Responder = new MulticastDNSMulticastOnlyQuerier(true);
+                responders.addAll(createResponders(true));
                 this.ipv6 = true;
             } catch (IOException e)
             {
-                ipv6Responder = null;
-                ipv6_exception = e;
-                if (mdnsVerbose)
+                if (exception == null)
                 {
-                    logger.log(Level.WARNING, "Error constructing IPv6 mDNS Responder - " + e.getMessage(), e);
+                    exception = e;
                 }
+                logger.log(Level.WARNING, "Error constructing IPv6 mDNS Responder - " + e.getMessage(), e);
             }
         }
         
-        if ((ipv4Responder != null) && (ipv6Responder != null))
-        {
-            multicastResponders = new Querier[] {ipv4Responder,
-                                                 ipv6Responder};
-            ipv4Responder.registerListener(resolverDispatch);
-            ipv6Responder.registerListener(resolverDispatch);
-        } else if (ipv4Responder != null)
+        if (responders.isEmpty() && (exception != null))
         {
-            multicastResponders = new Querier[] {ipv4Responder};
-            ipv4Responder.registerListener(resolverDispatch);
-        } else if (ipv6Responder != null)
+            throw exception;
+        }
+        
+        multicastResponders = responders.toArray(new Querier[responders.size()]);
+        for (Querier responder : multicastResponders)
         {
-            multicastResponders = new Querier[] {ipv6Responder};
-            ipv6Responder.registerListener(resolverDispatch);
-        } else
+            responder.registerListener(resolverDispatch);
+        }
+    }
+    
+    
+    /**
+     * Creates the multicast queriers for an IP version. Unless the "mdns_cross_link" option is
+     * set, a querier with its own cache is created for each link, so that queries are answered
+     * only on the link they arrived on and the records learned on one link are cached apart from
+     * those of other links. Lookups still span all links, as they are sent to every querier. If
+     * the "mdns_cross_link" option is set, or no links are found, a single querier spanning all
+     * links with the shared cache is created.
+     * 
+     * @param ipv6 true for IPv6, false for IPv4
+     * @return The multicast queriers
+     * @throws IOException If no querier could be created
+     */
+    protected static List<Querier> createResponders(final boolean ipv6)
+    throws IOException
+    {
+        List<Querier> responders = new ArrayList<Querier>();
+        if (!Options.check("mdns_cross_link"))
         {
-            if (ipv4_exception != null)
+            InetAddress address = InetAddress.getByName(ipv6 ? Constants.DEFAULT_IPv6_ADDRESS : Constants.DEFAULT_IPv4_ADDRESS);
+            IOException exception = null;
+            for (InetAddress linkAddress : MulticastDNSMulticastOnlyQuerier.getInterfaceAddresses(address, true))
+            {
+                MulticastDNSCache cache = new MulticastDNSCache();
+                try
+                {
+                    responders.add(new MulticastDNSMulticastOnlyQuerier(linkAddress, address, cache));
+                } catch (IOException e)
+                {
+                    cache.close();
+                    exception = e;
+                    logger.log(Level.WARNING, "Could not create mDNS Responder for address \"" + linkAddress + "\" - " + e.getMessage(), e);
+                }
+            }
+            
+            if (!responders.isEmpty())
             {
-                throw ipv4_exception;
-            } else if (ipv6_exception != null)
+                return responders;
+            } else if (exception != null)
             {
-                throw ipv6_exception;
+                throw exception;
             }
         }
+        
+        responders.add(new MulticastDNSMulticastOnlyQuerier(ipv6));
+        return responders;
     }
     
     
@@ -553,9 +579,55 @@ public class MulticastDNSQuerier implements Querier
     }
     
     
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The continuous query is started on each of the multicast queriers. Queries for unicast
+     * domains are sent to the unicast resolvers once, as unicast answers are not announced.
+     */
+    public Object startContinuousQuery(final Message query)
+    {
+        Map<Querier, Object> ids = new LinkedHashMap<Querier, Object>();
+        if (MulticastDNSService.hasMulticastDomains(query) && (multicastResponders != null))
+        {
+            for (Querier responder : multicastResponders)
+            {
+                ids.put(responder, responder.startContinuousQuery(query));
+            }
+        }
+        
+        if (MulticastDNSService.hasUnicastDomains(query) && (unicastResolvers != null))
+        {
+            for (Resolver resolver : unicastResolvers)
+            {
+                resolver.sendAsync(query, resolverDispatch);
+            }
+        }
+        
+        return ids;
+    }
+    
+    
+    /**
+     * {@inheritDoc}
+     */
+    public void stopContinuousQuery(final Object id)
+    {
+        if (id instanceof Map)
+        {
+            for (Object o : ((Map) id).entrySet())
+            {
+                Map.Entry entry = (Map.Entry) o;
+                ((Querier) entry.getKey()).stopContinuousQuery(entry.getValue());
+            }
+        }
+    }
+    
+    
     public void close()
     throws IOException
     {
+        // Closing each querier also closes its cache, stopping the cache's monitor task
         for (Querier querier : multicastResponders)
         {
             try
@@ -657,6 +729,76 @@ public class MulticastDNSQuerier implements Querier
     }
     
     
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The query is sent to the unicast resolvers and multicast queriers responsible for its
+     * domains. Their results are merged, completing once the merged answers satisfy the
+     * completion or all have completed.
+     */
+    public CompletionStage<Message> sendAsync(final Message query, final QueryCompletion completion)
+    {
+        List<CompletionStage<Message>> stages = new ArrayList<CompletionStage<Message>>();
+        if (MulticastDNSService.hasUnicastDomains(query) && (unicastResolvers != null))
+        {
+            for (Resolver resolver : unicastResolvers)
+            {
+                stages.add(resolver.sendAsync(query));
+            }
+        }
+        
+        if (MulticastDNSService.hasMulticastDomains(query) && (multicastResponders != null))
+        {
+            for (Querier responder : multicastResponders)
+            {
+                stages.add(responder.sendAsync(query, completion));
+            }
+        }
+        
+        final CompletableFuture<Message> future = new CompletableFuture<Message>();
+        if (stages.isEmpty())
+        {
+            future.completeExceptionally(new IOException("Could not execute query, no Unicast Resolvers or Multicast Queriers were available"));
+            return future;
+        }
+        
+        final ResponseAccumulator accumulator = new ResponseAccumulator(query.clone());
+        final AtomicInteger remaining = new AtomicInteger(stages.size());
+        final AtomicInteger responses = new AtomicInteger();
+        for (CompletionStage<Message> stage : stages)
+        {
+            stage.whenComplete(new BiConsumer<Message, Throwable>()
+            {
+                public void accept(final Message message, final Throwable t)
+                {
+                    int left = remaining.decrementAndGet();
+                    if (t == null)
+                    {
+                        accumulator.merge(message);
+                        int count = responses.incrementAndGet();
+                        Message merged = accumulator.getResponse();
+                        if ((left == 0) || completion.isComplete(query, merged, count))
+                        {
+                            future.complete(merged);
+                        }
+                    } else if (left == 0)
+                    {
+                        if (responses.get() > 0)
+                        {
+                            future.complete(accumulator.getResponse());
+                        } else
+                        {
+                            future.completeExceptionally(t);
+                        }
+                    }
+                }
+            });
+        }
+        
+        return future;
+    }
+    
+    
     /**
      * {@inheritDoc}
      */
@@ -782,13 +924,13 @@ public class MulticastDNSQuerier implements Querier
             resolver.setTimeout(secs);
         }
     }
-
+    
     @Override
     public void setTimeout(Duration duration) {
         setTimeout((int) duration.toSeconds());
     }
-
-
+    
+    
     /**
      * {@inheritDoc}
      */
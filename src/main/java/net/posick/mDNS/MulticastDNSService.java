@@ -1,19 +1,31 @@
 package net.posick.mDNS;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,14 +59,20 @@ public class MulticastDNSService extends MulticastDNSLookupBase
     
     protected class Register
     {
-        private final ServiceInstance service;
+        private final ServiceInstance[] services;
         
         
         protected Register(final ServiceInstance service)
         throws UnknownHostException
+        {
+            this(new ServiceInstance[] {service});
+        }
+        
+        
+        protected Register(final ServiceInstance[] services)
         {
             super();
-            this.service = service;
+            this.services = services;
         }
         
         
@@ -65,7 +83,7 @@ public class MulticastDNSService extends MulticastDNSLookupBase
         
         
         /**
-         * Registers the Service.
+         * Registers the Service, waiting for the registration to complete.
          * 
          * @return The Service Instances actually Registered
          * @throws IOException
@@ -73,285 +91,246 @@ public class MulticastDNSService extends MulticastDNSLookupBase
         protected ServiceInstance register()
         throws IOException
         {
-            // TODO: Implement Probing and Name Conflict Resolution as per RFC 6762 Section 8.
-            /*
-             * Steps to Registering a Service.
-             * 
-             * 1. Query the service name of type ANY. Ex. Test._mdc._tcp.local IN ANY Flags: QM
-             * a. Add the Service Record to the Authoritative section.
-             * b. Repeat 3 queries with a 250 millisecond delay between each query.
-             * 2. Send a standard Query Response containing the service records, Opcode: QUERY, Flags: QR, AA, NO ERROR
-             * a. Add TXT record to ANSWER section. TTL: 3600
-             * b. Add SRV record to ANSWER section. TTL: 120
-             * c. Add DNS-SD Services PTR record to ANSWER section. TTL: 3600 Ex. _services._dns-sd.udp.local. IN PTR _mdc._tcp.local.
-             * d. Add PTR record to ANSWER section. Ex. _mdc._tcp.local. IN PTR Test._mdc._tcp.local. TTL: 3600
-             * e. Add A record to ADDITIONAL section. TTL: 120 Ex. hostname.local. IN A 192.168.1.83
-             * f. Add AAAA record to ADDITIONAL section. TTL: 120 Ex. hostname.local. IN AAAA fe80::255:ff:fe4a:6369
-             * g. Add NSEC record to ADDITIONAL section. TTL: 120 Ex. hostname.local. IN NSEC next domain: hostname.local. RRs: A AAAA
-             * h. Add NSEC record to ADDITIONAL section. TTL: 3600 Ex. Test._mdc._tcp.local. IN NSEC next domain: Test._mdc._tcp.local. RRs: TXT SRV
-             * b. Repeat 3 queries with a 2 second delay between each query response.
-             */
-            final List replies = new ArrayList();
-            Message query = Message.newQuery(Record.newRecord(service.getName(), Type.ANY, DClass.IN));
-            
-            if (service.getHost() == null)
+            return waitFor(registerAsync());
+        }
+        
+        
+        /**
+         * Registers the Services, waiting for the registration to complete.
+         * 
+         * @return The Service Instances actually Registered, in the order of the Services
+         * @throws IOException
+         */
+        protected ServiceInstance[] registerAll()
+        throws IOException
+        {
+            return waitFor(registerAllAsync());
+        }
+        
+        
+        /**
+         * Registers the Service without blocking.
+         * 
+         * @return A CompletionStage that completes with the Service Instance actually Registered,
+         *         whose name differs from the requested name if the requested name was in use
+         */
+        protected CompletionStage<ServiceInstance> registerAsync()
+        {
+            return registerAllAsync().thenApply(new Function<ServiceInstance[], ServiceInstance>()
             {
-                throw new IOException("Service Records must have a target, aka. Host value set.");
+                public ServiceInstance apply(final ServiceInstance[] registered)
+                {
+                    return registered[0];
+                }
+            });
+        }
+        
+        
+        /**
+         * Registers the Services without blocking. The service instance names are probed together
+         * until each is found to be unique, renaming services on conflict [RFC 6762 section 8.1],
+         * and the records of all the services are then announced together [RFC 6762 section 8.3].
+         * 
+         * @return A CompletionStage that completes with the Service Instances actually Registered,
+         *         in the order of the Services
+         */
+        protected CompletionStage<ServiceInstance[]> registerAllAsync()
+        {
+            if (services.length == 0)
+            {
+                return CompletableFuture.completedFuture(new ServiceInstance[0]);
             }
             
-            SRVRecord srvRecord = new SRVRecord(service.getName(), DClass.IN, 3600, 0, 0, service.getPort(), service.getHost());
-            // TODO: Add support for Unicast answers for first query mDNS.createQuery(DClass.IN + 0x8000, Type.ANY, service.getName());
-            
-            int tries = 0;
-            while (tries++ < 3)
+            final CompletableFuture<ServiceName>[] probes = new CompletableFuture[services.length];
+            for (int index = 0; index < services.length; index++ )
             {
-                querier.sendAsync(query, new ResolverListener()
+                final ServiceInstance service = services[index];
+                if (service.getHost() == null)
                 {
-                    public void handleException(final Object id, final Exception e)
-                    {
-                        synchronized (replies)
-                        {
-                            replies.add(e);
-                            replies.notifyAll();
-                        }
-                    }
-                    
-                    
-                    public void receiveMessage(final Object id, final Message m)
-                    {
-                        synchronized (replies)
-                        {
-                            replies.add(m);
-                            replies.notifyAll();
-                        }
-                    }
-                });
+                    CompletableFuture<ServiceInstance[]> failed = new CompletableFuture<ServiceInstance[]>();
+                    failed.completeExceptionally(new IOException("Service Records must have a target, aka. Host value set."));
+                    return failed;
+                }
                 
-                synchronized (replies)
+                probes[index] = getProber().probe(service.getName(), new Function<ServiceName, Record[]>()
                 {
-                    try
+                    public Record[] apply(final ServiceName name)
                     {
-                        replies.wait(Querier.DEFAULT_RESPONSE_WAIT_TIME);
-                    } catch (InterruptedException e)
+                        Name shortSRVName = name.getServiceRRName();
+                        return new Record[] {new SRVRecord(shortSRVName, DClass.IN, DEFAULT_SRV_TTL, 0, 0, service.getPort(), service.getHost()),
+                                             new TXTRecord(shortSRVName, DClass.IN, DEFAULT_TXT_TTL, Arrays.asList(service.getText()))};
+                    }
+                }).toCompletableFuture();
+            }
+            
+            // Nothing is announced unless all the names are found to be unique.
+            return CompletableFuture.allOf(probes).thenCompose(new Function<Void, CompletionStage<ServiceInstance[]>>()
+            {
+                public CompletionStage<ServiceInstance[]> apply(final Void v)
+                {
+                    ServiceName[] names = new ServiceName[probes.length];
+                    for (int index = 0; index < probes.length; index++ )
                     {
-                        // ignore
+                        names[index] = probes[index].join();
                     }
                     
-                    if (replies.size() > 0)
+                    CompletableFuture<ServiceInstance[]> announced = new CompletableFuture<ServiceInstance[]>();
+                    try
                     {
-                        for (Iterator i = replies.iterator(); i.hasNext();)
-                        {
-                            Object o = i.next();
-                            if (o instanceof Exception)
-                            {
-                                if (o instanceof IOException)
-                                {
-                                    throw (IOException) o;
-                                } else
-                                {
-                                    Exception e = (Exception) o;
-                                    IOException ioe = new IOException(e.getMessage());
-                                    ioe.setStackTrace(e.getStackTrace());
-                                    throw ioe;
-                                }
-                            } else
-                            {
-                                Message message = (Message) o;
-                                if (message.getRcode() == Rcode.NOERROR || message.getRcode() == Rcode.FORMERR) // FORMERR Added to support non RFC 6763 compliant service names and structures, such as lacking a TXT reccord.
-                                {
-                                    Record[] records = MulticastDNSUtils.extractRecords(message, Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL);
-                                    for (int r = 0; r < records.length; r++ )
-                                    {
-                                        if ((records[r].getType() == Type.SRV) && (records[r].getTTL() > 0))
-                                        {
-                                            if (!srvRecord.equals(records[r]))
-                                            {
-                                                // Another Service with this same name was found, so registration must fail.
-                                                throw new ServiceRegistrationException(ServiceRegistrationException.REASON.SERVICE_NAME_ALREADY_EXISTS, "A service with name \"" + service.getName() + "\" already exists.");
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
+                        announced.complete(announce(names));
+                    } catch (IOException e)
+                    {
+                        announced.completeExceptionally(e);
                     }
+                    return announced;
                 }
-            }
-            
-            replies.clear();
-            
-            ServiceName serviceName = service.getName();
-            Name domain = new Name(serviceName.getDomain());
-            final Update[] updates = new Update[] {new Update(domain),
-                                                   new Update(domain)};
-            Name fullTypeName = new Name(serviceName.getFullType() + "." + domain);
-            Name typeName = new Name(serviceName.getType() + "." + domain);
-            Name shortSRVName = serviceName.getServiceRRName();
+            });
+        }
+        
+        
+        /**
+         * Announces the records of the Services under the unique names found by probing. The
+         * records of all the Services of a domain are sent in a single response for the domain's
+         * zone, packed into as many datagrams as needed, with the host address and NSEC records
+         * shared by the Services sent once.
+         * 
+         * <pre>
+         * 1. Send a standard Query Response containing the service records, Opcode: QUERY, Flags: QR, AA, NO ERROR
+         * a. Add TXT record to ANSWER section. TTL: 3600
+         * b. Add SRV record to ANSWER section. TTL: 120
+         * c. Add DNS-SD Services PTR record to ANSWER section. TTL: 3600 Ex. _services._dns-sd.udp.local. IN PTR _mdc._tcp.local.
+         * d. Add PTR record to ANSWER section. Ex. _mdc._tcp.local. IN PTR Test._mdc._tcp.local. TTL: 3600
+         * e. Add A record to ADDITIONAL section. TTL: 120 Ex. hostname.local. IN A 192.168.1.83
+         * f. Add AAAA record to ADDITIONAL section. TTL: 120 Ex. hostname.local. IN AAAA fe80::255:ff:fe4a:6369
+         * g. Add NSEC record to ADDITIONAL section. TTL: 120 Ex. hostname.local. IN NSEC next domain: hostname.local. RRs: A AAAA
+         * h. Add NSEC record to ADDITIONAL section. TTL: 3600 Ex. Test._mdc._tcp.local. IN NSEC next domain: Test._mdc._tcp.local. RRs: TXT SRV
+         * 2. Repeat the announcement one second later.
+         * </pre>
+         * 
+         * @param serviceNames The unique service instance names, in the order of the Services
+         * @return The Service Instances Registered
+         * @throws IOException If the announcement could not be sent
+         */
+        protected ServiceInstance[] announce(final ServiceName[] serviceNames)
+        throws IOException
+        {
+            Map<Name, Update[]> zones = new LinkedHashMap<Name, Update[]>();
+            Map<Name, ResponseAccumulator[]> zoneRecords = new HashMap<Name, ResponseAccumulator[]>();
+            ServiceInstance[] registered = new ServiceInstance[services.length];
             
-            try
+            for (int index = 0; index < services.length; index++ )
             {
-                
-                ArrayList<Record> records = new ArrayList<Record>();
-                ArrayList<Record> additionalRecords = new ArrayList<Record>();
+                ServiceInstance service = services[index];
+                ServiceName serviceName = serviceNames[index];
+                Name domain = new Name(serviceName.getDomain());
+                ResponseAccumulator[] accumulators = zoneRecords.get(domain);
+                if (accumulators == null)
+                {
+                    Update[] updates = new Update[] {new Update(domain),
+                                                     new Update(domain)};
+                    accumulators = new ResponseAccumulator[] {new ResponseAccumulator(updates[0]),
+                                                              new ResponseAccumulator(updates[1])};
+                    zones.put(domain, updates);
+                    zoneRecords.put(domain, accumulators);
+                }
+                ResponseAccumulator serviceRecords = accumulators[0];
+                ResponseAccumulator typeRecords = accumulators[1];
+                Name fullTypeName = new Name(serviceName.getFullType() + "." + domain);
+                Name typeName = new Name(serviceName.getType() + "." + domain);
+                Name shortSRVName = serviceName.getServiceRRName();
                 
                 InetAddress[] addresses = service.getAddresses();
                 
                 if (addresses != null)
                 {
-                    for (int index = 0; index < addresses.length; index++ )
+                    for (int a = 0; a < addresses.length; a++ )
                     {
-                        if (addresses[index] != null)
+                        if (addresses[a] != null)
                         {
-                            if (addresses[index].getAddress().length == 4)
+                            if (addresses[a].getAddress().length == 4)
                             {
-                                additionalRecords.add(new ARecord(service.getHost(), DClass.IN + CACHE_FLUSH, DEFAULT_A_TTL, addresses[index]));
+                                serviceRecords.add(new ARecord(service.getHost(), DClass.IN + CACHE_FLUSH, DEFAULT_A_TTL, addresses[a]), Section.ADDITIONAL);
                             } else
                             {
-                                additionalRecords.add(new AAAARecord(service.getHost(), DClass.IN + CACHE_FLUSH, DEFAULT_A_TTL, addresses[index]));
+                                serviceRecords.add(new AAAARecord(service.getHost(), DClass.IN + CACHE_FLUSH, DEFAULT_A_TTL, addresses[a]), Section.ADDITIONAL);
                             }
                         }
                     }
                 }
                 
-                records.add(new PTRRecord(typeName, DClass.IN, DEFAULT_SRV_TTL, shortSRVName));
+                serviceRecords.add(new PTRRecord(typeName, DClass.IN, DEFAULT_SRV_TTL, shortSRVName), Section.UPDATE);
                 if (!fullTypeName.equals(typeName))
                 {
-                    records.add(new PTRRecord(fullTypeName, DClass.IN, DEFAULT_SRV_TTL, shortSRVName));
-                }
-                
-                records.add(new SRVRecord(shortSRVName, DClass.IN + CACHE_FLUSH, DEFAULT_SRV_TTL, 0, 0, service.getPort(), service.getHost()));
-                records.add(new TXTRecord(shortSRVName, DClass.IN + CACHE_FLUSH, DEFAULT_TXT_TTL, Arrays.asList(service.getText())));
-                additionalRecords.add(new NSECRecord(shortSRVName, DClass.IN + CACHE_FLUSH, DEFAULT_RR_WITHOUT_HOST_TTL, shortSRVName, new int[] {Type.TXT, Type.SRV}));
-                additionalRecords.add(new NSECRecord(service.getHost(), DClass.IN + CACHE_FLUSH, DEFAULT_RR_WITH_HOST_TTL, service.getHost(), new int[] {Type.A, Type.AAAA}));
-                
-                for (Record record : records)
-                {
-                    updates[0].add(record);
+                    serviceRecords.add(new PTRRecord(fullTypeName, DClass.IN, DEFAULT_SRV_TTL, shortSRVName), Section.UPDATE);
                 }
                 
-                for (Record record : additionalRecords)
-                {
-                    updates[0].addRecord(record, Section.ADDITIONAL);
-                }
-                
-                records.clear();
-                additionalRecords.clear();
+                serviceRecords.add(new SRVRecord(shortSRVName, DClass.IN + CACHE_FLUSH, DEFAULT_SRV_TTL, 0, 0, service.getPort(), service.getHost()), Section.UPDATE);
+                serviceRecords.add(new TXTRecord(shortSRVName, DClass.IN + CACHE_FLUSH, DEFAULT_TXT_TTL, Arrays.asList(service.getText())), Section.UPDATE);
+                serviceRecords.add(new NSECRecord(shortSRVName, DClass.IN + CACHE_FLUSH, DEFAULT_RR_WITHOUT_HOST_TTL, shortSRVName, new int[] {Type.TXT, Type.SRV}), Section.ADDITIONAL);
+                serviceRecords.add(new NSECRecord(service.getHost(), DClass.IN + CACHE_FLUSH, DEFAULT_RR_WITH_HOST_TTL, service.getHost(), new int[] {Type.A, Type.AAAA}), Section.ADDITIONAL);
                 
                 // Register Service Types in a separate request!
-                records.add(new PTRRecord(new Name(SERVICES_NAME + "." + domain), DClass.IN, DEFAULT_SRV_TTL, typeName));
+                typeRecords.add(new PTRRecord(new Name(SERVICES_NAME + "." + domain), DClass.IN, DEFAULT_SRV_TTL, typeName), Section.UPDATE);
                 if (!fullTypeName.equals(typeName))
                 {
-                    records.add(new PTRRecord(new Name(SERVICES_NAME + "." + domain), DClass.IN, DEFAULT_SRV_TTL, fullTypeName));
+                    typeRecords.add(new PTRRecord(new Name(SERVICES_NAME + "." + domain), DClass.IN, DEFAULT_SRV_TTL, fullTypeName), Section.UPDATE);
                 }
                 
-                for (Record record : records)
+                if (!serviceName.equals(service.getName()))
                 {
-                    updates[1].add(record);
+                    logger.logp(Level.INFO, getClass().getName(), "announce", "Service \"" + service.getName() + "\" was renamed to \"" + serviceName + "\", as the name is in use.");
                 }
                 
-                // Updates are sent at least 2 times, one second apart, as per RFC 6762 Section 8.3
-                ResolverListener resolverListener = new ResolverListener()
-                {
-                    public void handleException(final Object id, final Exception e)
-                    {
-                        synchronized (replies)
-                        {
-                            replies.add(e);
-                            replies.notifyAll();
-                        }
-                    }
-                    
-                    
-                    public void receiveMessage(final Object id, final Message m)
-                    {
-                        synchronized (replies)
-                        {
-                            replies.add(m);
-                            replies.notifyAll();
-                        }
-                    }
-                };
+                registered[index] = new ServiceInstance(serviceName, 0, 0, service.getPort(), service.getHost(), addresses, service.getText());
+            }
+            
+            for (final Update[] updates : zones.values())
+            {
+                querier.broadcast(updates[0], false);
+                querier.broadcast(updates[1], false);
                 
-                tries = 0;
-                while (tries++ < 2)
+                // Updates are sent at least 2 times, one second apart, as per RFC 6762 Section 8.3
+                executors.schedule(new Runnable()
                 {
-                    querier.sendAsync(updates[0], resolverListener);
-                    
-                    long retry = System.currentTimeMillis() + 1000;
-                    while (System.currentTimeMillis() < retry)
+                    public void run()
                     {
                         try
                         {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException e)
+                            querier.broadcast(updates[0], false);
+                        } catch (IOException e)
                         {
-                            // ignore
+                            logger.log(Level.WARNING, "Error announcing services - " + e.getMessage(), e);
                         }
                     }
-                }
-                querier.sendAsync(updates[1], resolverListener);
-            } catch (Exception e)
-            {
-                synchronized (replies)
-                {
-                    replies.add(e);
-                    replies.notifyAll();
-                }
+                }, 1000, TimeUnit.MILLISECONDS);
             }
             
-            long endTime = System.currentTimeMillis() + 10000;
-            ServiceInstance[] instances = null;
-            while ((instances == null) && (System.currentTimeMillis() < endTime))
+            return registered;
+        }
+        
+        
+        private <T> T waitFor(final CompletionStage<T> stage)
+        throws IOException
+        {
+            try
             {
-                if (replies.size() == 0)
-                {
-                    try
-                    {
-                        synchronized (replies)
-                        {
-                            replies.wait(Querier.DEFAULT_RETRY_INTERVAL);
-                        }
-                    } catch (InterruptedException e)
-                    {
-                        // ignore
-                    }
-                }
-                
-                // Original Lookup lookup = new Lookup(new Name[]{serviceName}, Type.ANY);
-                Lookup lookup = new Lookup(new Name[] {shortSRVName}, Type.ANY);
-                try
+                return stage.toCompletableFuture().get();
+            } catch (InterruptedException e)
+            {
+                throw new InterruptedIOException("Interrupted while registering services.");
+            } catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
                 {
-                    instances = lookup.lookupServices();
-                    
-                    if ((instances != null) && (instances.length > 0))
-                    {
-                        if (logger.isLoggable(Level.FINE))
-                        {
-                            logger.logp(Level.FINE, getClass().getName(), "register", "Response received.");
-                        }
-                        
-                        if (instances.length > 1)
-                        {
-                            logger.logp(Level.WARNING, getClass().getName(), "register", "Warning: More than one service with the name \"" + shortSRVName + "\" was registered.");
-                            throw new IOException("Too many services returned! + Instances: " + Arrays.toString(instances));
-                        }
-                        
-                        return instances[0];
-                    }
-                } finally
+                    throw (IOException) cause;
+                } else
                 {
-                    try
-                    {
-                        lookup.close();
-                    } catch (IOException e)
-                    {
-                        // ignore
-                    }
+                    IOException ioe = new IOException(cause.getMessage());
+                    ioe.setStackTrace(cause.getStackTrace());
+                    throw ioe;
                 }
             }
-            
-            logger.logp(Level.WARNING, getClass().getName(), "register", "How did the execution path getting here!?");
-            throw new ServiceRegistrationException(ServiceRegistrationException.REASON.UNKNOWN);
         }
     }
     
@@ -366,9 +345,19 @@ public class MulticastDNSService extends MulticastDNSLookupBase
     {
         private final Browse browser;
         
-        private final ListenerProcessor<DNSSDListener> listenerProcessor = new ListenerProcessor<DNSSDListener>(DNSSDListener.class);
+        private final ListenerProcessor<DNSSDListener> listenerProcessor = new DNSSDListenerProcessor();
         
-        private final Map services = new LinkedHashMap();
+        private final Map<Name, ServiceInstance> services = new LinkedHashMap<Name, ServiceInstance>();
+        
+        /** The names of the resolved service instances, by host name. Guarded by services. */
+        private final Map<Name, Set<Name>> servicesByHost = new HashMap<Name, Set<Name>>();
+        
+        private final Set<Name> resolving = new HashSet<Name>();
+        
+        /** The listener events, delivered in order from the executor */
+        private final Queue<Runnable> events = new ConcurrentLinkedQueue<Runnable>();
+        
+        private final AtomicBoolean delivering = new AtomicBoolean();
         
         
         ServiceDiscoveryOperation(final Browse browser)
@@ -410,7 +399,13 @@ public class MulticastDNSService extends MulticastDNSLookupBase
         
         public void handleException(final Object id, final Exception e)
         {
-            listenerProcessor.getDispatcher().handleException(id, e);
+            fire(new Runnable()
+            {
+                public void run()
+                {
+                    listenerProcessor.getDispatcher().handleException(id, e);
+                }
+            });
         }
         
         
@@ -467,102 +462,318 @@ public class MulticastDNSService extends MulticastDNSLookupBase
             
             if (filteredRecords.size() > 0)
             {
-                listenerProcessor.getDispatcher().receiveMessage(id, message);
+                fire(new Runnable()
+                {
+                    public void run()
+                    {
+                        listenerProcessor.getDispatcher().receiveMessage(id, message);
+                    }
+                });
                 
-                Map<Name, ServiceInstance> foundServices = new HashMap<Name, ServiceInstance>();
-                Map<Name, ServiceInstance> removedServices = new HashMap<Name, ServiceInstance>();
+                Record[] records = thatAnswers;
+                Set<Name> discovered = new LinkedHashSet<Name>();
+                Set<Name> changed = new LinkedHashSet<Name>();
+                List<ServiceInstance> removedServices = new LinkedList<ServiceInstance>();
                 
                 for (Record record : filteredRecords)
                 {
-                    try
+                    switch (record.getType())
                     {
-                        ServiceInstance service = null;
-                        
-                        switch (record.getType())
-                        {
-                            case Type.PTR:
-                                PTRRecord ptr = (PTRRecord) record;
-                                
-                                if (ptr.getTTL() > 0)
+                        case Type.PTR:
+                            PTRRecord ptr = (PTRRecord) record;
+                            if (ptr.getTTL() > 0)
+                            {
+                                discovered.add(ptr.getTarget());
+                            } else
+                            {
+                                synchronized (services)
                                 {
-                                    ServiceInstance[] instances = extractServiceInstances(querier.send(Message.newQuery(Record.newRecord(ptr.getTarget(), Type.ANY, dclass))));
-                                    if (instances.length > 0)
+                                    ServiceInstance service = services.remove(ptr.getTarget());
+                                    if (service != null)
                                     {
-                                        synchronized (services)
-                                        {
-                                            for (int i = 0; i < instances.length; i++ )
-                                            {
-                                                if (!services.containsKey(instances[i].getName()))
-                                                {
-                                                    services.put(instances[i].getName(), instances[i]);
-                                                    foundServices.put(instances[i].getName(), instances[i]);
-                                                }
-                                            }
-                                        }
+                                        unindexHost(service);
+                                        removedServices.add(service);
                                     }
-                                } else
+                                }
+                            }
+                            break;
+                        case Type.SRV:
+                        case Type.TXT:
+                            changed.add(record.getName());
+                            break;
+                        case Type.A:
+                        case Type.AAAA:
+                            synchronized (services)
+                            {
+                                Set<Name> names = servicesByHost.get(record.getName());
+                                if (names != null)
                                 {
-                                    synchronized (services)
-                                    {
-                                        service = (ServiceInstance) services.get(ptr.getTarget());
-                                        if (service != null)
-                                        {
-                                            services.remove(service.getName());
-                                            removedServices.put(service.getName(), service);
-                                        }
-                                    }
+                                    changed.addAll(names);
                                 }
-                                break;
-                        }
-                    } catch (IOException e)
+                            }
+                            break;
+                        default:
+                            // ignore
+                            break;
+                    }
+                }
+                
+                // Announcements of known instances only refresh them, their SRV, TXT or address
+                // records changing if the instance changed.
+                for (Name name : discovered)
+                {
+                    if (!isKnown(name))
                     {
-                        if (logger.isLoggable(Level.FINE))
-                        {
-                            logger.log(Level.WARNING, "Error parsing SRV record - " + e.getMessage(), e);
-                        } else
+                        resolve(id, name, records);
+                    }
+                }
+                
+                for (Name name : changed)
+                {
+                    if (isKnown(name))
+                    {
+                        resolve(id, name, null);
+                    }
+                }
+                
+                for (final ServiceInstance service : removedServices)
+                {
+                    fire(new Runnable()
+                    {
+                        public void run()
                         {
-                            logger.logp(Level.WARNING, getClass().getName(), "receiveMessage", "Error parsing SRV record - " + e.getMessage());
+                            listenerProcessor.getDispatcher().serviceRemoved(id, service);
                         }
-                    }
+                    });
                 }
-                // TODO: Check found services against already found services!
-                for (ServiceInstance service : foundServices.values())
+            }
+        }
+        
+        
+        /**
+         * Resolves the SRV, TXT and address records of a service instance without blocking the
+         * calling thread. The records in the received packet are used when they fully describe
+         * the instance, otherwise the instance is resolved from the cache and, failing that, the
+         * network. Only one resolution per instance is in progress at any time.
+         * 
+         * @param id The id of the message that announced or changed the instance
+         * @param name The service instance name
+         * @param records The records from the received packet, or null to resolve from the cache
+         */
+        protected void resolve(final Object id, final Name name, final Record[] records)
+        {
+            synchronized (services)
+            {
+                if (!resolving.add(name))
                 {
-                    try
+                    return;
+                }
+            }
+            
+            if (records != null)
+            {
+                ServiceInstance service = findServiceInstance(name, extractServiceInstances(records));
+                if ((service != null) && (service.getAddresses() != null))
+                {
+                    resolved(id, name, service);
+                    return;
+                }
+            }
+            
+            try
+            {
+                Message query = Message.newQuery(Record.newRecord(name, Type.ANY, dclass));
+                querier.sendAsync(query, new QueryCompletion()
+                {
+                    @Override
+                    public boolean isComplete(final Message query, final Message answers, final int responses)
                     {
-                        listenerProcessor.getDispatcher().serviceDiscovered(id, service);
-                    } catch (Exception e)
+                        ServiceInstance service = findServiceInstance(name, extractServiceInstances(answers));
+                        return (service != null) && (service.getAddresses() != null);
+                    }
+                }).whenComplete(new BiConsumer<Message, Throwable>()
+                {
+                    public void accept(final Message answers, final Throwable t)
                     {
-                        if (logger.isLoggable(Level.FINE))
+                        if (t == null)
                         {
-                            logger.log(Level.WARNING, "Error sending serviceDiscovered event - " + e.getMessage(), e);
+                            resolved(id, name, findServiceInstance(name, extractServiceInstances(answers)));
                         } else
                         {
-                            logger.logp(Level.WARNING, getClass().getName(), "receiveMessage", "Error sending serviceDiscovered event - " + e.getMessage());
+                            resolved(id, name, null);
+                            handleException(id, t instanceof Exception ? (Exception) t : new IOException(t.getMessage(), t));
                         }
                     }
+                });
+            } catch (RuntimeException e)
+            {
+                resolved(id, name, null);
+                handleException(id, e);
+            }
+        }
+        
+        
+        /**
+         * Completes the resolution of a service instance, firing serviceDiscovered for new
+         * instances and serviceUpdated for known instances whose records changed.
+         */
+        protected void resolved(final Object id, final Name name, final ServiceInstance service)
+        {
+            final ServiceInstance previous;
+            synchronized (services)
+            {
+                resolving.remove(name);
+                if (service == null)
+                {
+                    return;
                 }
                 
-                for (ServiceInstance service : removedServices.values())
+                previous = services.put(name, service);
+                if (previous != null)
                 {
-                    try
-                    {
-                        listenerProcessor.getDispatcher().serviceRemoved(id, service);
-                    } catch (Exception e)
+                    unindexHost(previous);
+                }
+                indexHost(service);
+            }
+            
+            if ((previous == null) || !equivalent(previous, service))
+            {
+                fire(new Runnable()
+                {
+                    public void run()
                     {
-                        if (logger.isLoggable(Level.FINE))
+                        if (previous == null)
                         {
-                            logger.log(Level.WARNING, "Error sending serviceRemoved event - " + e.getMessage(), e);
+                            listenerProcessor.getDispatcher().serviceDiscovered(id, service);
                         } else
                         {
-                            logger.logp(Level.WARNING, getClass().getName(), "receiveMessage", "Error sending serviceRemoved event - " + e.getMessage());
+                            listenerProcessor.getDispatcher().serviceUpdated(id, service);
+                        }
+                    }
+                });
+            }
+        }
+        
+        
+        /**
+         * Queues a listener event, to be delivered from the executor after the events queued
+         * before it, so that listeners never run on the response dispatch thread.
+         */
+        private void fire(final Runnable event)
+        {
+            events.add(event);
+            deliver();
+        }
+        
+        
+        private void deliver()
+        {
+            if (!delivering.compareAndSet(false, true))
+            {
+                return;
+            }
+            
+            executors.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Runnable event;
+                        while ((event = events.poll()) != null)
+                        {
+                            try
+                            {
+                                event.run();
+                            } catch (Exception e)
+                            {
+                                if (logger.isLoggable(Level.FINE))
+                                {
+                                    logger.log(Level.WARNING, "Error sending service event - " + e.getMessage(), e);
+                                } else
+                                {
+                                    logger.logp(Level.WARNING, getClass().getName(), "run", "Error sending service event - " + e.getMessage());
+                                }
+                            }
                         }
+                    } finally
+                    {
+                        delivering.set(false);
+                    }
+                    
+                    // Deliver events queued after the queue was found empty
+                    if (!events.isEmpty())
+                    {
+                        deliver();
                     }
                 }
+            });
+        }
+        
+        
+        private boolean isKnown(final Name name)
+        {
+            synchronized (services)
+            {
+                return services.containsKey(name);
+            }
+        }
+        
+        
+        /* Must be called while holding the services lock */
+        private void indexHost(final ServiceInstance service)
+        {
+            Name host = service.getHost();
+            if (host != null)
+            {
+                Set<Name> names = servicesByHost.get(host);
+                if (names == null)
+                {
+                    names = new HashSet<Name>();
+                    servicesByHost.put(host, names);
+                }
+                names.add(service.getName());
+            }
+        }
+        
+        
+        /* Must be called while holding the services lock */
+        private void unindexHost(final ServiceInstance service)
+        {
+            Name host = service.getHost();
+            Set<Name> names = host != null ? servicesByHost.get(host) : null;
+            if ((names != null) && names.remove(service.getName()) && names.isEmpty())
+            {
+                servicesByHost.remove(host);
             }
         }
         
         
+        private ServiceInstance findServiceInstance(final Name name, final ServiceInstance[] instances)
+        {
+            for (ServiceInstance instance : instances)
+            {
+                if (name.equals(instance.getName()))
+                {
+                    return instance;
+                }
+            }
+            
+            return null;
+        }
+        
+        
+        private boolean equivalent(final ServiceInstance a, final ServiceInstance b)
+        {
+            InetAddress[] aAddresses = a.getAddresses();
+            InetAddress[] bAddresses = b.getAddresses();
+            return (a.getPort() == b.getPort()) && (a.getPriority() == b.getPriority()) && (a.getWeight() == b.getWeight()) &&
+                   (a.getHost() == null ? b.getHost() == null : a.getHost().equals(b.getHost())) &&
+                   a.getTextAttributes().equals(b.getTextAttributes()) &&
+                   new HashSet<InetAddress>(aAddresses == null ? Collections.<InetAddress> emptyList() : Arrays.asList(aAddresses)).equals(new HashSet<InetAddress>(bAddresses == null ? Collections.<InetAddress> emptyList() : Arrays.asList(bAddresses)));
+        }
+        
+        
         public void start()
         {
             browser.start(this);
@@ -636,7 +847,7 @@ public class MulticastDNSService extends MulticastDNSLookupBase
     
     protected class Unregister
     {
-        private final ServiceName serviceName;
+        private final ServiceName[] serviceNames;
         
         
         protected Unregister(final ServiceInstance service)
@@ -646,9 +857,15 @@ public class MulticastDNSService extends MulticastDNSLookupBase
         
         
         protected Unregister(final ServiceName serviceName)
+        {
+            this(new ServiceName[] {serviceName});
+        }
+        
+        
+        protected Unregister(final ServiceName[] serviceNames)
         {
             super();
-            this.serviceName = serviceName;
+            this.serviceNames = serviceNames;
         }
         
         
@@ -658,6 +875,13 @@ public class MulticastDNSService extends MulticastDNSLookupBase
         }
         
         
+        /**
+         * Unregisters the Services, sending the goodbye records of all the Services in a single
+         * response, packed into as many datagrams as needed.
+         * 
+         * @return true if none of the Services remain registered
+         * @throws IOException
+         */
         protected boolean unregister()
         throws IOException
         {
@@ -668,29 +892,40 @@ public class MulticastDNSService extends MulticastDNSLookupBase
              * a. Add PTR record to ANSWER section. TTL: 0 Ex. _mdc._tcp.local. IN PTR Test._mdc._tcp.local.
              * b. Repeat 3 queries with a 2 second delay between each query response.
              */
-            String domain = serviceName.getDomain();
-            Name fullTypeName = new Name(serviceName.getFullType() + "." + domain);
-            Name typeName = new Name(serviceName.getType() + "." + domain);
-            Name shortSRVName = serviceName.getServiceRRName();
-            
-            ArrayList<Record> records = new ArrayList<Record>();
-            ArrayList<Record> additionalRecords = new ArrayList<Record>();
-            
-            records.add(new PTRRecord(typeName, DClass.IN, 0, shortSRVName));
-            if (!fullTypeName.equals(typeName))
+            if (serviceNames.length == 0)
             {
-                records.add(new PTRRecord(fullTypeName, DClass.IN, 0, shortSRVName));
+                return true;
             }
             
-            Update update = new Update(new Name(domain));
-            for (Record record : records)
-            {
-                update.add(record);
-            }
+            // The goodbyes of each domain are sent in an update of their own zone
+            Map<Name, ResponseAccumulator> zones = new LinkedHashMap<Name, ResponseAccumulator>();
+            List<Update> updates = new ArrayList<Update>();
+            Map<Name, Set<Name>> typeNames = new LinkedHashMap<Name, Set<Name>>();
             
-            for (Record record : additionalRecords)
+            for (ServiceName serviceName : serviceNames)
             {
-                update.addRecord(record, Section.ADDITIONAL);
+                String domain = serviceName.getDomain();
+                Name zone = new Name(domain);
+                ResponseAccumulator goodbyes = zones.get(zone);
+                if (goodbyes == null)
+                {
+                    Update update = new Update(zone);
+                    goodbyes = new ResponseAccumulator(update);
+                    zones.put(zone, goodbyes);
+                    updates.add(update);
+                }
+                Name fullTypeName = new Name(serviceName.getFullType() + "." + domain);
+                Name typeName = new Name(serviceName.getType() + "." + domain);
+                Name shortSRVName = serviceName.getServiceRRName();
+                
+                goodbyes.add(new PTRRecord(typeName, DClass.IN, 0, shortSRVName), Section.UPDATE);
+                if (!fullTypeName.equals(typeName))
+                {
+                    goodbyes.add(new PTRRecord(fullTypeName, DClass.IN, 0, shortSRVName), Section.UPDATE);
+                }
+                
+                Set<Name> types = new LinkedHashSet<Name>(Arrays.asList(typeName, fullTypeName));
+                typeNames.put(shortSRVName, types);
             }
             
             // Updates are sent at least 2 times, one second apart, as per RFC 6762 Section 8.3
@@ -709,7 +944,10 @@ public class MulticastDNSService extends MulticastDNSLookupBase
             int tries = 0;
             while (tries++ < 3)
             {
-                querier.sendAsync(update, resolverListener);
+                for (Update update : updates)
+                {
+                    querier.sendAsync(update, resolverListener);
+                }
                 
                 long retry = System.currentTimeMillis() + 2000;
                 while (System.currentTimeMillis() < retry)
@@ -724,7 +962,13 @@ public class MulticastDNSService extends MulticastDNSLookupBase
                 }
             }
             
-            Lookup lookup = new Lookup(new Name[] {typeName, fullTypeName}, Type.PTR, DClass.ANY);
+            Set<Name> allTypeNames = new LinkedHashSet<Name>();
+            for (Set<Name> types : typeNames.values())
+            {
+                allTypeNames.addAll(types);
+            }
+            
+            Lookup lookup = new Lookup(allTypeNames.toArray(new Name[allTypeNames.size()]), Type.PTR, DClass.ANY);
             try
             {
                 boolean found = false;
@@ -733,7 +977,8 @@ public class MulticastDNSService extends MulticastDNSLookupBase
                 {
                     for (Record record : results)
                     {
-                        if (shortSRVName.equals(((PTRRecord)record).getTarget()))
+                        Set<Name> types = typeNames.get(((PTRRecord) record).getTarget());
+                        if ((types != null) && types.contains(record.getName()))
                         {
                             found = true;
                         }
@@ -754,6 +999,9 @@ public class MulticastDNSService extends MulticastDNSLookupBase
     protected ArrayList<ServiceDiscoveryOperation> discoveryOperations = new ArrayList<ServiceDiscoveryOperation>();
     
     
+    private Prober prober;
+    
+    
     public MulticastDNSService()
     throws IOException
     {
@@ -774,8 +1022,35 @@ public class MulticastDNSService extends MulticastDNSLookupBase
                 // ignore
             }
         }
+        
+        synchronized (this)
+        {
+            if (prober != null)
+            {
+                prober.close();
+                prober = null;
+            }
+        }
+    }
+    
+    /**
+     * Returns the Prober shared by the registrations of this service, so that names registered
+     * together are probed together.
+     */
+    synchronized Prober getProber()
+    {
+        if ((prober == null) || (prober.getQuerier() != querier))
+        {
+            if (prober != null)
+            {
+                prober.close();
+            }
+            prober = new Prober(querier, executors);
+        }
+        return prober;
     }
     
+    
     public Set<Domain> getBrowseDomains(final Set<Name> searchPath)
     {
         Set<Domain> results = new LinkedHashSet<Domain>();
@@ -846,6 +1121,65 @@ public class MulticastDNSService extends MulticastDNSLookupBase
     }
     
     
+    /**
+     * Registers the service without blocking. Services registered together are probed together,
+     * in shared probe packets, and a service whose name is in use is renamed, "Name" becoming
+     * "Name (2)".
+     * 
+     * @param service The service to register
+     * @return A CompletionStage that completes with the Service Instance actually Registered
+     */
+    public CompletionStage<ServiceInstance> registerAsync(final ServiceInstance service)
+    {
+        try
+        {
+            return new Register(service).registerAsync();
+        } catch (UnknownHostException e)
+        {
+            CompletableFuture<ServiceInstance> failed = new CompletableFuture<ServiceInstance>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+    
+    
+    /**
+     * Registers many services at once. The names of the services are probed together and the
+     * records of all the services are announced together, packed into as many datagrams as
+     * needed, with the address records of hosts shared by the services sent once.
+     * 
+     * @param services The services to register
+     * @return The Service Instances actually Registered, in the order of the services
+     * @throws IOException
+     */
+    public ServiceInstance[] registerAll(final ServiceInstance... services)
+    throws IOException
+    {
+        Register register = new Register(services);
+        try
+        {
+            return register.registerAll();
+        } finally
+        {
+            register.close();
+        }
+    }
+    
+    
+    /**
+     * Registers many services at once without blocking. No service is announced unless the
+     * names of all the services are found to be unique, services being renamed as needed.
+     * 
+     * @param services The services to register
+     * @return A CompletionStage that completes with the Service Instances actually Registered, in
+     *         the order of the services
+     */
+    public CompletionStage<ServiceInstance[]> registerAllAsync(final ServiceInstance... services)
+    {
+        return new Register(services).registerAllAsync();
+    }
+    
+    
     /**
      * Starts a Service Discovery Browse Operation and returns an identifier to be used later to stop
      * the Service Discovery Browse Operation.
@@ -933,6 +1267,48 @@ public class MulticastDNSService extends MulticastDNSLookupBase
     }
     
     
+    /**
+     * Unregisters many services at once, sending the goodbye records of all the services together,
+     * packed into as many datagrams as needed.
+     * 
+     * @param services The services to unregister
+     * @return true if none of the services remain registered
+     * @throws IOException
+     */
+    public boolean unregisterAll(final ServiceInstance... services)
+    throws IOException
+    {
+        ServiceName[] names = new ServiceName[services.length];
+        for (int index = 0; index < services.length; index++ )
+        {
+            names[index] = services[index].getName();
+        }
+        return unregisterAll(names);
+    }
+    
+    
+    /**
+     * Unregisters many services at once, sending the goodbye records of all the services together,
+     * packed into as many datagrams as needed.
+     * 
+     * @param names The names of the services to unregister
+     * @return true if none of the services remain registered
+     * @throws IOException
+     */
+    public boolean unregisterAll(final ServiceName... names)
+    throws IOException
+    {
+        Unregister unregister = new Unregister(names);
+        try
+        {
+            return unregister.unregister();
+        } finally
+        {
+            unregister.close();
+        }
+    }
+    
+    
     protected Set<Domain> getDomains(final String[] names, final Name[] path)
     {
         Set<Domain> results = new LinkedHashSet<Domain>();
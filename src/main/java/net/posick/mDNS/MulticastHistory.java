@@ -0,0 +1,127 @@
+package net.posick.mDNS;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Record;
+
+/**
+ * Tracks the records recently multicast on an interface, either by this host or by other
+ * responders, so that a responder does not multicast a record again within one second of it
+ * last being multicast [RFC 6762 section 6], and suppresses answers another responder has
+ * already multicast with a TTL at least half the TTL of its own [RFC 6762 section 7.4].
+ * 
+ * @author Steve Posick
+ */
+class MulticastHistory
+{
+    /** The interval during which a multicast record is not multicast again, in milliseconds */
+    public static final long DEFAULT_INTERVAL = 1000;
+    
+    private static final int PURGE_THRESHOLD = 256;
+    
+    
+    private static class Sighting
+    {
+        private final long time;
+        
+        private final long ttl;
+        
+        
+        Sighting(final long time, final long ttl)
+        {
+            this.time = time;
+            this.ttl = ttl;
+        }
+    }
+    
+    private final Map<Record, Sighting> sightings = new ConcurrentHashMap<Record, Sighting>();
+    
+    private final long interval;
+    
+    
+    MulticastHistory()
+    {
+        this(DEFAULT_INTERVAL);
+    }
+    
+    
+    MulticastHistory(final long interval)
+    {
+        this.interval = interval;
+    }
+    
+    
+    /**
+     * Records that the specified records were multicast.
+     * 
+     * @param records The records
+     */
+    void multicast(final Record... records)
+    {
+        long now = System.currentTimeMillis();
+        if (sightings.size() > PURGE_THRESHOLD)
+        {
+            purge(now);
+        }
+        
+        for (Record record : records)
+        {
+            if (record.getTTL() > 0)
+            {
+                sightings.put(key(record), new Sighting(now, record.getTTL()));
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns true if the record was multicast within the suppression interval with a TTL at
+     * least half the TTL of the specified record.
+     * 
+     * @param record The record
+     * @return true if the record was recently multicast
+     */
+    boolean recentlyMulticast(final Record record)
+    {
+        Sighting sighting = sightings.get(key(record));
+        return (sighting != null) && ((System.currentTimeMillis() - sighting.time) < interval) && (sighting.ttl >= (record.getTTL() / 2));
+    }
+    
+    
+    void clear()
+    {
+        sightings.clear();
+    }
+    
+    
+    private void purge(final long now)
+    {
+        for (Iterator<Sighting> i = sightings.values().iterator(); i.hasNext();)
+        {
+            if ((now - i.next().time) >= interval)
+            {
+                i.remove();
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns the record with the cache flush bit cleared, so that records are compared by name,
+     * type, class and rdata only.
+     */
+    static Record key(final Record record)
+    {
+        if ((record.getDClass() & Constants.CACHE_FLUSH) == 0)
+        {
+            return record;
+        }
+        
+        Record key = MulticastDNSUtils.clone(record);
+        MulticastDNSUtils.setDClassForRecord(key, key.getDClass() & 0x7FFF);
+        return key;
+    }
+}
@@ -0,0 +1,492 @@
+package net.posick.mDNS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.mDNS.utils.Executors;
+import net.posick.mDNS.utils.Misc;
+import net.posick.DNS.DClass;
+import net.posick.DNS.Flags;
+import net.posick.DNS.Header;
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Name;
+import net.posick.DNS.Opcode;
+import net.posick.DNS.Options;
+import net.posick.DNS.Record;
+import net.posick.DNS.ResolverListener;
+import net.posick.DNS.Section;
+import net.posick.DNS.TextParseException;
+import net.posick.DNS.Type;
+
+/**
+ * The Prober verifies that service instance names are unique on the network before they are
+ * announced [RFC 6762 section 8.1]. All the names being probed are asked in shared probe packets,
+ * sent every 250 milliseconds, with the records proposed for each name in the authority section.
+ * A name is unique once three probes have been sent and no conflicting response has been received
+ * within 250 milliseconds of the last.
+ * <p>
+ * A response holding other records for a probed name is a conflict, and the name is renamed and
+ * probed again, "Name" becoming "Name (2)" [RFC 6762 section 9]. A probe for the same name from
+ * another host is resolved by comparing the proposed records, the host with the lesser records
+ * deferring for one second before probing again [RFC 6762 section 8.2].
+ *
+ * @author Steve Posick
+ */
+@SuppressWarnings("deprecation")
+class Prober implements ResolverListener
+{
+    private static final Logger logger = Misc.getLogger(Prober.class.getName(), Options.check("mdns_verbose") || Options.check("verbose"));
+    
+    public static final long PROBE_INTERVAL = 250;
+    
+    public static final int PROBE_COUNT = 3;
+    
+    public static final long TIE_BREAK_DELAY = 1000;
+    
+    public static final int MAX_CONFLICTS = 15;
+    
+    public static final long CONFLICT_DELAY = 5000;
+    
+    private static final int MAX_PROBE_PACKET_SIZE = MulticastDNSMulticastOnlyQuerier.DEFAULT_EDNS_PAYLOADSIZE - Header.LENGTH;
+    
+    /**
+     * The state of a name being probed.
+     */
+    protected static class Probe
+    {
+        private final Function<ServiceName, Record[]> proposer;
+        
+        private final CompletableFuture<ServiceName> future = new CompletableFuture<ServiceName>();
+        
+        private ServiceName name;
+        
+        private Name key;
+        
+        private Record[] records;
+        
+        private int size;
+        
+        private int sent;
+        
+        private int conflicts;
+        
+        private long deferUntil;
+        
+        
+        protected Probe(final ServiceName name, final Function<ServiceName, Record[]> proposer)
+        {
+            this.proposer = proposer;
+            setName(name);
+        }
+        
+        
+        protected void setName(final ServiceName name)
+        {
+            this.name = name;
+            key = name.getServiceRRName();
+            records = proposer.apply(name);
+            Arrays.sort(records);
+            size = Record.newRecord(key, Type.ANY, DClass.IN).toWire(Section.QUESTION).length;
+            for (Record record : records)
+            {
+                size += record.toWire(Section.AUTHORITY).length;
+            }
+        }
+        
+        
+        /**
+         * Returns true if the record is one of the records proposed for the name.
+         */
+        protected boolean proposes(final Record record)
+        {
+            Record key = MulticastHistory.key(record);
+            for (Record proposed : records)
+            {
+                if (MulticastHistory.key(proposed).equals(key))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    private final Querier querier;
+    
+    private final Executors executors;
+    
+    private final Map<Name, Probe> probes = new LinkedHashMap<Name, Probe>();
+    
+    private ScheduledFuture<?> tickFuture;
+    
+    private boolean listening;
+    
+    
+    Prober(final Querier querier, final Executors executors)
+    {
+        this.querier = querier;
+        this.executors = executors;
+    }
+    
+    
+    Querier getQuerier()
+    {
+        return querier;
+    }
+    
+    
+    /**
+     * Probes for a unique service instance name, starting with the specified name.
+     *
+     * @param name The service instance name
+     * @param proposer Creates the records proposed for a service instance name
+     * @return A CompletionStage that completes with the unique name
+     */
+    CompletionStage<ServiceName> probe(final ServiceName name, final Function<ServiceName, Record[]> proposer)
+    {
+        Probe probe = new Probe(name, proposer);
+        synchronized (this)
+        {
+            if (!listening)
+            {
+                querier.registerListener(this);
+                listening = true;
+            }
+            
+            try
+            {
+                // Names being probed by this host conflict like names probed by any other host.
+                while (probes.containsKey(probe.key))
+                {
+                    probe.setName(rename(probe.name));
+                }
+            } catch (TextParseException e)
+            {
+                probe.future.completeExceptionally(e);
+                return probe.future;
+            }
+            
+            probes.put(probe.key, probe);
+            if (tickFuture == null)
+            {
+                // The first probe is sent within 250 milliseconds, on the next shared tick.
+                tickFuture = executors.scheduleAtFixedRate(new Runnable()
+                {
+                    public void run()
+                    {
+                        tick();
+                    }
+                }, PROBE_INTERVAL, PROBE_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+        
+        return probe.future;
+    }
+    
+    
+    /**
+     * Sends the probes that are due in shared probe packets and completes the probes that have
+     * been sent three times without conflict.
+     */
+    void tick()
+    {
+        List<Probe> batch = new ArrayList<Probe>();
+        List<Probe> unique = new ArrayList<Probe>();
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            for (Iterator<Probe> i = probes.values().iterator(); i.hasNext();)
+            {
+                Probe probe = i.next();
+                if (probe.deferUntil > now)
+                {
+                    continue;
+                }
+                
+                if (probe.sent >= PROBE_COUNT)
+                {
+                    unique.add(probe);
+                    i.remove();
+                } else
+                {
+                    probe.sent++;
+                    batch.add(probe);
+                }
+            }
+            
+            if (probes.isEmpty() && (tickFuture != null))
+            {
+                tickFuture.cancel(false);
+                tickFuture = null;
+            }
+        }
+        
+        Message message = null;
+        int size = 0;
+        for (Probe probe : batch)
+        {
+            if ((message != null) && ((size + probe.size) > MAX_PROBE_PACKET_SIZE))
+            {
+                send(message);
+                message = null;
+            }
+            
+            if (message == null)
+            {
+                message = new Message(0);
+                size = 0;
+            }
+            
+            // Probes ask QM questions, as responses are only received on the multicast sockets.
+            message.addRecord(Record.newRecord(probe.key, Type.ANY, DClass.IN), Section.QUESTION);
+            for (Record record : probe.records)
+            {
+                message.addRecord(record, Section.AUTHORITY);
+            }
+            size += probe.size;
+        }
+        
+        if (message != null)
+        {
+            send(message);
+        }
+        
+        for (Probe probe : unique)
+        {
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.logp(Level.FINE, getClass().getName(), "tick", "Name \"" + probe.key + "\" is unique.");
+            }
+            probe.future.complete(probe.name);
+        }
+    }
+    
+    
+    public void handleException(final Object id, final Exception e)
+    {
+    }
+    
+    
+    /**
+     * Checks responses for records conflicting with the names being probed, and probes from
+     * other hosts for the same names.
+     */
+    public void receiveMessage(final Object id, final Message message)
+    {
+        Header header = message.getHeader();
+        if (header.getOpcode() != Opcode.QUERY)
+        {
+            return;
+        }
+        
+        List<Probe> failed = new ArrayList<Probe>();
+        synchronized (this)
+        {
+            if (probes.isEmpty())
+            {
+                return;
+            }
+            
+            if (header.getFlag(Flags.QR))
+            {
+                for (Record record : MulticastDNSUtils.extractRecords(message, Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL))
+                {
+                    Probe probe = probes.get(record.getName());
+                    if ((probe != null) && (record.getTTL() > 0) && !probe.proposes(record))
+                    {
+                        if (!conflict(probe))
+                        {
+                            failed.add(probe);
+                        }
+                    }
+                }
+            } else if (header.getCount(Section.AUTHORITY) > 0)
+            {
+                Map<Name, List<Record>> proposals = new LinkedHashMap<Name, List<Record>>();
+                for (Record record : MulticastDNSUtils.extractRecords(message, Section.AUTHORITY))
+                {
+                    if (probes.containsKey(record.getName()))
+                    {
+                        List<Record> proposed = proposals.get(record.getName());
+                        if (proposed == null)
+                        {
+                            proposed = new ArrayList<Record>();
+                            proposals.put(record.getName(), proposed);
+                        }
+                        proposed.add(MulticastHistory.key(record));
+                    }
+                }
+                
+                long now = System.currentTimeMillis();
+                for (Map.Entry<Name, List<Record>> entry : proposals.entrySet())
+                {
+                    Probe probe = probes.get(entry.getKey());
+                    Record[] theirs = entry.getValue().toArray(new Record[entry.getValue().size()]);
+                    Arrays.sort(theirs);
+                    // This host's own probes are received with identical records and are ignored.
+                    if (compare(probe.records, theirs) < 0)
+                    {
+                        if (logger.isLoggable(Level.FINE))
+                        {
+                            logger.logp(Level.FINE, getClass().getName(), "receiveMessage", "Lost simultaneous probe tie-break for \"" + probe.key + "\".");
+                        }
+                        probe.sent = 0;
+                        probe.deferUntil = now + TIE_BREAK_DELAY;
+                    }
+                }
+            }
+        }
+        
+        for (Probe probe : failed)
+        {
+            probe.future.completeExceptionally(new ServiceRegistrationException(ServiceRegistrationException.REASON.SERVICE_NAME_ALREADY_EXISTS, "A service with name \"" + probe.name + "\" already exists."));
+        }
+    }
+    
+    
+    private void send(final Message message)
+    {
+        try
+        {
+            querier.broadcast(message, false);
+        } catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Error writing mDNS probe - " + e.getMessage(), e);
+        }
+    }
+    
+    
+    synchronized void close()
+    {
+        if (tickFuture != null)
+        {
+            tickFuture.cancel(false);
+            tickFuture = null;
+        }
+        
+        if (listening)
+        {
+            querier.unregisterListener(this);
+            listening = false;
+        }
+        
+        for (Probe probe : probes.values())
+        {
+            probe.future.completeExceptionally(new IOException("Prober closed before the name \"" + probe.key + "\" was found to be unique."));
+        }
+        probes.clear();
+    }
+    
+    
+    /**
+     * Renames a probe whose name is in use and starts probing the new name. After 15 conflicts
+     * probing is slowed to once every five seconds [RFC 6762 section 8.1].
+     *
+     * @return false if the probe could not be renamed
+     */
+    private boolean conflict(final Probe probe)
+    {
+        probes.remove(probe.key);
+        Name old = probe.key;
+        try
+        {
+            do
+            {
+                probe.setName(rename(probe.name));
+            } while (probes.containsKey(probe.key));
+        } catch (TextParseException e)
+        {
+            return false;
+        }
+        
+        probe.sent = 0;
+        if (++probe.conflicts >= MAX_CONFLICTS)
+        {
+            probe.deferUntil = System.currentTimeMillis() + CONFLICT_DELAY;
+        }
+        probes.put(probe.key, probe);
+        
+        if (logger.isLoggable(Level.FINE))
+        {
+            logger.logp(Level.FINE, getClass().getName(), "conflict", "Name \"" + old + "\" is in use, probing \"" + probe.key + "\".");
+        }
+        return true;
+    }
+    
+    
+    /**
+     * Returns the name of the next instance for a conflicting service instance name, "Name"
+     * becoming "Name (2)" and "Name (2)" becoming "Name (3)".
+     */
+    static ServiceName rename(final ServiceName name)
+    throws TextParseException
+    {
+        String instance = name.getInstance();
+        int number = 2;
+        if (instance.endsWith(")"))
+        {
+            int start = instance.lastIndexOf(" (");
+            if (start > 0)
+            {
+                try
+                {
+                    number = Integer.parseInt(instance.substring(start + 2, instance.length() - 1)) + 1;
+                    instance = instance.substring(0, start);
+                } catch (NumberFormatException e)
+                {
+                    // not a numbered instance name
+                }
+            }
+        }
+        
+        int labels = 0;
+        while ((labels < name.labels()) && !name.getLabelString(labels).startsWith("_"))
+        {
+            labels++;
+        }
+        
+        StringBuilder label = new StringBuilder();
+        for (char c : (instance + " (" + number + ")").toCharArray())
+        {
+            if ((c == '.') || (c == '\\'))
+            {
+                label.append('\\');
+            }
+            label.append(c);
+        }
+        
+        return new ServiceName(label.toString(), new Name(name, labels));
+    }
+    
+    
+    /**
+     * Compares sorted proposed records lexicographically, by class, type and rdata [RFC 6762
+     * section 8.2].
+     */
+    private static int compare(final Record[] ours, final Record[] theirs)
+    {
+        for (int index = 0; (index < ours.length) && (index < theirs.length); index++)
+        {
+            int n = ours[index].compareTo(theirs[index]);
+            if (n != 0)
+            {
+                return n;
+            }
+        }
+        
+        return ours.length - theirs.length;
+    }
+}
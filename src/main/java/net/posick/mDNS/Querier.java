@@ -5,11 +5,18 @@ package net.posick.mDNS;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 
 import net.posick.DNS.Message;
 import net.posick.DNS.Name;
 import net.posick.DNS.Resolver;
 import net.posick.DNS.ResolverListener;
+import net.posick.mDNS.utils.Misc;
 
 /**
  * The Querier is an extension of the Resolver for asynchronous, multicast name resolution, typically
@@ -86,6 +93,134 @@ public interface Querier extends Resolver, Closeable
     public ResolverListener registerListener(ResolverListener listener);
     
     
+    /**
+     * Sends a query, returning a CompletionStage that completes with the answers known for the
+     * query as soon as the completion is satisfied, rather than after a fixed wait. If the
+     * answers are already cached and satisfy the completion, the CompletionStage is complete on
+     * return.
+     * <p>
+     * The default implementation sends the query using sendAsync(Message, ResolverListener),
+     * merging the responses and evaluating the completion against the merged answers as each
+     * response arrives.
+     * 
+     * @param query The query
+     * @param completion Decides when the query is complete
+     * 
+     * @return A CompletionStage that completes with the answers to the query
+     */
+    @SuppressWarnings("deprecation")
+    public default CompletionStage<Message> sendAsync(final Message query, final QueryCompletion completion)
+    {
+        final CompletableFuture<Message> future = new CompletableFuture<Message>();
+        final ResponseAccumulator accumulator = new ResponseAccumulator(query.clone());
+        final AtomicInteger responses = new AtomicInteger();
+        final Runnable complete = new Runnable()
+        {
+            public void run()
+            {
+                future.complete(accumulator.getResponse());
+            }
+        };
+        
+        sendAsync(query, new ResolverListener()
+        {
+            public void receiveMessage(final Object id, final Message m)
+            {
+                if (future.isDone())
+                {
+                    return;
+                }
+                
+                accumulator.merge(m);
+                final int count = responses.incrementAndGet();
+                if (completion.isComplete(query, accumulator.getResponse(), count))
+                {
+                    complete.run();
+                } else if (completion.getQuiescence() > 0)
+                {
+                    CompletableFuture.delayedExecutor(completion.getQuiescence(), TimeUnit.MILLISECONDS).execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            if (responses.get() == count)
+                            {
+                                complete.run();
+                            }
+                        }
+                    });
+                }
+            }
+            
+            
+            public void handleException(final Object id, final Exception e)
+            {
+                future.completeExceptionally(e);
+            }
+        });
+        CompletableFuture.delayedExecutor(completion.getTimeout(), TimeUnit.MILLISECONDS).execute(complete);
+        
+        return future;
+    }
+    
+    
+    /**
+     * Starts asking the questions of the query continuously, as browse operations do, until
+     * stopped. Continuous questions are asked at increasing intervals along with the questions
+     * of all other queries [RFC 6762 section 5.2].
+     * <p>
+     * The default implementation broadcasts the query on its own, immediately and then at
+     * intervals doubling from one second up to one hour.
+     * 
+     * @param query The query
+     * 
+     * @return The id used to stop the continuous query
+     */
+    public default Object startContinuousQuery(final Message query)
+    {
+        final AtomicBoolean stopped = new AtomicBoolean();
+        new Runnable()
+        {
+            private int delay = 0;
+            
+            
+            public void run()
+            {
+                if (stopped.get())
+                {
+                    return;
+                }
+                
+                try
+                {
+                    broadcast(query.clone(), false);
+                } catch (IOException e)
+                {
+                    Misc.getLogger(Querier.class, false).log(Level.WARNING, "Error broadcasting continuous query - " + e.getMessage(), e);
+                }
+                
+                delay = delay > 0 ? Math.min(delay * 2, 3600) : 1;
+                CompletableFuture.delayedExecutor(delay, TimeUnit.SECONDS).execute(this);
+            }
+        }.run();
+        
+        return stopped;
+    }
+    
+    
+    /**
+     * Stops a continuous query.
+     * 
+     * @param id The id returned by startContinuousQuery
+     */
+    public default void stopContinuousQuery(final Object id)
+    {
+        if (id instanceof AtomicBoolean)
+        {
+            ((AtomicBoolean) id).set(true);
+        }
+    }
+    
+    
     /**
      * Sets the minimum amount of time to wait for mDNS responses, between retries, when the
      * query is not fully cached.
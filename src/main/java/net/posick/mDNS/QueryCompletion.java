@@ -0,0 +1,216 @@
+package net.posick.mDNS;
+
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Name;
+import net.posick.DNS.Options;
+import net.posick.DNS.Record;
+import net.posick.DNS.Section;
+import net.posick.DNS.Type;
+
+/**
+ * A QueryCompletion decides when an asynchronous query sent using
+ * {@link Querier#sendAsync(Message, QueryCompletion)} is complete. The completion is evaluated
+ * against the answers known for the query each time a response arrives. A query also completes
+ * once no response has arrived for the quiescence period, if one is set, and in any case once
+ * the timeout elapses, with whatever answers are known at that time.
+ * 
+ * @author Steve Posick
+ */
+public abstract class QueryCompletion
+{
+    private final long timeout;
+    
+    private final long quiescence;
+    
+    
+    protected QueryCompletion()
+    {
+        this(getDefaultTimeout(), 0);
+    }
+    
+    
+    protected QueryCompletion(final long timeout, final long quiescence)
+    {
+        this.timeout = timeout;
+        this.quiescence = quiescence;
+    }
+    
+    
+    /**
+     * Returns true if the query is complete.
+     * 
+     * @param query The query
+     * @param answers The answers currently known for the query
+     * @param responses The number of responses received for the query
+     * @return true if the query is complete
+     */
+    public abstract boolean isComplete(Message query, Message answers, int responses);
+    
+    
+    /**
+     * Returns the maximum time to wait for the query to complete, in milliseconds.
+     * 
+     * @return The maximum time to wait for the query to complete
+     */
+    public long getTimeout()
+    {
+        return timeout;
+    }
+    
+    
+    /**
+     * Returns the period without responses after which the query is complete, in milliseconds,
+     * or 0 if the query does not complete on quiescence.
+     * 
+     * @return The quiescence period
+     */
+    public long getQuiescence()
+    {
+        return quiescence;
+    }
+    
+    
+    /**
+     * Returns a completion with the same condition and the specified timeout.
+     * 
+     * @param timeout The timeout, in milliseconds
+     * @return A completion with the specified timeout
+     */
+    public QueryCompletion withTimeout(final long timeout)
+    {
+        final QueryCompletion condition = this;
+        return new QueryCompletion(timeout, quiescence)
+        {
+            @Override
+            public boolean isComplete(final Message query, final Message answers, final int responses)
+            {
+                return condition.isComplete(query, answers, responses);
+            }
+        };
+    }
+    
+    
+    /**
+     * Returns a completion that is complete once every question in the query is answered.
+     * 
+     * @return The completion
+     */
+    public static QueryCompletion answersAll()
+    {
+        return new QueryCompletion()
+        {
+            @Override
+            public boolean isComplete(final Message query, final Message answers, final int responses)
+            {
+                Record[] questions = MulticastDNSUtils.extractRecords(query, Section.QUESTION);
+                for (Record question : questions)
+                {
+                    if (countAnswers(question, answers) == 0)
+                    {
+                        return false;
+                    }
+                }
+                
+                return questions.length > 0;
+            }
+        };
+    }
+    
+    
+    /**
+     * Returns a completion that is complete once the first response answering the query arrives.
+     * 
+     * @return The completion
+     */
+    public static QueryCompletion firstAnswer()
+    {
+        return new QueryCompletion()
+        {
+            @Override
+            public boolean isComplete(final Message query, final Message answers, final int responses)
+            {
+                return responses > 0;
+            }
+        };
+    }
+    
+    
+    /**
+     * Returns a completion that is complete once at least the specified number of answers to the
+     * questions in the query are known.
+     * 
+     * @param count The number of answers
+     * @return The completion
+     */
+    public static QueryCompletion answers(final int count)
+    {
+        return new QueryCompletion()
+        {
+            @Override
+            public boolean isComplete(final Message query, final Message answers, final int responses)
+            {
+                int found = 0;
+                for (Record question : MulticastDNSUtils.extractRecords(query, Section.QUESTION))
+                {
+                    found += countAnswers(question, answers);
+                }
+                
+                return found >= count;
+            }
+        };
+    }
+    
+    
+    /**
+     * Returns a completion that is complete once no further responses have arrived for the
+     * specified period after a response, or on timeout if no response arrives.
+     * 
+     * @param quiescence The quiescence period, in milliseconds
+     * @return The completion
+     */
+    public static QueryCompletion quiescence(final long quiescence)
+    {
+        return new QueryCompletion(Math.max(getDefaultTimeout(), quiescence), quiescence)
+        {
+            @Override
+            public boolean isComplete(final Message query, final Message answers, final int responses)
+            {
+                return false;
+            }
+        };
+    }
+    
+    
+    /**
+     * Returns the default timeout, which is the "mdns_resolve_wait" option, if set, otherwise
+     * Querier.DEFAULT_RESPONSE_WAIT_TIME.
+     * 
+     * @return The default timeout
+     */
+    public static long getDefaultTimeout()
+    {
+        int wait = Options.intValue("mdns_resolve_wait");
+        return wait > 0 ? wait : Querier.DEFAULT_RESPONSE_WAIT_TIME;
+    }
+    
+    
+    private static int countAnswers(final Record question, final Message answers)
+    {
+        int found = 0;
+        if (answers != null)
+        {
+            Name name = question.getName();
+            int type = question.getType();
+            for (Record answer : MulticastDNSUtils.extractRecords(answers, Section.ANSWER))
+            {
+                if (name.equals(answer.getName()) && ((type == Type.ANY) || (type == answer.getType())))
+                {
+                    found++ ;
+                }
+            }
+        }
+        
+        return found;
+    }
+}
@@ -0,0 +1,31 @@
+package net.posick.mDNS;
+
+import net.posick.DNS.Record;
+import net.posick.DNS.ResolverListener;
+
+/**
+ * A ResolverListener that is only interested in responses answering a fixed set of questions.
+ * The Querier routes a response to a QueryListener only if the response contains a record
+ * answering one of its questions, rather than offering every response to every listener.
+ * 
+ * @author Steve Posick
+ */
+@SuppressWarnings("deprecation")
+interface QueryListener extends ResolverListener
+{
+    /**
+     * Returns the questions this listener is interested in.
+     * 
+     * @return The questions
+     */
+    Record[] getQuestions();
+    
+    
+    /**
+     * Returns true if records for names within the domain of a question, or for domains
+     * containing the question name, also answer the question, as is the case when browsing.
+     * 
+     * @return true if records for related domains answer the questions
+     */
+    boolean isBrowse();
+}
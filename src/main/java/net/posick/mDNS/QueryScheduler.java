@@ -0,0 +1,387 @@
+package net.posick.mDNS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.mDNS.utils.Executors;
+import net.posick.mDNS.utils.Misc;
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Name;
+import net.posick.DNS.Options;
+import net.posick.DNS.Record;
+import net.posick.DNS.Section;
+import net.posick.DNS.Type;
+
+/**
+ * The QueryScheduler sends all the queries of a Querier. Questions asked by one-shot queries and
+ * by continuous queries, such as browse operations, are merged so that each question is asked
+ * once, and the questions that are due are sent together in shared packets, along with their
+ * known answers [RFC 6762 section 7.1]. Continuous questions are first asked after a random 20 to
+ * 120 millisecond delay and then at intervals that double, from one second up to one hour [RFC
+ * 6762 section 5.2]. A question that another host asks with no known answers this host lacks is
+ * treated as asked by this host [RFC 6762 section 7.3].
+ *
+ * @author Steve Posick
+ */
+class QueryScheduler
+{
+    private static final Logger logger = Misc.getLogger(QueryScheduler.class.getName(), Options.check("mdns_verbose") || Options.check("verbose"));
+    
+    public static final long MIN_INTERVAL = 1000;
+    
+    public static final long MAX_INTERVAL = 60 * 60 * 1000;
+    
+    public static final int MIN_INITIAL_DELAY = 20;
+    
+    public static final int MAX_INITIAL_DELAY = 120;
+    
+    /**
+     * The state of a question, shared by all the queries asking it.
+     */
+    protected static class ScheduledQuestion
+    {
+        private final Record question;
+        
+        private int continuous;
+        
+        private boolean pending;
+        
+        private long interval = MIN_INTERVAL;
+        
+        private long due = Long.MAX_VALUE;
+        
+        private long lastSent;
+        
+        
+        protected ScheduledQuestion(final Record question)
+        {
+            this.question = question;
+        }
+    }
+    
+    private final MulticastDNSMulticastOnlyQuerier querier;
+    
+    private final Executors executors;
+    
+    private final MulticastDNSCache cache;
+    
+    private final Map<Record, ScheduledQuestion> questions = new LinkedHashMap<Record, ScheduledQuestion>();
+    
+    private ScheduledFuture<?> flushFuture;
+    
+    private long flushTime;
+    
+    
+    QueryScheduler(final MulticastDNSMulticastOnlyQuerier querier, final Executors executors, final MulticastDNSCache cache)
+    {
+        this.querier = querier;
+        this.executors = executors;
+        this.cache = cache;
+    }
+    
+    
+    /**
+     * Asks the questions of the query once. Questions that were asked within the last second are
+     * not asked again, as their answers are already on their way.
+     *
+     * @param query The query
+     */
+    void query(final Message query)
+    {
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            for (Record question : MulticastDNSUtils.extractRecords(query, Section.QUESTION))
+            {
+                ScheduledQuestion scheduled = getScheduledQuestion(question);
+                if ((now - scheduled.lastSent) >= MIN_INTERVAL)
+                {
+                    scheduled.pending = true;
+                    scheduled.due = now;
+                }
+            }
+            scheduleFlush(now);
+        }
+    }
+    
+    
+    /**
+     * Asks the questions of the query continuously until stopped.
+     *
+     * @param query The query
+     * @return The id used to stop the continuous query
+     */
+    Object start(final Message query)
+    {
+        Record[] asked = MulticastDNSUtils.extractRecords(query, Section.QUESTION);
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            for (Record question : asked)
+            {
+                ScheduledQuestion scheduled = getScheduledQuestion(question);
+                if (scheduled.continuous++ == 0)
+                {
+                    scheduled.interval = MIN_INTERVAL;
+                    long first = Math.max(now + ThreadLocalRandom.current().nextInt(MIN_INITIAL_DELAY, MAX_INITIAL_DELAY + 1), scheduled.lastSent + MIN_INTERVAL);
+                    scheduled.due = Math.min(scheduled.due, first);
+                }
+            }
+            scheduleFlush(now);
+        }
+        
+        return asked;
+    }
+    
+    
+    /**
+     * Stops a continuous query.
+     *
+     * @param id The id returned when the continuous query was started
+     */
+    void stop(final Object id)
+    {
+        if (!(id instanceof Record[]))
+        {
+            return;
+        }
+        
+        synchronized (this)
+        {
+            for (Record question : (Record[]) id)
+            {
+                ScheduledQuestion scheduled = questions.get(key(question));
+                if ((scheduled != null) && (scheduled.continuous > 0) && (--scheduled.continuous == 0) && !scheduled.pending)
+                {
+                    scheduled.due = Long.MAX_VALUE;
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Treats the QM questions of a query multicast by another host as asked by this host, if the
+     * query lists all the known answers this host would list [RFC 6762 section 7.3].
+     *
+     * @param query The query
+     */
+    void observe(final Message query)
+    {
+        Record[] knownAnswers = MulticastDNSUtils.extractRecords(query, Section.ANSWER);
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            for (Record question : MulticastDNSUtils.extractRecords(query, Section.QUESTION))
+            {
+                if ((question.getDClass() & Constants.UNICAST_RESPONSE) != 0)
+                {
+                    continue;
+                }
+                
+                ScheduledQuestion scheduled = questions.get(key(question));
+                // Questions asked within the last second include this host's own looped back queries.
+                if ((scheduled != null) && (scheduled.due != Long.MAX_VALUE) && ((now - scheduled.lastSent) >= MIN_INTERVAL) && containsAll(knownAnswers, cache.queryKnownAnswers(question)))
+                {
+                    if (logger.isLoggable(Level.FINE))
+                    {
+                        logger.logp(Level.FINE, getClass().getName(), "observe", "Suppressing duplicate question: " + scheduled.question);
+                    }
+                    sent(scheduled, now);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Sends the questions that are due, along with their known answers, and schedules the next
+     * send.
+     */
+    void flush()
+    {
+        List<Record> batch = new ArrayList<Record>();
+        long now = System.currentTimeMillis();
+        synchronized (this)
+        {
+            flushFuture = null;
+            Set<Name> anyNames = new HashSet<Name>();
+            for (Iterator<ScheduledQuestion> i = questions.values().iterator(); i.hasNext();)
+            {
+                ScheduledQuestion scheduled = i.next();
+                if (scheduled.due <= (now + MAX_INITIAL_DELAY))
+                {
+                    if ((scheduled.continuous > 0) || !isFresh(scheduled.question))
+                    {
+                        batch.add(scheduled.question);
+                        if (scheduled.question.getType() == Type.ANY)
+                        {
+                            anyNames.add(scheduled.question.getName());
+                        }
+                    }
+                    sent(scheduled, now);
+                } else if ((scheduled.continuous == 0) && !scheduled.pending && ((now - scheduled.lastSent) >= MIN_INTERVAL))
+                {
+                    i.remove();
+                }
+            }
+            
+            // Questions for all the types of a name also ask the questions for specific types.
+            for (Iterator<Record> i = batch.iterator(); i.hasNext();)
+            {
+                Record question = i.next();
+                if ((question.getType() != Type.ANY) && anyNames.contains(question.getName()))
+                {
+                    i.remove();
+                }
+            }
+            
+            scheduleFlush(now);
+        }
+        
+        if (batch.isEmpty())
+        {
+            return;
+        }
+        
+        Message query = new Message(0);
+        ResponseAccumulator knownAnswers = new ResponseAccumulator(query);
+        for (Record question : batch)
+        {
+            query.addRecord(question, Section.QUESTION);
+            knownAnswers.add(cache.queryKnownAnswers(question), Section.ANSWER);
+        }
+        
+        try
+        {
+            querier.writeQuery(query);
+        } catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Error writing mDNS query - " + e.getMessage(), e);
+        }
+    }
+    
+    
+    synchronized void close()
+    {
+        if (flushFuture != null)
+        {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        questions.clear();
+    }
+    
+    
+    private ScheduledQuestion getScheduledQuestion(final Record question)
+    {
+        Record key = key(question);
+        ScheduledQuestion scheduled = questions.get(key);
+        if (scheduled == null)
+        {
+            scheduled = new ScheduledQuestion(key);
+            questions.put(key, scheduled);
+        }
+        return scheduled;
+    }
+    
+    
+    /**
+     * Records that the question was asked, scheduling the next continuous query at twice the
+     * previous interval.
+     */
+    private void sent(final ScheduledQuestion scheduled, final long now)
+    {
+        scheduled.pending = false;
+        scheduled.lastSent = now;
+        if (scheduled.continuous > 0)
+        {
+            scheduled.due = now + scheduled.interval;
+            scheduled.interval = Math.min(scheduled.interval * 2, MAX_INTERVAL);
+        } else
+        {
+            scheduled.due = Long.MAX_VALUE;
+        }
+    }
+    
+    
+    /**
+     * Returns true if a one-shot question need not be asked, because the cache holds a fresh
+     * answer to it. Questions for shared record types are always asked, as there may be answers
+     * not yet in the cache.
+     */
+    private boolean isFresh(final Record question)
+    {
+        int type = question.getType();
+        return (type != Type.ANY) && (type != Type.PTR) && (cache.queryKnownAnswers(question).length > 0);
+    }
+    
+    
+    private void scheduleFlush(final long now)
+    {
+        long due = Long.MAX_VALUE;
+        for (ScheduledQuestion scheduled : questions.values())
+        {
+            due = Math.min(due, scheduled.due);
+        }
+        
+        if (due == Long.MAX_VALUE)
+        {
+            return;
+        }
+        
+        if ((flushFuture == null) || (due < flushTime))
+        {
+            if (flushFuture != null)
+            {
+                flushFuture.cancel(false);
+            }
+            flushTime = due;
+            flushFuture = executors.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    flush();
+                }
+            }, Math.max(0, due - now), TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    
+    private static boolean containsAll(final Record[] records, final Record[] expected)
+    {
+        Set<Record> keys = new HashSet<Record>();
+        for (Record record : records)
+        {
+            keys.add(MulticastHistory.key(record));
+        }
+        
+        for (Record record : expected)
+        {
+            if (!keys.contains(MulticastHistory.key(record)))
+            {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    
+    private static Record key(final Record question)
+    {
+        return Record.newRecord(question.getName(), question.getType(), question.getDClass() & 0x7FFF);
+    }
+}
@@ -0,0 +1,230 @@
+package net.posick.mDNS;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import net.posick.DNS.Flags;
+import net.posick.DNS.Header;
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Name;
+import net.posick.DNS.Opcode;
+import net.posick.DNS.Rcode;
+import net.posick.DNS.Record;
+import net.posick.DNS.Section;
+
+/**
+ * The ResponseAccumulator merges the records of multiple responses into a single message,
+ * de-duplicating them across the answer, authority and additional sections through a hash index
+ * keyed by name, type, class and rdata. Merging is linear in the number of records, rather than
+ * scanning the sections of the merged message for every record as Message.findRecord does.
+ * <p>
+ * The records added by each merge are returned, so that callers may stream the merged records as
+ * the responses arrive.
+ *
+ * @author Steve Posick
+ */
+public class ResponseAccumulator
+{
+    /**
+     * A record's identity, ignoring TTL, with its hash computed once.
+     */
+    protected static class RecordKey
+    {
+        private final Name name;
+        
+        private final int type;
+        
+        private final int dclass;
+        
+        private final byte[] rdata;
+        
+        private final int hashCode;
+        
+        
+        protected RecordKey(final Record record)
+        {
+            name = record.getName();
+            type = record.getType();
+            dclass = record.getDClass();
+            rdata = record.rdataToWireCanonical();
+            hashCode = (((name.hashCode() * 31) + type) * 31 + dclass) * 31 + Arrays.hashCode(rdata);
+        }
+        
+        
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (o == this)
+            {
+                return true;
+            }
+            
+            if (!(o instanceof RecordKey))
+            {
+                return false;
+            }
+            
+            RecordKey that = (RecordKey) o;
+            return (hashCode == that.hashCode) && (type == that.type) && (dclass == that.dclass) && name.equals(that.name) && Arrays.equals(rdata, that.rdata);
+        }
+        
+        
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+    
+    private static final int[] SECTIONS = new int[] {Section.ANSWER,
+                                                     Section.ADDITIONAL,
+                                                     Section.AUTHORITY};
+    
+    private final Message message;
+    
+    private final Set<RecordKey> index = new HashSet<RecordKey>();
+    
+    private boolean found;
+    
+    
+    /**
+     * Creates a ResponseAccumulator that merges records into the specified message. The records
+     * already present in the message are indexed, so they are not added again.
+     *
+     * @param message The message to merge records into
+     */
+    public ResponseAccumulator(final Message message)
+    {
+        this.message = message;
+        
+        for (int section : SECTIONS)
+        {
+            for (Record record : message.getSection(section))
+            {
+                index.add(new RecordKey(record));
+            }
+        }
+    }
+    
+    
+    /**
+     * Adds the record to the specified section of the message, unless it is already present in
+     * any section.
+     *
+     * @param record The record
+     * @param section The section
+     * @return true if the record was added
+     */
+    public synchronized boolean add(final Record record, final int section)
+    {
+        if (index.add(new RecordKey(record)))
+        {
+            message.addRecord(record, section);
+            found = true;
+            return true;
+        }
+        
+        return false;
+    }
+    
+    
+    /**
+     * Adds the records to the specified section of the message, skipping those already present.
+     *
+     * @param records The records
+     * @param section The section
+     * @return The records that were added
+     */
+    public synchronized Record[] add(final Record[] records, final int section)
+    {
+        if ((records == null) || (records.length == 0))
+        {
+            return MulticastDNSUtils.EMPTY_RECORDS;
+        }
+        
+        List<Record> added = new LinkedList<Record>();
+        for (Record record : records)
+        {
+            if (add(record, section))
+            {
+                added.add(record);
+            }
+        }
+        
+        return added.toArray(new Record[added.size()]);
+    }
+    
+    
+    /**
+     * Merges a response into the message. The records of responses that are not in error are
+     * added to the same sections of the message and the AA and AD flags are carried over.
+     *
+     * @param response The response
+     * @return The records that were added
+     */
+    public synchronized Record[] merge(final Message response)
+    {
+        Header h = response.getHeader();
+        if (h.getRcode() != Rcode.NOERROR)
+        {
+            return MulticastDNSUtils.EMPTY_RECORDS;
+        }
+        
+        Header header = message.getHeader();
+        if (h.getFlag(Flags.AA))
+        {
+            header.setFlag(Flags.AA);
+        }
+        
+        if (h.getFlag(Flags.AD))
+        {
+            header.setFlag(Flags.AD);
+        }
+        
+        List<Record> added = new LinkedList<Record>();
+        for (int section : SECTIONS)
+        {
+            for (Record record : response.getSection(section))
+            {
+                if (add(record, section))
+                {
+                    added.add(record);
+                }
+            }
+        }
+        
+        return added.toArray(new Record[added.size()]);
+    }
+    
+    
+    /**
+     * Returns true if any record has been merged into the message.
+     *
+     * @return true if any record has been merged into the message
+     */
+    public synchronized boolean isFound()
+    {
+        return found;
+    }
+    
+    
+    /**
+     * Returns a copy of the merged message as a response. The response code is NXDOMAIN if no
+     * records were merged.
+     *
+     * @return The merged response
+     */
+    public synchronized Message getResponse()
+    {
+        Message response = message.clone();
+        Header header = response.getHeader();
+        header.setOpcode(Opcode.QUERY);
+        header.setFlag(Flags.QR);
+        header.setRcode(found ? Rcode.NOERROR : Rcode.NXDOMAIN);
+        return response;
+    }
+}
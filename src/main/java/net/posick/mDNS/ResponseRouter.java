@@ -0,0 +1,440 @@
+package net.posick.mDNS;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.mDNS.utils.Misc;
+import net.posick.DNS.DClass;
+import net.posick.DNS.Flags;
+import net.posick.DNS.Header;
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Name;
+import net.posick.DNS.Options;
+import net.posick.DNS.Record;
+import net.posick.DNS.Section;
+import net.posick.DNS.Type;
+
+/**
+ * The ResponseRouter delivers responses to the QueryListeners whose questions they answer. An
+ * interest index keyed by question name and type locates the listeners for each record in a
+ * response, and a domain index locates the browse listeners for the record's name and its
+ * parent domains, so the cost of routing a response is independent of the number of
+ * outstanding queries. Listeners still verify that a routed response answers their questions.
+ * 
+ * @author Steve Posick
+ */
+class ResponseRouter
+{
+    private static final Logger logger = Misc.getLogger(ResponseRouter.class.getName(), Options.check("mdns_verbose") || Options.check("verbose"));
+    
+    private static final Registration[] EMPTY_REGISTRATIONS = new Registration[0];
+    
+    private static final int[] SECTIONS = new int[] {Section.ANSWER,
+                                                     Section.AUTHORITY,
+                                                     Section.ADDITIONAL};
+    
+    
+    private static class InterestKey
+    {
+        private final Name name;
+        
+        private final int type;
+        
+        
+        InterestKey(final Name name, final int type)
+        {
+            this.name = name;
+            this.type = type;
+        }
+        
+        
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            } else if (o instanceof InterestKey)
+            {
+                InterestKey that = (InterestKey) o;
+                return (type == that.type) && name.equals(that.name);
+            }
+            
+            return false;
+        }
+        
+        
+        @Override
+        public int hashCode()
+        {
+            return (name.hashCode() * 31) + type;
+        }
+    }
+    
+    
+    /**
+     * A registered listener, as a key matching any listener equal to it. Keys compare listeners in
+     * both directions, as a listener wrapping another listener equals the listener it wraps.
+     */
+    private static class ListenerKey
+    {
+        private final Object listener;
+        
+        
+        ListenerKey(final Object listener)
+        {
+            this.listener = listener;
+        }
+        
+        
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            } else if (o instanceof ListenerKey)
+            {
+                Object that = ((ListenerKey) o).listener;
+                return (listener == that) || listener.equals(that) || that.equals(listener);
+            }
+            
+            return false;
+        }
+        
+        
+        @Override
+        public int hashCode()
+        {
+            return listener.hashCode();
+        }
+    }
+    
+    
+    private static class Registration
+    {
+        private final QueryListener listener;
+        
+        private final Record[] questions;
+        
+        
+        Registration(final QueryListener listener)
+        {
+            this.listener = listener;
+            Record[] temp = listener.getQuestions();
+            questions = temp != null ? temp : MulticastDNSUtils.EMPTY_RECORDS;
+        }
+        
+        
+        boolean matchesClass(final Record record)
+        {
+            int recordDClass = record.getDClass() & 0x7FFF;
+            for (Record question : questions)
+            {
+                int questionDClass = question.getDClass() & 0x7FFF;
+                if ((questionDClass == DClass.ANY) || (questionDClass == recordDClass))
+                {
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+    }
+    
+    private final Map<InterestKey, Registration[]> interests = new ConcurrentHashMap<InterestKey, Registration[]>();
+    
+    private final Map<Name, Registration[]> browseDomains = new ConcurrentHashMap<Name, Registration[]>();
+    
+    private final Map<Name, Registration[]> browseParents = new ConcurrentHashMap<Name, Registration[]>();
+    
+    private volatile Registration[] registrations = EMPTY_REGISTRATIONS;
+    
+    /** The registrations, keyed by their listeners. Guarded by this router. */
+    private final Map<ListenerKey, Registration> listeners = new HashMap<ListenerKey, Registration>();
+    
+    
+    ResponseRouter()
+    {
+    }
+    
+    
+    /**
+     * Registers the QueryListener, indexing it by its questions.
+     * 
+     * @param listener The QueryListener
+     * @return The registered listener, or the equal listener that was already registered
+     */
+    synchronized QueryListener register(final QueryListener listener)
+    {
+        Registration existing = find(listener);
+        if (existing != null)
+        {
+            return existing.listener;
+        }
+        
+        Registration registration = new Registration(listener);
+        registrations = append(registrations, registration);
+        listeners.put(new ListenerKey(listener), registration);
+        for (Record question : registration.questions)
+        {
+            Name name = question.getName();
+            if (listener.isBrowse())
+            {
+                add(browseDomains, name, registration);
+                for (int labels = 1; labels < name.labels(); labels++ )
+                {
+                    add(browseParents, new Name(name, labels), registration);
+                }
+            } else
+            {
+                add(interests, new InterestKey(name, question.getType()), registration);
+            }
+        }
+        
+        return listener;
+    }
+    
+    
+    /**
+     * Unregisters the listener equal to the specified listener.
+     * 
+     * @param listener The listener
+     * @return The unregistered listener, or null if no equal listener was registered
+     */
+    synchronized QueryListener unregister(final Object listener)
+    {
+        Registration registration = find(listener);
+        if (registration == null)
+        {
+            return null;
+        }
+        
+        registrations = remove(registrations, registration);
+        listeners.remove(new ListenerKey(registration.listener));
+        for (Record question : registration.questions)
+        {
+            Name name = question.getName();
+            if (registration.listener.isBrowse())
+            {
+                remove(browseDomains, name, registration);
+                for (int labels = 1; labels < name.labels(); labels++ )
+                {
+                    remove(browseParents, new Name(name, labels), registration);
+                }
+            } else
+            {
+                remove(interests, new InterestKey(name, question.getType()), registration);
+            }
+        }
+        
+        return registration.listener;
+    }
+    
+    
+    /**
+     * Delivers the response to the QueryListeners registered for the names and types of the
+     * records in the response. Each listener receives the response at most once.
+     * 
+     * @param id The response identifier
+     * @param message The response
+     */
+    void route(final Object id, final Message message)
+    {
+        if (registrations.length == 0)
+        {
+            return;
+        }
+        
+        Header h = message.getHeader();
+        if (!(h.getFlag(Flags.QR) || h.getFlag(Flags.AA) || h.getFlag(Flags.AD)))
+        {
+            return;
+        }
+        
+        Set<Registration> matched = null;
+        for (int section : SECTIONS)
+        {
+            for (Record record : message.getSection(section))
+            {
+                matched = match(matched, record.getName(), record.getType(), record);
+            }
+        }
+        
+        if (matched != null)
+        {
+            for (Registration registration : matched)
+            {
+                try
+                {
+                    registration.listener.receiveMessage(id, message);
+                } catch (Exception e)
+                {
+                    logger.log(Level.WARNING, e.getMessage(), e);
+                }
+            }
+        }
+    }
+    
+    
+    /**
+     * Returns true if a registered QueryListener is interested in records of the specified name
+     * and type, either by asking for them or by browsing the domain containing them.
+     * 
+     * @param name The record name
+     * @param type The record type
+     * @return true if a registered QueryListener is interested in the records
+     */
+    boolean isInterested(final Name name, final int type)
+    {
+        if (registrations.length == 0)
+        {
+            return false;
+        }
+        
+        return match(null, name, type, null) != null;
+    }
+    
+    
+    /**
+     * Delivers the exception to all registered QueryListeners.
+     * 
+     * @param id The request identifier
+     * @param e The exception
+     */
+    void handleException(final Object id, final Exception e)
+    {
+        for (Registration registration : registrations)
+        {
+            try
+            {
+                registration.listener.handleException(id, e);
+            } catch (Exception ex)
+            {
+                logger.log(Level.WARNING, ex.getMessage(), ex);
+            }
+        }
+    }
+    
+    
+    synchronized void close()
+    {
+        interests.clear();
+        browseDomains.clear();
+        browseParents.clear();
+        listeners.clear();
+        registrations = EMPTY_REGISTRATIONS;
+    }
+    
+    
+    private Registration find(final Object listener)
+    {
+        return listeners.get(new ListenerKey(listener));
+    }
+    
+    
+    /**
+     * Adds the registrations interested in records of the specified name and type to the matched
+     * set, either by asking for them or by browsing the domain containing them. If a record is
+     * specified, only the registrations whose questions match its class are added.
+     */
+    private Set<Registration> match(Set<Registration> matched, final Name name, final int type, final Record record)
+    {
+        matched = collect(matched, record, interests.get(new InterestKey(name, type)));
+        matched = collect(matched, record, interests.get(new InterestKey(name, Type.ANY)));
+        if (!browseDomains.isEmpty())
+        {
+            matched = collect(matched, record, browseDomains.get(name));
+            matched = collect(matched, record, browseParents.get(name));
+            for (int labels = 1; labels < name.labels(); labels++ )
+            {
+                matched = collect(matched, record, browseDomains.get(new Name(name, labels)));
+            }
+        }
+        
+        return matched;
+    }
+    
+    
+    private static Set<Registration> collect(Set<Registration> matched, final Record record, final Registration[] candidates)
+    {
+        if (candidates != null)
+        {
+            for (Registration candidate : candidates)
+            {
+                if ((record == null) || candidate.matchesClass(record))
+                {
+                    if (matched == null)
+                    {
+                        matched = new LinkedHashSet<Registration>();
+                    }
+                    matched.add(candidate);
+                }
+            }
+        }
+        
+        return matched;
+    }
+    
+    
+    private static <K> void add(final Map<K, Registration[]> index, final K key, final Registration registration)
+    {
+        Registration[] current = index.get(key);
+        if (current == null)
+        {
+            index.put(key, new Registration[] {registration});
+        } else if (!Arrays.asList(current).contains(registration))
+        {
+            index.put(key, append(current, registration));
+        }
+    }
+    
+    
+    private static <K> void remove(final Map<K, Registration[]> index, final K key, final Registration registration)
+    {
+        Registration[] current = index.get(key);
+        if (current != null)
+        {
+            Registration[] updated = remove(current, registration);
+            if (updated.length == 0)
+            {
+                index.remove(key);
+            } else if (updated != current)
+            {
+                index.put(key, updated);
+            }
+        }
+    }
+    
+    
+    private static Registration[] append(final Registration[] registrations, final Registration registration)
+    {
+        Registration[] temp = Arrays.copyOf(registrations, registrations.length + 1);
+        temp[temp.length - 1] = registration;
+        return temp;
+    }
+    
+    
+    private static Registration[] remove(final Registration[] registrations, final Registration registration)
+    {
+        for (int index = 0; index < registrations.length; index++ )
+        {
+            if (registrations[index] == registration)
+            {
+                Registration[] temp = new Registration[registrations.length - 1];
+                System.arraycopy(registrations, 0, temp, 0, index);
+                System.arraycopy(registrations, index + 1, temp, index, registrations.length - index - 1);
+                return temp;
+            }
+        }
+        
+        return registrations;
+    }
+}
@@ -0,0 +1,248 @@
+package net.posick.mDNS;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.mDNS.utils.Executors;
+import net.posick.mDNS.utils.Misc;
+import net.posick.DNS.Flags;
+import net.posick.DNS.Header;
+import net.posick.DNS.Message;
+import net.posick.DNS.MulticastDNSUtils;
+import net.posick.DNS.Opcode;
+import net.posick.DNS.Options;
+import net.posick.DNS.Record;
+import net.posick.DNS.Section;
+
+/**
+ * The ResponseScheduler aggregates the responses of a Querier's responder into as few packets
+ * as possible. Responses containing shared records are delayed by a random 20 to 120
+ * milliseconds [RFC 6762 section 6], while responses containing only unique records are sent
+ * immediately along with any pending answers. Pending answers and additional records are merged
+ * across responses, and records multicast by another responder during the delay are dropped
+ * [RFC 6762 section 7.4], except for answers to probes, which are always sent so that conflicting
+ * probes are defended [RFC 6762 section 6]. The merged response is split into datagrams as needed when it is
+ * written to the wire.
+ * 
+ * @author Steve Posick
+ */
+class ResponseScheduler
+{
+    private static final Logger logger = Misc.getLogger(ResponseScheduler.class.getName(), Options.check("mdns_verbose") || Options.check("verbose"));
+    
+    public static final int MIN_SHARED_DELAY = 20;
+    
+    public static final int MAX_SHARED_DELAY = 120;
+    
+    private static final int[] SECTIONS = {Section.ANSWER, Section.AUTHORITY, Section.ADDITIONAL};
+    
+    private final MulticastDNSMulticastOnlyQuerier querier;
+    
+    private final Executors executors;
+    
+    private final MulticastHistory history;
+    
+    private final Map<Record, Record> answers = new LinkedHashMap<Record, Record>();
+    
+    private final Map<Record, Record> authorities = new LinkedHashMap<Record, Record>();
+    
+    private final Map<Record, Record> additionals = new LinkedHashMap<Record, Record>();
+    
+    // The keys of pending records answering a probe, which are not suppressed
+    private final Set<Record> probeAnswers = new HashSet<Record>();
+    
+    private ScheduledFuture<?> flushFuture;
+    
+    private long flushTime;
+    
+    
+    ResponseScheduler(final MulticastDNSMulticastOnlyQuerier querier, final Executors executors, final MulticastHistory history)
+    {
+        this.querier = querier;
+        this.executors = executors;
+        this.history = history;
+    }
+    
+    
+    /**
+     * Schedules the records of the response to be multicast.
+     * 
+     * @param response The response
+     */
+    void schedule(final Message response)
+    {
+        schedule(response, false);
+    }
+    
+    
+    /**
+     * Schedules the records of the response to be multicast.
+     * 
+     * @param response The response
+     * @param probe true if the response answers a probe, in which case its records are sent even
+     *            if they were recently multicast
+     */
+    void schedule(final Message response, final boolean probe)
+    {
+        boolean shared = false;
+        synchronized (this)
+        {
+            for (int section : SECTIONS)
+            {
+                Map<Record, Record> pending = pendingRecords(section);
+                for (Record record : MulticastDNSUtils.extractRecords(response, section))
+                {
+                    if ((record.getDClass() & Constants.CACHE_FLUSH) == 0)
+                    {
+                        shared = true;
+                    }
+                    
+                    Record key = MulticastHistory.key(record);
+                    Record existing = pending.get(key);
+                    if ((existing == null) || (existing.getTTL() < record.getTTL()))
+                    {
+                        pending.put(key, record);
+                    }
+                    if (probe)
+                    {
+                        probeAnswers.add(key);
+                    }
+                }
+            }
+            
+            if (shared)
+            {
+                long delay = ThreadLocalRandom.current().nextInt(MIN_SHARED_DELAY, MAX_SHARED_DELAY + 1);
+                long time = System.currentTimeMillis() + delay;
+                if ((flushFuture == null) || (time < flushTime))
+                {
+                    if (flushFuture != null)
+                    {
+                        flushFuture.cancel(false);
+                    }
+                    flushTime = time;
+                    flushFuture = executors.schedule(new Runnable()
+                    {
+                        public void run()
+                        {
+                            flush();
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        
+        flush();
+    }
+    
+    
+    /**
+     * Multicasts all pending records.
+     */
+    void flush()
+    {
+        Record[][] records = new Record[SECTIONS.length][];
+        synchronized (this)
+        {
+            if (flushFuture != null)
+            {
+                flushFuture.cancel(false);
+                flushFuture = null;
+            }
+            
+            for (Record key : answers.keySet())
+            {
+                authorities.remove(key);
+                additionals.remove(key);
+            }
+            for (int index = 0; index < SECTIONS.length; index++ )
+            {
+                Map<Record, Record> pending = pendingRecords(SECTIONS[index]);
+                List<Record> unsuppressed = new ArrayList<Record>(pending.size());
+                for (Map.Entry<Record, Record> entry : pending.entrySet())
+                {
+                    Record record = entry.getValue();
+                    if (probeAnswers.contains(entry.getKey()) || !history.recentlyMulticast(record))
+                    {
+                        unsuppressed.add(record);
+                    }
+                }
+                records[index] = unsuppressed.toArray(new Record[unsuppressed.size()]);
+                pending.clear();
+            }
+            probeAnswers.clear();
+        }
+        
+        if ((records[0].length == 0) && (records[1].length == 0))
+        {
+            return;
+        }
+        
+        Message message = newResponse();
+        for (int index = 0; index < SECTIONS.length; index++ )
+        {
+            for (Record record : records[index])
+            {
+                message.addRecord(record, SECTIONS[index]);
+            }
+        }
+        
+        try
+        {
+            querier.writeResponse(message);
+        } catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Error writing mDNS response - " + e.getMessage(), e);
+        }
+    }
+    
+    
+    synchronized void close()
+    {
+        if (flushFuture != null)
+        {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+        answers.clear();
+        authorities.clear();
+        additionals.clear();
+        probeAnswers.clear();
+    }
+    
+    
+    private static Message newResponse()
+    {
+        Message message = new Message();
+        Header header = message.getHeader();
+        header.setOpcode(Opcode.QUERY);
+        header.setFlag(Flags.QR);
+        header.setFlag(Flags.AA);
+        return message;
+    }
+    
+    
+    private Map<Record, Record> pendingRecords(final int section)
+    {
+        switch (section)
+        {
+            case Section.ANSWER:
+                return answers;
+            case Section.AUTHORITY:
+                return authorities;
+            default:
+                return additionals;
+        }
+    }
+}
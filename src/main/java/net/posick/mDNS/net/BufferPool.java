@@ -0,0 +1,72 @@
+package net.posick.mDNS.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of equally sized direct ByteBuffers used to receive datagrams without
+ * allocating a new buffer for every packet. Leasing from an empty pool allocates a new buffer;
+ * releasing into a full pool discards the buffer, so the number of retained buffers never
+ * exceeds the pool capacity.
+ *
+ * @author Steve Posick
+ */
+public class BufferPool
+{
+    public static final int DEFAULT_POOL_SIZE = 64;
+    
+    private final int bufferSize;
+    
+    private final ArrayBlockingQueue<ByteBuffer> buffers;
+    
+    
+    public BufferPool(final int bufferSize, final int poolSize)
+    {
+        this.bufferSize = bufferSize;
+        buffers = new ArrayBlockingQueue<ByteBuffer>(poolSize > 0 ? poolSize : DEFAULT_POOL_SIZE);
+    }
+    
+    
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+    
+    
+    /**
+     * Leases a cleared buffer from the pool, allocating a new one if the pool is empty.
+     *
+     * @return A cleared buffer of the pool's buffer size
+     */
+    public ByteBuffer lease()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+        {
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer;
+    }
+    
+    
+    /**
+     * Returns a previously leased buffer to the pool. The buffer must not be used by the caller
+     * after it is released.
+     *
+     * @param buffer The buffer
+     */
+    public void release(final ByteBuffer buffer)
+    {
+        if ((buffer != null) && (buffer.capacity() == bufferSize))
+        {
+            buffer.clear();
+            buffers.offer(buffer);
+        }
+    }
+    
+    
+    public int size()
+    {
+        return buffers.size();
+    }
+}
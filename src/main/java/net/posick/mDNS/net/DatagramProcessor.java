@@ -1,13 +1,17 @@
 package net.posick.mDNS.net;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.util.Enumeration;
 import java.util.logging.Level;
 
@@ -15,6 +19,9 @@ import net.posick.DNS.Options;
 
 public class DatagramProcessor extends NetworkProcessor
 {
+    // The time to wait for room in the socket send buffer before a send fails
+    public static final long SEND_TIMEOUT = 1000;
+    
     // The default UDP datagram payload size
     protected int maxPayloadSize = 512;
     
@@ -26,10 +33,19 @@ public class DatagramProcessor extends NetworkProcessor
     
     protected int ttl = 255;
     
-    protected DatagramSocket socket;
+    protected DatagramChannel channel;
+    
+    protected MembershipKey membership;
+    
+    protected NetworkInterface networkInterface;
+    
+    protected BufferPool bufferPool;
     
     private long lastPacket;
     
+    // Selector waiting for the channel to become writable, opened when the send buffer first fills
+    private Selector writeSelector;
+    
     
     public DatagramProcessor(final InetAddress ifaceAddress, final InetAddress address, final int port, final PacketListener listener)
     throws IOException
@@ -41,10 +57,15 @@ public class DatagramProcessor extends NetworkProcessor
             isMulticast = address.isMulticastAddress();
         }
         
-        NetworkInterface netIface = null;
+        NetworkInterface netIface = NetworkInterface.getByInetAddress(ifaceAddress);
+        channel = DatagramChannel.open(ipv6 ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET);
         if (isMulticast)
         {
-            MulticastSocket socket = new MulticastSocket(port);
+            if (netIface == null)
+            {
+                channel.close();
+                throw new IOException("Could not determine the Network Interface for address \"" + ifaceAddress + "\".");
+            }
             
             // Set the IP TTL to 255, per the mDNS specification [RFC 6762].
             String temp;
@@ -72,36 +93,28 @@ public class DatagramProcessor extends NetworkProcessor
             */
             reuseAddress = true;
             
-            socket.setLoopbackMode(loopbackModeDisabled);
-            socket.setReuseAddress(reuseAddress);
-            socket.setTimeToLive(ttl);
-            
-            socket.setInterface(ifaceAddress);
-            
-            socket.joinGroup(address);
-            
-            this.socket = socket;
+            try
+            {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+                channel.bind(new InetSocketAddress(port));
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, !loopbackModeDisabled);
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netIface);
+                
+                membership = channel.join(address, netIface);
+            } catch (IOException e)
+            {
+                channel.close();
+                throw e;
+            }
         } else
         {
-            socket = new DatagramSocket(new InetSocketAddress(ifaceAddress, port));
+            channel.bind(new InetSocketAddress(ifaceAddress, port));
         }
-        
-        netIface = NetworkInterface.getByInetAddress(ifaceAddress);
+        channel.configureBlocking(false);
+        networkInterface = netIface;
         
         // Determine maximum mDNS Payload size
-        if (netIface == null)
-        {
-            netIface = NetworkInterface.getByInetAddress(socket.getLocalAddress());
-            if (netIface == null)
-            {
-                InetAddress addr = socket.getInetAddress();
-                if (addr != null)
-                {
-                    netIface = NetworkInterface.getByInetAddress(addr);
-                }
-            }
-        }
-        
         if (netIface != null)
         {
             try
@@ -134,6 +147,7 @@ public class DatagramProcessor extends NetworkProcessor
         }
         
         maxPayloadSize = mtu - 40 /* IPv6 Header Size */- 8 /* UDP Header */;
+        bufferPool = new BufferPool(mtu, Options.intValue("mdns_receive_buffer_pool_size"));
     }
     
     
@@ -143,11 +157,19 @@ public class DatagramProcessor extends NetworkProcessor
     {
         super.close();
         
-        if (isMulticast)
+        try
+        {
+            DatagramSelector.getInstance().unregister(this);
+        } catch (IOException e)
+        {
+            // ignore
+        }
+        
+        if (membership != null)
         {
             try
             {
-                ((MulticastSocket) socket).leaveGroup(address);
+                membership.drop();
             } catch (SecurityException e)
             {
                 logger.log(Level.WARNING, "A Security error occurred while leaving Multicast Group \"" + address.getAddress() + "\" - " + e.getMessage(), e);
@@ -157,7 +179,27 @@ public class DatagramProcessor extends NetworkProcessor
             }
         }
         
-        socket.close();
+        synchronized (this)
+        {
+            if (writeSelector != null)
+            {
+                writeSelector.close();
+            }
+        }
+        
+        channel.close();
+    }
+    
+    
+    public DatagramChannel getChannel()
+    {
+        return channel;
+    }
+    
+    
+    public NetworkInterface getNetworkInterface()
+    {
+        return networkInterface;
     }
     
     
@@ -165,8 +207,8 @@ public class DatagramProcessor extends NetworkProcessor
     {
         return loopbackModeDisabled;
     }
-
-
+    
+    
     public boolean isReuseAddress()
     {
         return reuseAddress;
@@ -194,41 +236,65 @@ public class DatagramProcessor extends NetworkProcessor
     @Override
     public boolean isOperational()
     {
-        return super.isOperational() && socket.isBound() && !socket.isClosed() && (lastPacket <= (System.currentTimeMillis() + 120000));
+        return super.isOperational() && channel.isOpen() && (lastPacket <= (System.currentTimeMillis() + 120000));
     }
     
     
+    /**
+     * Reads all datagrams currently available on the channel, dispatching each one to the
+     * PacketListener through the PacketQueue. Called by the DatagramSelector when the channel
+     * is readable.
+     */
     public void run()
     {
-        lastPacket = System.currentTimeMillis();
-        while (!exit)
+        read();
+    }
+    
+    
+    protected void read()
+    {
+        ByteBuffer buffer = null;
+        try
         {
-            try
+            InetSocketAddress source;
+            while (!exit)
             {
-                byte[] buffer = new byte[mtu];
-                final DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
-                socket.receive(datagram);
+                buffer = bufferPool.lease();
+                if ((source = (InetSocketAddress) channel.receive(buffer)) == null)
+                {
+                    break;
+                }
+                
                 lastPacket = System.currentTimeMillis();
-                if (datagram.getLength() > 0)
+                buffer.flip();
+                if (buffer.hasRemaining())
                 {
-                    Packet packet = new Packet(datagram);
+                    Packet packet = new Packet(source.getAddress(), source.getPort(), buffer, bufferPool);
+                    buffer = null;
                     if (logger.isLoggable(Level.FINE))
                     {
                         logger.logp(Level.FINE, getClass().getName(), "run", "-----> Received packet " + packet.id + " <-----");
                         packet.timer.start();
                     }
-                    executors.executeNetworkTask(new PacketRunner(listener, packet));
-                }
-            } catch (SecurityException e)
-            {
-                logger.log(Level.WARNING, "Security issue receiving data from \"" + address + "\" - " + e.getMessage(), e);
-            } catch (Exception e)
-            {
-                if (!exit || logger.isLoggable(Level.FINE))
+                    packetQueue.offer(packet);
+                } else
                 {
-                    logger.log(Level.WARNING, "Error receiving data from \"" + address + "\" - " + e.getMessage(), e);
+                    bufferPool.release(buffer);
+                    buffer = null;
                 }
             }
+        } catch (SecurityException e)
+        {
+            logger.log(Level.WARNING, "Security issue receiving data from \"" + address + "\" - " + e.getMessage(), e);
+        } catch (Exception e)
+        {
+            if (!exit || logger.isLoggable(Level.FINE))
+            {
+                logger.log(Level.WARNING, "Error receiving data from \"" + address + "\" - " + e.getMessage(), e);
+            }
+        } finally
+        {
+            bufferPool.release(buffer);
         }
     }
     
@@ -242,32 +308,75 @@ public class DatagramProcessor extends NetworkProcessor
             return;
         }
         
-        DatagramPacket packet = new DatagramPacket(data, data.length, address, port);
+        InetSocketAddress destination = new InetSocketAddress(address, port);
         
         try
         {
-            if (isMulticast)
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (channel.send(buffer, destination) == 0)
             {
-                // Set the IP TTL to 255, per the mDNS specification [RFC 6762].
-                ((MulticastSocket) socket).setTimeToLive(255);
+                sendWhenWritable(buffer, destination);
             }
-            socket.send(packet);
         } catch (IOException e)
         {
-            logger.log(Level.FINE, "Error sending datagram to \"" + packet.getSocketAddress() + "\".", e);
+            logger.log(Level.FINE, "Error sending datagram to \"" + destination + "\".", e);
             
             if ("no route to host".equalsIgnoreCase(e.getMessage()))
             {
                 close();
             }
             
-            IOException ioe = new IOException("Exception \"" + e.getMessage() + "\" occured while sending datagram to \"" + packet.getSocketAddress() + "\".", e);
+            IOException ioe = new IOException("Exception \"" + e.getMessage() + "\" occured while sending datagram to \"" + destination + "\".", e);
             ioe.setStackTrace(e.getStackTrace());
             throw ioe;
         }
     }
     
     
+    /**
+     * Sends a datagram that the socket send buffer had no room for, waiting for the channel to
+     * become writable as a blocking socket would, for up to SEND_TIMEOUT milliseconds.
+     * 
+     * @param buffer The datagram
+     * @param destination The destination of the datagram
+     * @throws IOException If the datagram could not be sent before the timeout
+     */
+    protected synchronized void sendWhenWritable(final ByteBuffer buffer, final InetSocketAddress destination)
+    throws IOException
+    {
+        if (writeSelector == null)
+        {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        
+        long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+        while (channel.send(buffer, destination) == 0)
+        {
+            long remaining = deadline - System.currentTimeMillis();
+            if (exit || (remaining <= 0))
+            {
+                throw new IOException("Datagram not sent, the socket send buffer stayed full for " + SEND_TIMEOUT + " milliseconds.");
+            }
+            writeSelector.select(remaining);
+            writeSelector.selectedKeys().clear();
+        }
+    }
+    
+    
+    @Override
+    protected void startReader()
+    {
+        try
+        {
+            DatagramSelector.getInstance().register(this);
+        } catch (IOException e)
+        {
+            logger.log(Level.WARNING, "Error registering with the DatagramSelector - " + e.getMessage(), e);
+        }
+    }
+    
+    
     @Override
     protected void finalize()
     throws Throwable
@@ -0,0 +1,196 @@
+package net.posick.mDNS.net;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.mDNS.utils.Executors;
+import net.posick.mDNS.utils.Misc;
+import net.posick.DNS.Options;
+
+/**
+ * The DatagramSelector multiplexes the reception of datagrams for all registered
+ * DatagramProcessors onto a small, fixed number of NIO Selector event loops, instead of
+ * dedicating a blocking read thread to every socket. The number of event loops defaults to 1
+ * and may be set using the "mdns_selector_threads" option, up to the number of available
+ * processors.
+ *
+ * @author Steve Posick
+ */
+public class DatagramSelector
+{
+    protected static final Logger logger = Misc.getLogger(DatagramSelector.class.getName(), Options.check("mdns_network_verbose") || Options.check("network_verbose") || Options.check("mdns_verbose") || Options.check("dns_verbose") || Options.check("verbose"));
+    
+    public static final int DEFAULT_SELECTOR_THREADS = 1;
+    
+    
+    protected static class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        
+        private final Queue<DatagramProcessor> pendingRegistrations = new ConcurrentLinkedQueue<DatagramProcessor>();
+        
+        private final AtomicInteger channelCount = new AtomicInteger();
+        
+        
+        protected EventLoop(final int index)
+        throws IOException
+        {
+            selector = Selector.open();
+            
+            Thread t = new Thread(this);
+            t.setName("NetworkProcessor Selector Thread " + index);
+            t.setPriority(Executors.DEFAULT_NETWORK_THREAD_PRIORITY);
+            t.setDaemon(true);
+            t.start();
+        }
+        
+        
+        protected void register(final DatagramProcessor processor)
+        {
+            channelCount.incrementAndGet();
+            pendingRegistrations.add(processor);
+            selector.wakeup();
+        }
+        
+        
+        protected void unregister(final DatagramProcessor processor)
+        {
+            SelectionKey key = processor.getChannel().keyFor(selector);
+            if (key != null)
+            {
+                key.cancel();
+                channelCount.decrementAndGet();
+                selector.wakeup();
+            } else if (pendingRegistrations.remove(processor))
+            {
+                channelCount.decrementAndGet();
+            }
+        }
+        
+        
+        public void run()
+        {
+            while (selector.isOpen())
+            {
+                try
+                {
+                    DatagramProcessor processor;
+                    while ((processor = pendingRegistrations.poll()) != null)
+                    {
+                        DatagramChannel channel = processor.getChannel();
+                        if (channel.isOpen())
+                        {
+                            channel.register(selector, SelectionKey.OP_READ, processor);
+                        } else
+                        {
+                            channelCount.decrementAndGet();
+                        }
+                    }
+                    
+                    if (selector.select() > 0)
+                    {
+                        for (Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();)
+                        {
+                            SelectionKey key = i.next();
+                            i.remove();
+                            
+                            try
+                            {
+                                if (key.isValid() && key.isReadable())
+                                {
+                                    ((DatagramProcessor) key.attachment()).read();
+                                }
+                            } catch (CancelledKeyException e)
+                            {
+                                // Processor closed, ignore.
+                            }
+                        }
+                    }
+                } catch (ClosedSelectorException e)
+                {
+                    break;
+                } catch (Exception e)
+                {
+                    logger.log(Level.WARNING, "Error selecting datagram channels - " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+    
+    private static DatagramSelector instance;
+    
+    private final EventLoop[] loops;
+    
+    
+    protected DatagramSelector(final int threads)
+    throws IOException
+    {
+        loops = new EventLoop[threads];
+        for (int index = 0; index < loops.length; index++ )
+        {
+            loops[index] = new EventLoop(index);
+        }
+    }
+    
+    
+    /**
+     * Registers the DatagramProcessor with the event loop that currently services the fewest
+     * channels.
+     *
+     * @param processor The DatagramProcessor
+     */
+    public void register(final DatagramProcessor processor)
+    {
+        EventLoop selected = loops[0];
+        for (EventLoop loop : loops)
+        {
+            if (loop.channelCount.get() < selected.channelCount.get())
+            {
+                selected = loop;
+            }
+        }
+        selected.register(processor);
+    }
+    
+    
+    /**
+     * Unregisters the DatagramProcessor from its event loop.
+     *
+     * @param processor The DatagramProcessor
+     */
+    public void unregister(final DatagramProcessor processor)
+    {
+        for (EventLoop loop : loops)
+        {
+            loop.unregister(processor);
+        }
+    }
+    
+    
+    public static synchronized DatagramSelector getInstance()
+    throws IOException
+    {
+        if (instance == null)
+        {
+            int threads = DEFAULT_SELECTOR_THREADS;
+            int value = Options.intValue("mdns_selector_threads");
+            if (value > 0)
+            {
+                threads = Math.min(value, Runtime.getRuntime().availableProcessors());
+            }
+            instance = new DatagramSelector(threads);
+        }
+        
+        return instance;
+    }
+}
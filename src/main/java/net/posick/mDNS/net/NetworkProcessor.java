@@ -63,6 +63,9 @@ public abstract class NetworkProcessor implements Runnable, Closeable
                 } catch (Throwable e)
                 {
                     logger.log(Level.WARNING, "Error dispatching data packet - " + e.getMessage(), e);
+                } finally
+                {
+                    packet.release();
                 }
             }
         }
@@ -93,6 +96,8 @@ public abstract class NetworkProcessor implements Runnable, Closeable
     
     protected PacketListener listener;
     
+    protected PacketQueue packetQueue;
+    
     protected boolean threadMonitoring = false;
     
     protected Thread networkReadThread = null;
@@ -115,6 +120,7 @@ public abstract class NetworkProcessor implements Runnable, Closeable
         ipv6 = address.getAddress().length > 4;
         
         this.listener = listener;
+        packetQueue = new PacketQueue(executors, listener);
     }
     
     
@@ -126,6 +132,7 @@ public abstract class NetworkProcessor implements Runnable, Closeable
             threadMonitoringFuture.cancel(true);
         }
         exit = true;
+        packetQueue.clear();
     }
     
     
@@ -141,6 +148,18 @@ public abstract class NetworkProcessor implements Runnable, Closeable
     }
     
     
+    /**
+     * Returns the queue of received packets awaiting dispatch, which counts the packets dropped
+     * when packets are received faster than they are dispatched.
+     * 
+     * @return The queue of received packets
+     */
+    public PacketQueue getPacketQueue()
+    {
+        return packetQueue;
+    }
+    
+    
     public int getMTU()
     {
         return mtu;
@@ -233,7 +252,17 @@ public abstract class NetworkProcessor implements Runnable, Closeable
                 }
             }, 1, TimeUnit.SECONDS);
         }
-
+        
+        startReader();
+    }
+    
+    
+    /**
+     * Starts reading data from the network. By default a dedicated IO Read Thread is started
+     * that executes this NetworkProcessor's run method.
+     */
+    protected void startReader()
+    {
         Thread t = new Thread(this);
         t.setName("NetworkProcessor IO Read Thread");
         t.setPriority(Executors.DEFAULT_NETWORK_THREAD_PRIORITY);
@@ -4,16 +4,29 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 
 import net.posick.mDNS.utils.ExecutionTimer;
 
+/**
+ * A received datagram. Packets created by the DatagramProcessor hold a buffer leased from a
+ * BufferPool, which is returned to the pool once the Packet has been dispatched to the
+ * PacketListener. PacketListeners must therefore not retain the Packet's buffer beyond the
+ * packetReceived call.
+ */
 public class Packet
 {
     private final InetAddress address;
     
     private final int port;
     
-    private final byte[] data;
+    private final ByteBuffer buffer;
+    
+    private final BufferPool pool;
+    
+    private byte[] data;
+    
+    private boolean released = false;
     
     protected static int sequence;
     
@@ -29,11 +42,18 @@ public class Packet
     
     
     protected Packet(final InetAddress address, final int port, final byte[] data, final int offset, final int length)
+    {
+        this(address, port, ByteBuffer.wrap(data, offset, length), null);
+    }
+    
+    
+    protected Packet(final InetAddress address, final int port, final ByteBuffer buffer, final BufferPool pool)
     {
         id = Packet.sequence++ ;
         this.address = address;
         this.port = port;
-        this.data = data;
+        this.buffer = buffer;
+        this.pool = pool;
     }
     
     
@@ -43,12 +63,41 @@ public class Packet
     }
     
     
-    public byte[] getData()
+    /**
+     * Returns a read only view of the packet data, positioned at the start of the data. The
+     * view is only valid until the Packet is released.
+     *
+     * @return A read only view of the packet data
+     */
+    public ByteBuffer getBuffer()
     {
+        return buffer.asReadOnlyBuffer();
+    }
+    
+    
+    /**
+     * Returns a copy of the packet data.
+     *
+     * @return A copy of the packet data
+     */
+    public synchronized byte[] getData()
+    {
+        if (data == null)
+        {
+            ByteBuffer view = buffer.duplicate();
+            data = new byte[view.remaining()];
+            view.get(data);
+        }
         return data;
     }
     
     
+    public int getLength()
+    {
+        return buffer.remaining();
+    }
+    
+    
     public int getPort()
     {
         return port;
@@ -59,4 +108,20 @@ public class Packet
     {
         return new InetSocketAddress(address, port);
     }
-}
\ No newline at end of file
+    
+    
+    /**
+     * Returns the Packet's buffer to the pool it was leased from, if any.
+     */
+    protected synchronized void release()
+    {
+        if (!released)
+        {
+            released = true;
+            if (pool != null)
+            {
+                pool.release(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,406 @@
+package net.posick.mDNS.net;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.posick.mDNS.net.NetworkProcessor.PacketRunner;
+import net.posick.mDNS.utils.Executors;
+import net.posick.mDNS.utils.Misc;
+import net.posick.DNS.Options;
+
+/**
+ * A bounded queue of received Packets, drained by a bounded number of tasks on the network
+ * executor. Packets are dropped, rather than threads being started, when packets arrive faster
+ * than they can be dispatched, so that a multicast storm degrades packet processing instead of
+ * exhausting the JVM. Every dropped packet is counted and its buffer returned to its pool.
+ * <p>
+ * Packets are dropped when:
+ * <ul>
+ * <li>the queue is full, dropping the oldest queued packet or the new packet, as configured by the
+ * "mdns_packet_queue_policy" option ("drop_oldest" or "drop_newest");</li>
+ * <li>an identical packet from the same source is already queued, unless the
+ * "mdns_packet_queue_keep_duplicates" option is set;</li>
+ * <li>the source has sent more packets per second than the "mdns_packet_rate_limit" option
+ * allows, when set.</li>
+ * </ul>
+ * The queue size and the number of draining tasks are set by the "mdns_packet_queue_size" and
+ * "mdns_packet_queue_threads" options.
+ *
+ * @author Steve Posick
+ */
+public class PacketQueue
+{
+    protected static final Logger logger = Misc.getLogger(PacketQueue.class.getName(), Options.check("mdns_network_verbose") || Options.check("network_verbose") || Options.check("mdns_verbose") || Options.check("dns_verbose") || Options.check("verbose"));
+    
+    public static final int DEFAULT_QUEUE_SIZE = 256;
+    
+    public static final int DEFAULT_THREADS = Executors.CORE_THREADS_NETWORK_EXECUTOR;
+    
+    private static final int MAX_RATE_LIMITED_SOURCES = 1024;
+    
+    public static enum Policy
+    {
+        DROP_OLDEST, DROP_NEWEST
+    }
+    
+    /**
+     * A queued Packet, with the hash of its data computed once for duplicate detection. Queued
+     * Packets are equal if they are from the same source and have the same data.
+     */
+    protected static class QueuedPacket
+    {
+        private final Packet packet;
+        
+        private final int hashCode;
+        
+        
+        protected QueuedPacket(final Packet packet)
+        {
+            this.packet = packet;
+            hashCode = (packet.getAddress().hashCode() * 31) + packet.getBuffer().hashCode();
+        }
+        
+        
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (o == this)
+            {
+                return true;
+            }
+            
+            if (!(o instanceof QueuedPacket))
+            {
+                return false;
+            }
+            
+            QueuedPacket that = (QueuedPacket) o;
+            return (hashCode == that.hashCode) && packet.getAddress().equals(that.packet.getAddress()) && packet.getBuffer().equals(that.packet.getBuffer());
+        }
+        
+        
+        @Override
+        public int hashCode()
+        {
+            return hashCode;
+        }
+    }
+    
+    /**
+     * A token bucket limiting the packets accepted from a source to a rate per second, allowing
+     * bursts of up to a second's worth of packets.
+     */
+    protected static class RateLimit
+    {
+        private double tokens;
+        
+        private long last;
+        
+        
+        protected RateLimit(final int rate, final long now)
+        {
+            tokens = rate;
+            last = now;
+        }
+        
+        
+        protected boolean acquire(final int rate, final long now)
+        {
+            tokens = Math.min(rate, tokens + (((now - last) * rate) / 1000.0));
+            last = now;
+            if (tokens >= 1)
+            {
+                tokens-- ;
+                return true;
+            }
+            return false;
+        }
+    }
+    
+    private final Executors executors;
+    
+    private final PacketListener listener;
+    
+    private final ArrayDeque<QueuedPacket> queue = new ArrayDeque<QueuedPacket>();
+    
+    /** The queued packets, indexed for duplicate detection */
+    private final Set<QueuedPacket> queued = new HashSet<QueuedPacket>();
+    
+    /** The rate limits of the sources, evicting the least recently seen source when full */
+    private final Map<InetAddress, RateLimit> rateLimits = new LinkedHashMap<InetAddress, RateLimit>(16, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+        
+        
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<InetAddress, RateLimit> eldest)
+        {
+            return size() > MAX_RATE_LIMITED_SOURCES;
+        }
+    };
+    
+    private final int capacity;
+    
+    private final int threads;
+    
+    private final Policy policy;
+    
+    private final boolean dropDuplicates;
+    
+    private final int rateLimit;
+    
+    private int drainers;
+    
+    private final AtomicLong received = new AtomicLong();
+    
+    private final AtomicLong dispatched = new AtomicLong();
+    
+    private final AtomicLong droppedOverflow = new AtomicLong();
+    
+    private final AtomicLong droppedDuplicate = new AtomicLong();
+    
+    private final AtomicLong droppedRateLimited = new AtomicLong();
+    
+    
+    public PacketQueue(final Executors executors, final PacketListener listener)
+    {
+        this.executors = executors;
+        this.listener = listener;
+        
+        int value = Options.intValue("mdns_packet_queue_size");
+        capacity = value > 0 ? value : DEFAULT_QUEUE_SIZE;
+        value = Options.intValue("mdns_packet_queue_threads");
+        threads = value > 0 ? value : DEFAULT_THREADS;
+        policy = "drop_newest".equalsIgnoreCase(Options.value("mdns_packet_queue_policy")) ? Policy.DROP_NEWEST : Policy.DROP_OLDEST;
+        dropDuplicates = !Options.check("mdns_packet_queue_keep_duplicates");
+        value = Options.intValue("mdns_packet_rate_limit");
+        rateLimit = value > 0 ? value : 0;
+    }
+    
+    
+    /**
+     * Queues a Packet for dispatch to the PacketListener, or drops it.
+     *
+     * @param packet The Packet
+     * @return true if the packet was queued
+     */
+    public boolean offer(final Packet packet)
+    {
+        received.incrementAndGet();
+        QueuedPacket entry = new QueuedPacket(packet);
+        Packet dropped = null;
+        boolean accepted = true;
+        boolean drain = false;
+        
+        synchronized (this)
+        {
+            if ((rateLimit > 0) && !acquire(packet.getAddress()))
+            {
+                droppedRateLimited.incrementAndGet();
+                dropped = packet;
+                accepted = false;
+            } else if (dropDuplicates && queued.contains(entry))
+            {
+                droppedDuplicate.incrementAndGet();
+                dropped = packet;
+                accepted = false;
+            } else if (queue.size() >= capacity)
+            {
+                droppedOverflow.incrementAndGet();
+                if (policy == Policy.DROP_OLDEST)
+                {
+                    dropped = poll().packet;
+                    add(entry);
+                } else
+                {
+                    dropped = packet;
+                    accepted = false;
+                }
+            } else
+            {
+                add(entry);
+            }
+            
+            if (accepted && (drainers < threads))
+            {
+                drainers++ ;
+                drain = true;
+            }
+        }
+        
+        if (dropped != null)
+        {
+            dropped.release();
+            if (logger.isLoggable(Level.FINE))
+            {
+                logger.logp(Level.FINE, getClass().getName(), "offer", "Dropped packet " + dropped.id + " from " + dropped.getAddress() + " - " + this);
+            }
+        }
+        
+        if (drain)
+        {
+            try
+            {
+                executors.executeNetworkTask(new Runnable()
+                {
+                    public void run()
+                    {
+                        drain();
+                    }
+                });
+            } catch (RejectedExecutionException e)
+            {
+                // Drain on this thread, as no further packet may arrive to start another drain.
+                drain();
+            }
+        }
+        
+        return accepted;
+    }
+    
+    
+    /**
+     * Drops all queued Packets, returning their buffers to their pools.
+     */
+    public void clear()
+    {
+        QueuedPacket[] packets;
+        synchronized (this)
+        {
+            packets = queue.toArray(new QueuedPacket[queue.size()]);
+            queue.clear();
+            queued.clear();
+            rateLimits.clear();
+        }
+        
+        for (QueuedPacket queued : packets)
+        {
+            queued.packet.release();
+        }
+    }
+    
+    
+    public long getDispatched()
+    {
+        return dispatched.get();
+    }
+    
+    
+    /**
+     * Returns the number of packets dropped, for any reason.
+     *
+     * @return the number of packets dropped
+     */
+    public long getDropped()
+    {
+        return droppedOverflow.get() + droppedDuplicate.get() + droppedRateLimited.get();
+    }
+    
+    
+    public long getDroppedDuplicate()
+    {
+        return droppedDuplicate.get();
+    }
+    
+    
+    public long getDroppedOverflow()
+    {
+        return droppedOverflow.get();
+    }
+    
+    
+    public long getDroppedRateLimited()
+    {
+        return droppedRateLimited.get();
+    }
+    
+    
+    /**
+     * Returns the number of packets currently queued.
+     *
+     * @return the number of packets currently queued
+     */
+    public synchronized int getQueued()
+    {
+        return queue.size();
+    }
+    
+    
+    public long getReceived()
+    {
+        return received.get();
+    }
+    
+    
+    @Override
+    public String toString()
+    {
+        return "PacketQueue [received: " + getReceived() + ", dispatched: " + getDispatched() + ", queued: " + getQueued() + ", dropped (overflow: " + getDroppedOverflow() + ", duplicate: " + getDroppedDuplicate() + ", rate limited: " + getDroppedRateLimited() + ")]";
+    }
+    
+    
+    /**
+     * Dispatches queued Packets until the queue is empty.
+     */
+    protected void drain()
+    {
+        while (true)
+        {
+            QueuedPacket entry;
+            synchronized (this)
+            {
+                entry = poll();
+                if (entry == null)
+                {
+                    drainers-- ;
+                    return;
+                }
+            }
+            
+            new PacketRunner(listener, entry.packet).run();
+            dispatched.incrementAndGet();
+        }
+    }
+    
+    
+    private void add(final QueuedPacket entry)
+    {
+        queue.add(entry);
+        if (dropDuplicates)
+        {
+            queued.add(entry);
+        }
+    }
+    
+    
+    private QueuedPacket poll()
+    {
+        QueuedPacket entry = queue.poll();
+        if ((entry != null) && dropDuplicates)
+        {
+            queued.remove(entry);
+        }
+        return entry;
+    }
+    
+    
+    private boolean acquire(final InetAddress source)
+    {
+        long now = System.currentTimeMillis();
+        RateLimit limit = rateLimits.get(source);
+        if (limit == null)
+        {
+            limit = new RateLimit(rateLimit, now);
+            rateLimits.put(source, limit);
+        }
+        return limit.acquire(rateLimit, now);
+    }
+}
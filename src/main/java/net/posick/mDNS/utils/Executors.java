@@ -1,12 +1,16 @@
 package net.posick.mDNS.utils;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,7 +27,7 @@ public class Executors
     
     public static final int CORE_THREADS_NETWORK_EXECUTOR = 5;
     
-    public static final int MAX_THREADS_NETWORK_EXECUTOR = Integer.MAX_VALUE;
+    public static final int MAX_THREADS_NETWORK_EXECUTOR = 32;
     
     public static final int TTL_THREADS_NETWORK_EXECUTOR = 10000;
     
@@ -33,7 +37,7 @@ public class Executors
     
     public static final int CORE_THREADS_CACHED_EXECUTOR = 5;
     
-    public static final int MAX_THREADS_CACHED_EXECUTOR = Integer.MAX_VALUE;
+    public static final int MAX_THREADS_CACHED_EXECUTOR = 64;
     
     public static final int TTL_THREADS_CACHED_EXECUTOR = 10000;
     
@@ -57,9 +61,21 @@ public class Executors
     
     private final ThreadPoolExecutor networkExecutor;
     
+    /**
+     * The virtual thread per task executor that replaces the executor and the network executor,
+     * when virtual threads are enabled with the "mdns_virtual_threads" option and supported.
+     */
+    private final ExecutorService virtualExecutor;
+    
+    private final AtomicLong rejectedTasks = new AtomicLong();
+    
+    private final AtomicLong rejectedNetworkTasks = new AtomicLong();
+    
     
     private Executors()
     {
+        virtualExecutor = Options.check("mdns_virtual_threads") ? newVirtualThreadPerTaskExecutor("mDNS Virtual Thread") : null;
+        
         scheduledExecutor = (ScheduledThreadPoolExecutor) java.util.concurrent.Executors.newScheduledThreadPool(CORE_THREADS_SCHEDULED_EXECUTOR, new ThreadFactory()
         {
             public Thread newThread(final Runnable r)
@@ -177,7 +193,17 @@ public class Executors
         {
             public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor)
             {
-                logger.logp(Level.WARNING, getClass().getName(), "net.posick.mDNS.utils.RejectedExecutionHandler", "rejectedExecution", "Network Processing Queue Rejected Packet it is FULL. [size: " + executor.getQueue().size() + "]");
+                // The caller runs tasks the saturated executor rejects, slowing the submitters.
+                rejectedTasks.incrementAndGet();
+                if (logger.isLoggable(Level.FINE))
+                {
+                    logger.logp(Level.FINE, getClass().getName(), "rejectedExecution", "Executor Queue is FULL, running task on the calling thread. [size: " + executor.getQueue().size() + "]");
+                }
+                
+                if (!executor.isShutdown())
+                {
+                    r.run();
+                }
             }
         });
         value = Options.value("mdns_executor_core_threads");
@@ -221,7 +247,7 @@ public class Executors
         int networkExecutorQueueSize = QUEUE_SIZE_NETWORK_EXECUTOR;
         try
         {
-            value = Options.value("mdns_cached_thread_queue_size");
+            value = Options.value("mdns_network_thread_queue_size");
             if ((value == null) || (value.length() == 0))
             {
                 value = Options.value("mdns_thread_queue_size");
@@ -240,8 +266,8 @@ public class Executors
             // ignore
         }
         
-        networkExecutor = new ThreadPoolExecutor(CORE_THREADS_CACHED_EXECUTOR, MAX_THREADS_CACHED_EXECUTOR,
-        TTL_THREADS_CACHED_EXECUTOR, THREAD_TTL_TIME_UNIT,
+        networkExecutor = new ThreadPoolExecutor(CORE_THREADS_NETWORK_EXECUTOR, MAX_THREADS_NETWORK_EXECUTOR,
+        TTL_THREADS_NETWORK_EXECUTOR, THREAD_TTL_TIME_UNIT,
         new ArrayBlockingQueue<Runnable>(networkExecutorQueueSize),
         new ThreadFactory()
         {
@@ -276,8 +302,10 @@ public class Executors
         {
             public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor)
             {
-                Thread t = executor.getThreadFactory().newThread(r);
-                t.start();
+                // Threads are not started for rejected tasks, the submitter drops the work instead.
+                rejectedNetworkTasks.incrementAndGet();
+                logger.logp(Level.WARNING, getClass().getName(), "rejectedExecution", "Network Processing Queue is FULL, rejecting task. [size: " + executor.getQueue().size() + "]");
+                throw new RejectedExecutionException("Network Processing Queue is FULL.");
             }
         });
         value = Options.value("mdns_network_core_threads");
@@ -314,20 +342,50 @@ public class Executors
             }
         } else
         {
-            executor.setKeepAliveTime(TTL_THREADS_NETWORK_EXECUTOR, THREAD_TTL_TIME_UNIT);
+            networkExecutor.setKeepAliveTime(TTL_THREADS_NETWORK_EXECUTOR, THREAD_TTL_TIME_UNIT);
         }
         networkExecutor.allowCoreThreadTimeOut(true);
     }
     
     
+    /**
+     * Returns the number of tasks the executor rejected, which were run by the submitting thread.
+     *
+     * @return the number of tasks the executor rejected
+     */
+    public long getRejectedTasks()
+    {
+        return rejectedTasks.get();
+    }
+    
+    
+    /**
+     * Returns the number of tasks the network executor rejected.
+     *
+     * @return the number of tasks the network executor rejected
+     */
+    public long getRejectedNetworkTasks()
+    {
+        return rejectedNetworkTasks.get();
+    }
+    
+    
     public boolean isExecutorOperational()
     {
+        if (virtualExecutor != null)
+        {
+            return !virtualExecutor.isShutdown() && !virtualExecutor.isTerminated();
+        }
         return !executor.isShutdown() && !executor.isTerminated() && !executor.isTerminating();
     }
     
     
     public boolean isNetworkExecutorOperational()
     {
+        if (virtualExecutor != null)
+        {
+            return !virtualExecutor.isShutdown() && !virtualExecutor.isTerminated();
+        }
         return !networkExecutor.isShutdown() && !networkExecutor.isTerminated() && !networkExecutor.isTerminating();
     }
     
@@ -358,13 +416,66 @@ public class Executors
 
     public void execute(Runnable command)
     {
-        executor.execute(command);
+        if (virtualExecutor != null)
+        {
+            virtualExecutor.execute(command);
+        } else
+        {
+            executor.execute(command);
+        }
     }
 
 
+    /**
+     * Executes a network task. Tasks are rejected with a RejectedExecutionException when the
+     * network executor is saturated, rather than starting more threads.
+     */
     public void executeNetworkTask(Runnable command)
     {
-        networkExecutor.execute(command);
+        if (virtualExecutor != null)
+        {
+            virtualExecutor.execute(command);
+        } else
+        {
+            networkExecutor.execute(command);
+        }
+    }
+    
+    
+    /**
+     * Returns true if tasks are executed on virtual threads.
+     *
+     * @return true if tasks are executed on virtual threads
+     */
+    public boolean isVirtual()
+    {
+        return virtualExecutor != null;
+    }
+    
+    
+    /**
+     * Creates an executor that runs each task on a new virtual thread. Virtual threads are
+     * created reflectively, as this library targets Java 11, and null is returned if the JVM does
+     * not support them, the platform thread pools being used instead.
+     *
+     * @param name The name prefix of the virtual threads
+     * @return The executor, or null if virtual threads are not supported
+     */
+    protected static ExecutorService newVirtualThreadPerTaskExecutor(final String name)
+    {
+        try
+        {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + " ", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            Method newThreadPerTaskExecutor = java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+        } catch (Exception e)
+        {
+            logger.logp(Level.WARNING, Executors.class.getName(), "newVirtualThreadPerTaskExecutor", "Virtual threads are not supported by this JVM, using platform threads - " + e);
+            return null;
+        }
     }
     
     
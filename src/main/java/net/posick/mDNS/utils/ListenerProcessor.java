@@ -6,6 +6,7 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.lang.reflect.UndeclaredThrowableException;
 import java.util.Arrays;
 import java.util.LinkedHashSet;
 import java.util.Stack;
@@ -18,6 +19,10 @@ import java.util.logging.Logger;
  * listeners are registered determines the order by which the listeners are called during event
  * dispatch. A listener may halt the delivery of events to subsequent listeners by throwing a
  * StopDispatchException.
+ * <p>
+ * Events are dispatched through a dynamic proxy of the listener interface by default. Subclasses
+ * for frequently dispatched interfaces override newDispatcher to return a typed dispatcher that
+ * calls the listeners directly, avoiding reflection on the dispatch path.
  * 
  * @author Steve Posick
  */
@@ -89,7 +94,7 @@ public class ListenerProcessor<T> implements Closeable
     
     private final Class<T> iface;
     
-    private Object[] listeners = new Object[0];
+    private volatile Object[] listeners = new Object[0];
     
     private T dispatcher;
     
@@ -119,12 +124,61 @@ public class ListenerProcessor<T> implements Closeable
     {
         if (dispatcher == null)
         {
-            dispatcher = (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {iface}, new Dispatcher(this));
+            dispatcher = newDispatcher();
         }
         return dispatcher;
     }
     
     
+    /**
+     * Creates the dispatcher returned by getDispatcher. The default implementation returns a
+     * dynamic proxy that invokes the listeners reflectively.
+     * 
+     * @return The dispatcher
+     */
+    protected T newDispatcher()
+    {
+        return (T) Proxy.newProxyInstance(getClass().getClassLoader(), new Class[] {iface}, new Dispatcher(this));
+    }
+    
+    
+    /**
+     * Returns the currently registered listeners. The returned array must not be modified.
+     * 
+     * @return The currently registered listeners
+     */
+    protected Object[] getListeners()
+    {
+        return listeners;
+    }
+    
+    
+    /**
+     * Handles an exception thrown by a listener during typed dispatch, with the same semantics as
+     * the reflective dispatcher. Returns true if the listener threw a StopDispatchException and
+     * dispatch should stop, otherwise the exception is logged and rethrown.
+     * 
+     * @param e The exception thrown by the listener
+     * @return true if dispatch should stop
+     */
+    protected static boolean stopDispatch(final Exception e)
+    {
+        if (e instanceof StopDispatchException)
+        {
+            return true;
+        }
+        
+        logger.log(Level.WARNING, e.getMessage(), e);
+        if (e instanceof RuntimeException)
+        {
+            throw (RuntimeException) e;
+        } else
+        {
+            throw new UndeclaredThrowableException(e);
+        }
+    }
+    
+    
     public synchronized T registerListener(final T listener)
     {
         // Make sure the listener is not null and that it implements the Interface
@@ -0,0 +1,74 @@
+package net.posick.mDNS.utils;
+
+import net.posick.DNS.Message;
+import net.posick.DNS.ResolverListener;
+
+/**
+ * A ListenerProcessor for ResolverListeners that dispatches events by calling the registered
+ * listeners directly rather than through a dynamic proxy.
+ * 
+ * @author Steve Posick
+ */
+@SuppressWarnings("deprecation")
+public class ResolverListenerProcessor extends ListenerProcessor<ResolverListener>
+{
+    protected static class ResolverListenerDispatcher implements ResolverListener
+    {
+        private final ResolverListenerProcessor processor;
+        
+        
+        protected ResolverListenerDispatcher(final ResolverListenerProcessor processor)
+        {
+            this.processor = processor;
+        }
+        
+        
+        public void receiveMessage(final Object id, final Message m)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((ResolverListener) listener).receiveMessage(id, m);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        
+        
+        public void handleException(final Object id, final Exception ex)
+        {
+            for (Object listener : processor.getListeners())
+            {
+                try
+                {
+                    ((ResolverListener) listener).handleException(id, ex);
+                } catch (Exception e)
+                {
+                    if (stopDispatch(e))
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+    
+    
+    public ResolverListenerProcessor()
+    {
+        super(ResolverListener.class);
+    }
+    
+    
+    @Override
+    protected ResolverListener newDispatcher()
+    {
+        return new ResolverListenerDispatcher(this);
+    }
+}
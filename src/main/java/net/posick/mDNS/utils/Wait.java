@@ -1,11 +1,16 @@
 package net.posick.mDNS.utils;
 
+import java.util.concurrent.locks.LockSupport;
+
 import net.posick.DNS.Options;
 
 import net.posick.mDNS.Querier;
 
 /**
  * The Wait utility provides default wait logic, such as waiting for responses.
+ * <p>
+ * Threads are parked rather than waiting on the monitor, so that a virtual thread waiting for
+ * responses does not pin its carrier thread. Waiting ends early if the thread is interrupted.
  * 
  * @author Steve Posick
  */
@@ -21,38 +26,29 @@ public class Wait
     
     public static final void forResponse(Iterable monitor)
     {
-        synchronized (monitor)
+        long waitTill = waitTill();
+        while (!hasNext(monitor) && System.currentTimeMillis() < waitTill && !Thread.currentThread().isInterrupted())
         {
-            long waitTill = waitTill();
-            while (!monitor.iterator().hasNext() && System.currentTimeMillis() < waitTill)
-            {
-                try
-                {
-                    monitor.wait(waitTill - System.currentTimeMillis());
-                } catch (InterruptedException e)
-                {
-                    // ignore
-                }
-            }
+            LockSupport.parkUntil(monitor, waitTill);
         }
     }
     
     
     public static final void forResponse(Object monitor)
+    {
+        long waitTill = waitTill();
+        while (System.currentTimeMillis() < waitTill && !Thread.currentThread().isInterrupted())
+        {
+            LockSupport.parkUntil(monitor, waitTill);
+        }
+    }
+    
+    
+    private static boolean hasNext(Iterable monitor)
     {
         synchronized (monitor)
         {
-            long waitTill = waitTill();
-            while (System.currentTimeMillis() < waitTill)
-            {
-                try
-                {
-                    monitor.wait(waitTill - System.currentTimeMillis());
-                } catch (InterruptedException e)
-                {
-                    // ignore
-                }
-            }
+            return monitor.iterator().hasNext();
         }
     }
 }